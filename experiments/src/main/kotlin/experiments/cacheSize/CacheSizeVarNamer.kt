@@ -1,7 +1,9 @@
 package experiments.cacheSize
 
 import com.intellij.completion.ngram.slp.counting.trie.my.persistent.CountersCache
+import com.intellij.completion.ngram.slp.counting.trie.my.persistent.PersistentCounter
 import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.project.Project
 import com.intellij.psi.PsiNameIdentifierOwner
 import experiments.ModelPrediction
 import experiments.ModelPredictions
@@ -23,12 +25,12 @@ open class CacheSizeVarNamer(
     override val maxNumberOfThreads = 6
     private val intellijModelDir =
         Path("C:\\Users\\Igor.Davidenko\\AppData\\Local\\JetBrains\\IntelliJIdea2022.1\\models\\intellij_JAVA_2")
-    val cacheSize = 7000
+    val cacheSizeMb = 128L
 
     override fun preparePersistentRunners(): List<NGramModelRunner> {
         println("Preparing persistent counters...")
         addText(myStatsFile, "1.31 Gb,")
-        CountersCache.MAXIMUM_CACHE_SIZE = cacheSize
+        CountersCache.MAXIMUM_CACHE_WEIGHT = cacheSizeMb * 1024 * 1024
         return (0 until if (runParallel) maxNumberOfThreads else 1).map {
             println("Loading ${it + 1}")
             val modelRunner = PersistentNGramModelRunner()
@@ -54,6 +56,27 @@ open class CacheSizeVarNamer(
         )
     }
 
+    /**
+     * Saves hits of the caches of all persistent counters next to the other statistics.
+     * Counters of files of version 3 and later are read right from the mapping, so only pinned nodes are counted for them.
+     */
+    override fun afterPrediction(project: Project) {
+        val caches = persistentModelRunners.flatMap { runner ->
+            runner.counters.mapNotNull { (it as? PersistentCounter)?.cache }
+        }
+        val stats = caches.map { it.stats }.reduceOrNull { total, stats -> total.plus(stats) } ?: return
+        val cacheStatsFile = saveDir.resolve("cacheStats.csv").toFile()
+        if (cacheStatsFile.createNewFile()) {
+            addText(cacheStatsFile, "Project,CacheSizeMb,Hits,Misses,HitRate,LoadTimeMs,Evictions,PinnedHits,PinnedNodes,Weight\n")
+        }
+        addText(
+            cacheStatsFile,
+            "${project.name},$cacheSizeMb,${stats.hitCount()},${stats.missCount()},${stats.hitRate()}," +
+                    "${stats.totalLoadTime() / 1_000_000},${stats.evictionCount()},${caches.sumOf { it.pinnedHitCount }}," +
+                    "${caches.sumOf { it.pinnedSize }},${caches.sumOf { it.weight }}\n"
+        )
+    }
+
     override fun predictWithNN(variable: PsiNameIdentifierOwner, thread: Int): Any {
         return listOf<Any>()
     }
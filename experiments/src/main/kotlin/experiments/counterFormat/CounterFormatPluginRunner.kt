@@ -0,0 +1,157 @@
+package experiments.counterFormat
+
+import com.google.gson.GsonBuilder
+import com.intellij.completion.ngram.slp.counting.trie.my.MapTrieCounter
+import com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager
+import com.intellij.completion.ngram.slp.counting.trie.my.PrefixCounter
+import com.intellij.completion.ngram.slp.counting.trie.my.persistent.NGramBloomFilter
+import com.intellij.completion.ngram.slp.modeling.ngram.JMModel
+import com.intellij.ide.impl.ProjectUtil
+import com.intellij.lang.java.JavaLanguage
+import com.intellij.openapi.application.ApplicationStarter
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.project.ProjectManager
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.PsiManager
+import com.intellij.psi.search.FileTypeIndex
+import com.intellij.psi.search.GlobalSearchScope
+import com.jetbrains.python.PythonLanguage
+import me.tongfei.progressbar.ProgressBar
+import org.jetbrains.iren.LanguageSupporter
+import org.jetbrains.iren.storages.Vocabulary
+import org.jetbrains.kotlin.idea.KotlinLanguage
+import java.io.File
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.*
+import kotlin.system.exitProcess
+
+/**
+ * Compares file size and lookup latency of the default and the compact formats of persistent counters.
+ * Sizes of both files, of their Bloom filters and the ratio of the sizes are printed and saved to `counter_format.json`.
+ * The plugin writes the compact format when the registry key `iren.compact.counters` is on.
+ * Arguments: dataset directory, directory for results, language.
+ */
+open class CounterFormatPluginRunner : ApplicationStarter {
+    private lateinit var dataset: File
+    private lateinit var saveDir: Path
+    private lateinit var supporter: LanguageSupporter
+
+    protected open val projectList: List<String> = listOf("intellij-community")
+    protected open val order = 6
+    protected open val warmUpRounds = 3
+    protected open val rounds = 10
+
+    @Deprecated("Specify it as `id` for extension definition in a plugin descriptor")
+    override val commandName = null
+
+    override fun main(args: List<String>) {
+        try {
+            dataset = File(args[1])
+            saveDir = Paths.get(args[2])
+            supporter = LanguageSupporter.getInstance(
+                when (args[3].lowercase(Locale.getDefault())) {
+                    "java" -> JavaLanguage.INSTANCE
+                    "python" -> PythonLanguage.INSTANCE
+                    "kotlin" -> KotlinLanguage.INSTANCE
+                    else -> throw AssertionError("Unknown language")
+                }
+            )!!
+            compareFormats()
+        } catch (e: Exception) {
+            e.printStackTrace()
+        } finally {
+            exitProcess(0)
+        }
+    }
+
+    private fun compareFormats() {
+        val results = LinkedHashMap<String, Map<String, Map<String, Number>>>()
+        for (projectDir in projectList) {
+            val projectPath = dataset.resolve(projectDir)
+            println("Opening project $projectDir...")
+            val project = ProjectUtil.openOrImport(projectPath.path, null, true) ?: continue
+            val tokens = lexProject(project)
+            ProjectManager.getInstance().closeAndDispose(project)
+            val counter = MapTrieCounter()
+            val model = JMModel(order, 0.5, counter)
+            tokens.forEach { model.learn(it) }
+            val queries = tokens.flatMap { file -> file.windowed(order, partialWindows = true) }
+                .map { it.toIntArray() }
+            println("Files: ${tokens.size}, queries: ${queries.size}")
+            val default = measure(projectDir, false, counter, queries)
+            val compact = measure(projectDir, true, counter, queries)
+            val sizeRatio = default.getValue("fileBytes").toDouble() / compact.getValue("fileBytes").toDouble()
+            println("Compact file is ${"%.2f".format(sizeRatio)} times smaller")
+            results[projectDir] = linkedMapOf(
+                "default" to default,
+                "compact" to compact,
+                "ratio" to mapOf("fileBytes" to sizeRatio),
+            )
+        }
+        val resultsFile = saveDir.resolve("counter_format.json").toFile()
+        resultsFile.parentFile.mkdirs()
+        resultsFile.writeText(GsonBuilder().setPrettyPrinting().create().toJson(results))
+    }
+
+    private fun measure(
+        projectDir: String,
+        compact: Boolean,
+        counter: MapTrieCounter,
+        queries: List<IntArray>
+    ): Map<String, Number> {
+        val file = saveDir.resolve("${projectDir}_${if (compact) "compact" else "default"}.bin").toFile()
+        file.parentFile.mkdirs()
+        val start = System.nanoTime()
+        PersistentCounterManager.serialize(file.path, counter, compact)
+        val writeSeconds = (System.nanoTime() - start) / 1.0e9
+        val filterBytes = File(file.path + NGramBloomFilter.SUFFIX).length()
+        val persistentCounter = PersistentCounterManager.deserialize(file.path) as PrefixCounter
+        val counts = LongArray(2)
+        repeat(warmUpRounds) { lookUp(persistentCounter, queries, counts) }
+        val lookupStart = System.nanoTime()
+        var lookups = 0L
+        repeat(rounds) { lookups += lookUp(persistentCounter, queries, counts) }
+        val nanosPerLookup = (System.nanoTime() - lookupStart).toDouble() / lookups
+        val name = if (compact) "Compact" else "Default"
+        println("$name: ${file.length() / 1024} Kb, filter ${filterBytes / 1024} Kb, " +
+                "${"%.2f".format(writeSeconds)} s to write, ${"%.1f".format(nanosPerLookup)} ns per lookup")
+        return mapOf(
+            "fileBytes" to file.length(),
+            "filterBytes" to filterBytes,
+            "writeSeconds" to writeSeconds,
+            "nanosPerLookup" to nanosPerLookup,
+        )
+    }
+
+    /**
+     * Looks up every suffix of every query, as n-gram models do.
+     */
+    private fun lookUp(counter: PrefixCounter, queries: List<IntArray>, counts: LongArray): Long {
+        var lookups = 0L
+        for (query in queries) {
+            for (offset in query.indices) {
+                counter.getCounts(query, offset, query.size - offset, counts)
+                lookups++
+            }
+        }
+        return lookups
+    }
+
+    private fun lexProject(project: Project): List<List<Int>> {
+        val files = ReadAction.compute<Collection<VirtualFile>, RuntimeException> {
+            FileTypeIndex.getFiles(supporter.fileType, GlobalSearchScope.projectScope(project))
+        }
+        val vocabulary = Vocabulary()
+        val progressBar = ProgressBar(project.name, files.size.toLong())
+        val tokens = files.mapNotNull { file ->
+            progressBar.step()
+            ReadAction.compute<List<Int>?, RuntimeException> {
+                PsiManager.getInstance(project).findFile(file)?.let { vocabulary.toIndices(supporter.lexPsiFile(it)) }
+            }
+        }
+        progressBar.close()
+        return tokens
+    }
+}
@@ -0,0 +1,75 @@
+package experiments.counterLayout
+
+import com.intellij.completion.ngram.slp.counting.trie.my.persistent.MappedCounterFile
+import java.io.File
+import java.util.function.LongConsumer
+
+/**
+ * Profile of reads from persistent counter files: pages touched by every query and by all of them together.
+ * Pages touched by all queries approximate the page faults of a cold start, when nothing is in the page cache.
+ * Reads from all threads are recorded, so queries should run one by one.
+ *
+ * Usage: `profile.query { counter.getPrefixCounts(...) }` for every query, then [summary] or [save].
+ */
+class AccessProfile(private val pageSize: Int = 4096) {
+    private val shift = Integer.numberOfTrailingZeros(pageSize)
+    private val queryPages = HashSet<Long>()
+    private val pageQueries = HashMap<Long, Int>()
+    private val pagesPerQuery = ArrayList<Int>()
+
+    init {
+        require(Integer.bitCount(pageSize) == 1) { "Page size must be a power of two" }
+    }
+
+    /**
+     * Runs the query with recording of reads from counter files.
+     */
+    fun <T> query(block: () -> T): T {
+        queryPages.clear()
+        val previous = MappedCounterFile.ACCESS_RECORDER
+        MappedCounterFile.ACCESS_RECORDER = LongConsumer { queryPages.add(it ushr shift) }
+        try {
+            return block()
+        } finally {
+            MappedCounterFile.ACCESS_RECORDER = previous
+            pagesPerQuery.add(queryPages.size)
+            queryPages.forEach { pageQueries.merge(it, 1, Int::plus) }
+        }
+    }
+
+    val queries: Int
+        get() = pagesPerQuery.size
+
+    /**
+     * Number of distinct pages touched by all queries.
+     */
+    val workingSet: Int
+        get() = pageQueries.size
+
+    /**
+     * Number of distinct blocks touched by all queries, the system reads ahead by blocks of several pages.
+     */
+    fun workingSet(blockSize: Int): Int = pageQueries.keys.map { (it shl shift) / blockSize }.distinct().size
+
+    fun meanPagesPerQuery(): Double = if (pagesPerQuery.isEmpty()) 0.0 else pagesPerQuery.average()
+
+    fun summary(): Map<String, Number> = linkedMapOf(
+        "queries" to queries,
+        "pagesPerQuery" to meanPagesPerQuery(),
+        "workingSetPages" to workingSet,
+        "workingSetBlocks128Kb" to workingSet(128 * 1024),
+    )
+
+    /**
+     * Saves pages ordered by the number of queries which touched them, as CSV.
+     */
+    fun save(file: File) {
+        file.parentFile.mkdirs()
+        file.printWriter().use { out ->
+            out.println("offset,queries")
+            pageQueries.entries.sortedByDescending { it.value }.forEach { (page, count) ->
+                out.println("${page shl shift},$count")
+            }
+        }
+    }
+}
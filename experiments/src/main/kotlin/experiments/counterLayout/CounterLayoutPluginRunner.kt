@@ -0,0 +1,135 @@
+package experiments.counterLayout
+
+import com.google.gson.GsonBuilder
+import com.intellij.completion.ngram.slp.counting.trie.my.MapTrieCounter
+import com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager
+import com.intellij.completion.ngram.slp.counting.trie.my.PrefixCounter
+import com.intellij.completion.ngram.slp.modeling.ngram.JMModel
+import com.intellij.ide.impl.ProjectUtil
+import com.intellij.lang.java.JavaLanguage
+import com.intellij.openapi.application.ApplicationStarter
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.project.ProjectManager
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.PsiManager
+import com.intellij.psi.search.FileTypeIndex
+import com.intellij.psi.search.GlobalSearchScope
+import com.jetbrains.python.PythonLanguage
+import me.tongfei.progressbar.ProgressBar
+import org.jetbrains.iren.LanguageSupporter
+import org.jetbrains.iren.storages.Vocabulary
+import org.jetbrains.kotlin.idea.KotlinLanguage
+import java.io.File
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.*
+import kotlin.system.exitProcess
+
+/**
+ * Compares layouts of persistent counter files with different numbers of upper levels written apart from deeper nodes.
+ * The model is trained on most files of a project, and windows of the rest of files are queried as the scorer does.
+ * Every query is recorded by [AccessProfile], profiles are saved next to the results.
+ * Arguments: dataset directory, directory for results, language.
+ */
+open class CounterLayoutPluginRunner : ApplicationStarter {
+    private lateinit var dataset: File
+    private lateinit var saveDir: Path
+    private lateinit var supporter: LanguageSupporter
+
+    protected open val projectList: List<String> = listOf("intellij-community")
+    protected open val order = 6
+    protected open val upperLevels = listOf(0, 1, 2, 3)
+    protected open val testFilesPercent = 10
+    protected open val maxQueries = 100_000
+
+    @Deprecated("Specify it as `id` for extension definition in a plugin descriptor")
+    override val commandName = null
+
+    override fun main(args: List<String>) {
+        try {
+            dataset = File(args[1])
+            saveDir = Paths.get(args[2])
+            supporter = LanguageSupporter.getInstance(
+                when (args[3].lowercase(Locale.getDefault())) {
+                    "java" -> JavaLanguage.INSTANCE
+                    "python" -> PythonLanguage.INSTANCE
+                    "kotlin" -> KotlinLanguage.INSTANCE
+                    else -> throw AssertionError("Unknown language")
+                }
+            )!!
+            compareLayouts()
+        } catch (e: Exception) {
+            e.printStackTrace()
+        } finally {
+            exitProcess(0)
+        }
+    }
+
+    private fun compareLayouts() {
+        val results = LinkedHashMap<String, Map<String, Map<String, Number>>>()
+        for (projectDir in projectList) {
+            val projectPath = dataset.resolve(projectDir)
+            println("Opening project $projectDir...")
+            val project = ProjectUtil.openOrImport(projectPath.path, null, true) ?: continue
+            val tokens = lexProject(project)
+            ProjectManager.getInstance().closeAndDispose(project)
+            val testFiles = tokens.size * testFilesPercent / 100
+            val counter = MapTrieCounter()
+            val model = JMModel(order, 0.5, counter)
+            tokens.drop(testFiles).forEach { model.learn(it) }
+            val queries = tokens.take(testFiles).flatMap { file -> file.windowed(order, partialWindows = true) }
+                .take(maxQueries)
+                .map { it.toIntArray() }
+            println("Files: ${tokens.size}, queries: ${queries.size}")
+            results[projectDir] = upperLevels.associate { levels ->
+                "upperLevels$levels" to measure(projectDir, levels, counter, queries)
+            }
+        }
+        val resultsFile = saveDir.resolve("counter_layout.json").toFile()
+        resultsFile.parentFile.mkdirs()
+        resultsFile.writeText(GsonBuilder().setPrettyPrinting().create().toJson(results))
+    }
+
+    private fun measure(
+        projectDir: String,
+        levels: Int,
+        counter: MapTrieCounter,
+        queries: List<IntArray>
+    ): Map<String, Number> {
+        val file = saveDir.resolve("${projectDir}_upper$levels.bin").toFile()
+        file.parentFile.mkdirs()
+        val defaultLevels = PersistentCounterManager.UPPER_LEVELS
+        PersistentCounterManager.UPPER_LEVELS = levels
+        PersistentCounterManager.serialize(file.path, counter)
+        PersistentCounterManager.UPPER_LEVELS = defaultLevels
+        val persistentCounter = PersistentCounterManager.deserialize(file.path) as PrefixCounter
+        val counts = LongArray(2 * order)
+//        The file was just written, so its pages may be cached and the first pass is only an upper bound of a cold start
+        val start = System.nanoTime()
+        queries.forEach { persistentCounter.getPrefixCounts(it, 0, it.size, counts) }
+        val firstPassMillis = (System.nanoTime() - start) / 1.0e6
+        val profile = AccessProfile()
+        queries.forEach { query -> profile.query { persistentCounter.getPrefixCounts(query, 0, query.size, counts) } }
+        profile.save(saveDir.resolve("${projectDir}_upper${levels}_profile.csv").toFile())
+        println("Upper levels $levels: ${profile.workingSet} pages touched, " +
+                "${"%.2f".format(profile.meanPagesPerQuery())} pages per query, ${"%.1f".format(firstPassMillis)} ms of the first pass")
+        return profile.summary() + mapOf("firstPassMillis" to firstPassMillis, "fileBytes" to file.length())
+    }
+
+    private fun lexProject(project: Project): List<List<Int>> {
+        val files = ReadAction.compute<Collection<VirtualFile>, RuntimeException> {
+            FileTypeIndex.getFiles(supporter.fileType, GlobalSearchScope.projectScope(project))
+        }
+        val vocabulary = Vocabulary()
+        val progressBar = ProgressBar(project.name, files.size.toLong())
+        val tokens = files.mapNotNull { file ->
+            progressBar.step()
+            ReadAction.compute<List<Int>?, RuntimeException> {
+                PsiManager.getInstance(project).findFile(file)?.let { vocabulary.toIndices(supporter.lexPsiFile(it)) }
+            }
+        }
+        progressBar.close()
+        return tokens
+    }
+}
@@ -11,7 +11,7 @@ class DOBFPluginRunner : PluginRunner() {
 
     override val varNamer: VarNamer
         get() {
-            CountersCache.MAXIMUM_CACHE_SIZE = 10_000
+            CountersCache.MAXIMUM_CACHE_WEIGHT = 256L * 1024 * 1024
             return DOBFVarNamer(saveDir, supporter, ngramType)
         }
 }
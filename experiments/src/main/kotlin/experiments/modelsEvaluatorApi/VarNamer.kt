@@ -37,7 +37,7 @@ open class VarNamer(
     open var runParallel = true
     open val maxNumberOfThreads = 7
     protected lateinit var myModelRunner: NGramModelRunner
-    private val persistentModelRunners: List<NGramModelRunner> by lazy { preparePersistentRunners() }
+    protected val persistentModelRunners: List<NGramModelRunner> by lazy { preparePersistentRunners() }
     private val mapper = ObjectMapper()
     lateinit var myStatsFile: File
 
@@ -67,9 +67,16 @@ open class VarNamer(
         val start = Instant.now()
         predictParallel(project, predictionsFile, files ?: collectNotPredictedFiles(predictionsFile, project))
         println("Done in ${Duration.between(start, Instant.now())}")
+        afterPrediction(project)
         return true
     }
 
+    /**
+     * Called when all files of the project are predicted, e.g. to save statistics of the runners.
+     */
+    protected open fun afterPrediction(project: Project) {
+    }
+
     private fun predictParallel(
         project: Project,
         predictionsFile: File,
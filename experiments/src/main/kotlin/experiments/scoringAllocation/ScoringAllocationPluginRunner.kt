@@ -0,0 +1,214 @@
+package experiments.scoringAllocation
+
+import com.google.gson.GsonBuilder
+import com.intellij.completion.ngram.slp.counting.Counter
+import com.intellij.completion.ngram.slp.counting.trie.my.IntMapTrieCounter
+import com.intellij.completion.ngram.slp.counting.trie.my.MapTrieCounter
+import com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager
+import com.intellij.completion.ngram.slp.counting.trie.my.persistent.PersistentCounter
+import com.intellij.completion.ngram.slp.modeling.mix.BiDirectionalModel
+import com.intellij.completion.ngram.slp.modeling.ngram.NGramModel
+import com.intellij.ide.impl.ProjectUtil
+import com.intellij.lang.java.JavaLanguage
+import com.intellij.openapi.application.ApplicationStarter
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.project.ProjectManager
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.PsiElement
+import com.intellij.psi.PsiManager
+import com.intellij.psi.search.FileTypeIndex
+import com.intellij.psi.search.GlobalSearchScope
+import com.jetbrains.python.PythonLanguage
+import me.tongfei.progressbar.ProgressBar
+import org.jetbrains.iren.LanguageSupporter
+import org.jetbrains.iren.ngram.NGramModelRunner
+import org.jetbrains.iren.storages.Context
+import org.jetbrains.kotlin.idea.KotlinLanguage
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.*
+import kotlin.system.exitProcess
+
+/**
+ * Measures memory allocated by scoring candidates of variables with [NGramModelRunner.scoreCandidates]
+ * and by ranking them with [NGramModelRunner.suggestNames], as the plugin does.
+ * Models are trained on most files of a project, and every variable declared in the rest of files is scored
+ * with the candidates which the model suggests for it. Counters are measured in memory, frozen, and written
+ * in the default and the compact persistent formats. Allocations of the scoring thread are taken from
+ * [com.sun.management.ThreadMXBean], after warm up, so they should stay near zero per candidate.
+ * Ranking also allocates the set of candidates and predictions per variable, it is reported per candidate too.
+ * Arguments: dataset directory, directory for results, language.
+ */
+open class ScoringAllocationPluginRunner : ApplicationStarter {
+    private lateinit var dataset: File
+    private lateinit var saveDir: Path
+    private lateinit var supporter: LanguageSupporter
+
+    protected open val projectList: List<String> = listOf("intellij-community")
+    protected open val counters: Map<String, () -> Counter> = linkedMapOf(
+        "MapTrieCounter" to { MapTrieCounter() },
+        "IntMapTrieCounter" to { IntMapTrieCounter() },
+    )
+    protected open val testFilesPercent = 10
+    protected open val warmUpRounds = 3
+    protected open val rounds = 5
+
+    @Deprecated("Specify it as `id` for extension definition in a plugin descriptor")
+    override val commandName = null
+
+    override fun main(args: List<String>) {
+        try {
+            dataset = File(args[1])
+            saveDir = Paths.get(args[2])
+            supporter = LanguageSupporter.getInstance(
+                when (args[3].lowercase(Locale.getDefault())) {
+                    "java" -> JavaLanguage.INSTANCE
+                    "python" -> PythonLanguage.INSTANCE
+                    "kotlin" -> KotlinLanguage.INSTANCE
+                    else -> throw AssertionError("Unknown language")
+                }
+            )!!
+            measureAllocations()
+        } catch (e: Exception) {
+            e.printStackTrace()
+        } finally {
+            exitProcess(0)
+        }
+    }
+
+    private fun measureAllocations() {
+        val results = LinkedHashMap<String, Map<String, Map<String, Number>>>()
+        for (projectDir in projectList) {
+            val projectPath = dataset.resolve(projectDir)
+            println("Opening project $projectDir...")
+            val project = ProjectUtil.openOrImport(projectPath.path, null, true) ?: continue
+            val files = lexProject(project)
+            ProjectManager.getInstance().closeAndDispose(project)
+            val testFiles = files.size * testFilesPercent / 100
+            val projectResults = LinkedHashMap<String, Map<String, Number>>()
+            for ((name, factory) in counters) {
+                val runner = createRunner(factory)
+                files.drop(testFiles).forEach { runner.model.learn(runner.vocabulary.toIndices(it.tokens)) }
+                val queries = getQueries(runner, files.take(testFiles))
+                projectResults[name] = measure(name, runner, queries)
+                val counterDir = Files.createTempDirectory("scoringAllocation")
+                val formats = linkedMapOf("Mapped" to false, "Compact" to true)
+                for ((format, compact) in formats) {
+                    runner.counters.forEachIndexed { i, counter ->
+                        PersistentCounterManager.serialize(counterDir.resolve("$format$i").toString(), counter, compact)
+                    }
+                }
+                runner.freeze()
+                projectResults["Frozen$name"] = measure("Frozen$name", runner, queries)
+                for (format in formats.keys) {
+                    val models = (runner.model as BiDirectionalModel).let { listOf(it.forward, it.reverse) }
+                    models.forEachIndexed { i, model ->
+                        val path = counterDir.resolve("$format$i").toString()
+                        (model as NGramModel).counter = PersistentCounterManager.deserialize(path)!!
+                    }
+                    projectResults["$format$name"] = measure("$format$name", runner, queries)
+                    runner.counters.forEach { (it as? PersistentCounter)?.close() }
+                }
+                counterDir.toFile().deleteRecursively()
+            }
+            results[projectDir] = projectResults
+        }
+        val resultsFile = saveDir.resolve("scoring_allocation.json").toFile()
+        resultsFile.parentFile.mkdirs()
+        resultsFile.writeText(GsonBuilder().setPrettyPrinting().create().toJson(results))
+    }
+
+    /**
+     * Stop names are filtered out by the supporter of the runner, which is usually taken from the first scored variable.
+     */
+    private fun createRunner(factory: () -> Counter): NGramModelRunner =
+        object : NGramModelRunner(true, 6, factory) {
+            init {
+                mySupporter = this@ScoringAllocationPluginRunner.supporter
+            }
+        }
+
+    private fun getQueries(runner: NGramModelRunner, testFiles: List<LexedFile>): List<Pair<Context<Int>, IntArray>> =
+        testFiles.flatMap { file ->
+            val tokens = runner.vocabulary.toIndices(file.tokens)
+            file.variables.map { variable ->
+                val varIdxs = file.tokens.indices.filter { file.tokens[it] == variable }
+                val context = Context(tokens, varIdxs).with(0)
+                val candidates = varIdxs.flatMap { runner.model.predictToken(context.tokens, it).keys }.distinct()
+                context to candidates.toIntArray()
+            }
+        }
+
+    private fun measure(name: String, runner: NGramModelRunner, queries: List<Pair<Context<Int>, IntArray>>): Map<String, Number> {
+        val logProbs = DoubleArray(queries.maxOfOrNull { it.second.size } ?: 0)
+        val (allocated, seconds) = measureRounds {
+            queries.forEach { (context, candidates) -> runner.scoreCandidates(context, candidates, logProbs) }
+        }
+        val candidates = rounds.toLong() * queries.sumOf { it.second.size }
+        val bytesPerCandidate = if (candidates == 0L) 0.0 else allocated.toDouble() / candidates
+        val bytesPerQuery = if (queries.isEmpty()) 0.0 else allocated.toDouble() / (rounds * queries.size)
+        val (rankingAllocated, rankingSeconds) = measureRounds {
+            queries.forEach { (context, _) -> runner.suggestNames(context) }
+        }
+        val rankingBytesPerCandidate = if (candidates == 0L) 0.0 else rankingAllocated.toDouble() / candidates
+        val rankingBytesPerQuery = if (queries.isEmpty()) 0.0 else rankingAllocated.toDouble() / (rounds * queries.size)
+        println("$name: ${queries.size} variables, ${"%.2f".format(bytesPerCandidate)} bytes per candidate, " +
+                "${"%.0f".format(bytesPerQuery)} bytes per variable, ${(candidates / seconds).toLong()} candidates/s, " +
+                "ranking: ${"%.2f".format(rankingBytesPerCandidate)} bytes per candidate, " +
+                "${"%.0f".format(rankingBytesPerQuery)} bytes per variable, " +
+                "${(rounds * queries.size / rankingSeconds).toLong()} variables/s")
+        return mapOf(
+            "variables" to queries.size,
+            "candidates" to candidates / rounds,
+            "allocatedBytes" to allocated,
+            "bytesPerCandidate" to bytesPerCandidate,
+            "bytesPerVariable" to bytesPerQuery,
+            "candidatesPerSecond" to candidates / seconds,
+            "rankingAllocatedBytes" to rankingAllocated,
+            "rankingBytesPerCandidate" to rankingBytesPerCandidate,
+            "rankingBytesPerVariable" to rankingBytesPerQuery,
+            "rankingVariablesPerSecond" to rounds * queries.size / rankingSeconds,
+        )
+    }
+
+    /**
+     * @return bytes allocated by the thread and seconds taken by [rounds] of the action after warm up.
+     */
+    private fun measureRounds(action: () -> Unit): Pair<Long, Double> {
+        repeat(warmUpRounds) { action() }
+        val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val thread = Thread.currentThread().id
+        val allocatedBefore = threadBean.getThreadAllocatedBytes(thread)
+        val start = System.nanoTime()
+        repeat(rounds) { action() }
+        val seconds = (System.nanoTime() - start) / 1.0e9
+        return threadBean.getThreadAllocatedBytes(thread) - allocatedBefore to seconds
+    }
+
+    private class LexedFile(val tokens: List<String>, val variables: Set<String>)
+
+    private fun lexProject(project: Project): List<LexedFile> {
+        val files = ReadAction.compute<Collection<VirtualFile>, RuntimeException> {
+            FileTypeIndex.getFiles(supporter.fileType, GlobalSearchScope.projectScope(project))
+        }
+        val progressBar = ProgressBar(project.name, files.size.toLong())
+        val lexedFiles = files.mapNotNull { file ->
+            progressBar.step()
+            ReadAction.compute<LexedFile?, RuntimeException> {
+                PsiManager.getInstance(project).findFile(file)?.let { psiFile ->
+                    val variables = HashSet<String>()
+                    val tokens = supporter.lexPsiFile(psiFile) { element: PsiElement ->
+                        if (supporter.identifierIsVariableDeclaration(element)) variables.add(element.text)
+                    }
+                    LexedFile(tokens, variables)
+                }
+            }
+        }
+        progressBar.close()
+        return lexedFiles
+    }
+}
@@ -0,0 +1,128 @@
+package experiments.trieMemory
+
+import com.google.gson.GsonBuilder
+import com.intellij.completion.ngram.slp.counting.Counter
+import com.intellij.completion.ngram.slp.counting.trie.my.IntMapTrieCounter
+import com.intellij.completion.ngram.slp.counting.trie.my.MapTrieCounter
+import com.intellij.completion.ngram.slp.modeling.ngram.JMModel
+import com.intellij.ide.impl.ProjectUtil
+import com.intellij.lang.java.JavaLanguage
+import com.intellij.openapi.application.ApplicationStarter
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.project.ProjectManager
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.PsiManager
+import com.intellij.psi.search.FileTypeIndex
+import com.intellij.psi.search.GlobalSearchScope
+import com.jetbrains.python.PythonLanguage
+import me.tongfei.progressbar.ProgressBar
+import org.jetbrains.iren.LanguageSupporter
+import org.jetbrains.iren.storages.Vocabulary
+import org.jetbrains.kotlin.idea.KotlinLanguage
+import java.io.File
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.*
+import kotlin.system.exitProcess
+
+/**
+ * Compares memory footprint and training throughput of the trie counters on the same token stream.
+ * Arguments: dataset directory, directory for results, language.
+ */
+open class TrieMemoryPluginRunner : ApplicationStarter {
+    private lateinit var dataset: File
+    private lateinit var saveDir: Path
+    private lateinit var supporter: LanguageSupporter
+
+    protected open val projectList: List<String> = listOf("intellij-community")
+    protected open val counters: Map<String, () -> Counter> = linkedMapOf(
+        "MapTrieCounter" to { MapTrieCounter() },
+        "IntMapTrieCounter" to { IntMapTrieCounter() },
+    )
+
+    @Deprecated("Specify it as `id` for extension definition in a plugin descriptor")
+    override val commandName = null
+
+    override fun main(args: List<String>) {
+        try {
+            dataset = File(args[1])
+            saveDir = Paths.get(args[2])
+            supporter = LanguageSupporter.getInstance(
+                when (args[3].lowercase(Locale.getDefault())) {
+                    "java" -> JavaLanguage.INSTANCE
+                    "python" -> PythonLanguage.INSTANCE
+                    "kotlin" -> KotlinLanguage.INSTANCE
+                    else -> throw AssertionError("Unknown language")
+                }
+            )!!
+            compareCounters()
+        } catch (e: OutOfMemoryError) {
+            println("Not enough memory!")
+            e.printStackTrace()
+        } catch (e: Exception) {
+            e.printStackTrace()
+        } finally {
+            exitProcess(0)
+        }
+    }
+
+    private fun compareCounters() {
+        val results = LinkedHashMap<String, Map<String, Map<String, Number>>>()
+        for (projectDir in projectList) {
+            val projectPath = dataset.resolve(projectDir)
+            println("Opening project $projectDir...")
+            val project = ProjectUtil.openOrImport(projectPath.path, null, true) ?: continue
+            val tokens = lexProject(project)
+            ProjectManager.getInstance().closeAndDispose(project)
+            println("Files: ${tokens.size}, tokens: ${tokens.sumOf { it.size }}")
+            results[projectDir] = counters.mapValues { (name, factory) -> measure(name, factory, tokens) }
+        }
+        val resultsFile = saveDir.resolve("trie_memory.json").toFile()
+        resultsFile.parentFile.mkdirs()
+        resultsFile.writeText(GsonBuilder().setPrettyPrinting().create().toJson(results))
+    }
+
+    private fun lexProject(project: com.intellij.openapi.project.Project): List<List<Int>> {
+        val files = ReadAction.compute<Collection<VirtualFile>, RuntimeException> {
+            FileTypeIndex.getFiles(supporter.fileType, GlobalSearchScope.projectScope(project))
+        }
+        val vocabulary = Vocabulary()
+        val progressBar = ProgressBar(project.name, files.size.toLong())
+        val tokens = files.mapNotNull { file ->
+            progressBar.step()
+            ReadAction.compute<List<Int>?, RuntimeException> {
+                PsiManager.getInstance(project).findFile(file)?.let { vocabulary.toIndices(supporter.lexPsiFile(it)) }
+            }
+        }
+        progressBar.close()
+        return tokens
+    }
+
+    private fun measure(name: String, factory: () -> Counter, tokens: List<List<Int>>): Map<String, Number> {
+        val before = usedMemory()
+        val counter = factory()
+        val model = JMModel(6, 0.5, counter)
+        val start = System.nanoTime()
+        tokens.forEach { model.learn(it) }
+        val seconds = (System.nanoTime() - start) / 1.0e9
+        val memory = usedMemory() - before
+        val tokensNumber = tokens.sumOf { it.size }
+        println("$name: ${memory / (1024 * 1024)} Mb, ${"%.2f".format(seconds)} s, ${(tokensNumber / seconds).toLong()} tokens/s")
+//        Keeps the counter reachable until memory is measured
+        return mapOf(
+            "memoryBytes" to memory,
+            "trainingSeconds" to seconds,
+            "tokensPerSecond" to tokensNumber / seconds,
+            "count" to counter.count
+        )
+    }
+
+    private fun usedMemory(): Long {
+        val runtime = Runtime.getRuntime()
+        repeat(3) {
+            System.gc()
+            Thread.sleep(200)
+        }
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+}
@@ -40,4 +40,10 @@ public interface ModelRunner {
     double save(@NotNull Path model_directory, @Nullable ProgressIndicator progressIndicator);
 
     boolean load(@NotNull Path model_directory, @Nullable ProgressIndicator progressIndicator);
+
+    /**
+     * Releases files of the model, it isn't queried afterwards.
+     */
+    default void close() {
+    }
 }
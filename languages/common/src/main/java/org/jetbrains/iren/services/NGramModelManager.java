@@ -14,6 +14,17 @@ public interface NGramModelManager extends Disposable {
 
     @Nullable ModelRunner get(@NotNull String name);
 
+    /**
+     * Same as {@link #get} for a query, the model runner isn't closed until it is {@link #release released}
+     * even if it was replaced meanwhile.
+     */
+    @Nullable ModelRunner acquire(@NotNull String name);
+
+    void release(@NotNull ModelRunner modelRunner);
+
+    /**
+     * Replaces the model runner at once, the old one is closed when queries which acquired it are finished.
+     */
     void put(@NotNull String name, @NotNull ModelRunner modelRunner);
 
     void remove(@NotNull String name);
@@ -7,6 +7,7 @@ import com.intellij.util.io.size
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap
 import java.io.*
 import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.io.path.readLines
 
 class PersistentVocabulary(
@@ -17,12 +18,20 @@ class PersistentVocabulary(
     val enum2idx: Int2IntOpenHashMap
     val idx2enum: IntArray
     val unkIdx: Int
+    private val released = AtomicBoolean()
 
     init {
         idx2enum = loadIdx2enum()
         enum2idx = idx2enum.mapIndexed { idx, enum -> enum to idx }.toMap(Int2IntOpenHashMap())
         unkIdx = enum2idx[enumerator.tryEnumerate(unkToken)]
-        ShutDownTracker.getInstance().registerShutdownTask(enumerator::close)
+        ShutDownTracker.getInstance().registerShutdownTask(::release)
+    }
+
+    /**
+     * Closes the enumerator once, the vocabulary isn't used afterwards.
+     */
+    fun release() {
+        if (released.compareAndSet(false, true)) enumerator.close()
     }
 
     override fun size() = enum2idx.size
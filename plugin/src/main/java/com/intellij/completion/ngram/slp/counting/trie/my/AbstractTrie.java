@@ -16,7 +16,7 @@
 package com.intellij.completion.ngram.slp.counting.trie.my;
 
 import com.intellij.completion.ngram.slp.counting.Counter;
-import com.intellij.completion.ngram.slp.modeling.runners.ModelRunner;
+import com.intellij.completion.ngram.slp.counting.trie.my.persistent.PersistentCounter;
 
 import java.io.IOException;
 import java.io.ObjectInput;
@@ -25,17 +25,57 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.ObjIntConsumer;
 
-public abstract class AbstractTrie implements Counter {
+public abstract class AbstractTrie implements PrefixCounter {
 
 	
 	public static int COUNT_OF_COUNTS_CUTOFF = 3;
-	public volatile static int[][] nCounts = new int[ModelRunner.DEFAULT_NGRAM_ORDER][4];
+	/**
+	 * Nodes with more successors keep them ordered by count, smaller nodes are sorted on request.
+	 */
+	static final int ORDERED_SUCCESSORS_THRESHOLD = 16;
 	
-	int[] counts;
+	/**
+	 * Own count, context count (sum of successor's counts) and counts of counts of successors
+	 * are kept in a record of the arena shared by the whole trie, not in an array per node.
+	 */
+	final IntArena arena;
+	int countsRecord;
+	/**
+	 * Count of counts of the whole trie. It is created only in the root, other nodes get it from the root on update.
+	 */
+	CountOfCounts countOfCounts;
+	/**
+	 * Successors ordered by count, it is kept up to date on every update of the node.
+	 */
+	SuccessorOrder successorOrder;
+
+	/**
+	 * Old files kept children of {@link ArrayTrieCounter} as serialized objects, the trie being read passes its arena
+	 * to them through this context, so they are read straight into the arena of the root.
+	 */
+	private static final ThreadLocal<ReadContext> READ_CONTEXT = new ThreadLocal<>();
+
+	private static final class ReadContext {
+		final IntArena arena;
+		final int depth;
+		final CountOfCounts nCounts;
+
+		ReadContext(IntArena arena, int depth, CountOfCounts nCounts) {
+			this.arena = arena;
+			this.depth = depth;
+			this.nCounts = nCounts;
+		}
+	}
 
 	public AbstractTrie() {
-		this.counts = new int[2 + COUNT_OF_COUNTS_CUTOFF];
+		this(arenaForNewTrie());
+	}
+
+	AbstractTrie(IntArena arena) {
+		this.arena = arena;
+		this.countsRecord = arena.allocate();
 	}
 	
 	/**
@@ -46,14 +86,97 @@ public abstract class AbstractTrie implements Counter {
 	abstract AbstractTrie makeNext(int depth);
 	
 	public abstract List<Integer> getSuccessors();
-	public abstract Object getSuccessor(int key);
 
-	abstract List<Integer> getTopSuccessorsInternal(int limit);
-	
-	abstract void putSuccessor(int key, Object o);
+	/**
+	 * @return successor node, or null if there is no successor or it is a suffix.
+	 */
+	abstract AbstractTrie getChild(int key);
+
+	/**
+	 * @return address of the suffix of the successor in the arena, or {@link IntArena#NO_SUFFIX}.
+	 */
+	abstract int getSuffix(int key);
+
+	abstract void putChild(int key, AbstractTrie child);
+	abstract void putSuffix(int key, int suffix);
 	abstract void removeSuccessor(int key);
+	abstract int size();
+
+	/**
+	 * @return successor node, a copy of the suffix array of the successor (its count and the rest of the tokens), or null.
+	 */
+	public final Object getSuccessor(int key) {
+		AbstractTrie child = getChild(key);
+		if (child != null) return child;
+		int suffix = getSuffix(key);
+		return suffix == IntArena.NO_SUFFIX ? null : this.arena.copySuffix(suffix);
+	}
+
+	/**
+	 * Reads the trie. Counts of counts aren't serialized, they are rebuilt from counts of the nodes while reading.
+	 */
+	@Override
+	public final void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		ReadContext context = READ_CONTEXT.get();
+		if (context != null && context.arena == this.arena) readNode(in, context.depth, context.nCounts);
+		else readNode(in, 0, getCountOfCounts());
+	}
+
+	private static IntArena arenaForNewTrie() {
+		ReadContext context = READ_CONTEXT.get();
+		return context != null ? context.arena : new IntArena(2 + COUNT_OF_COUNTS_CUTOFF);
+	}
 
-	public abstract void readExternal(ObjectInput in) throws IOException, ClassNotFoundException;
+	/**
+	 * Reads a child of an old file which was written as a serialized object, into the arena of this trie.
+	 */
+	final AbstractTrie readLegacyChild(ObjectInput in, int depth, CountOfCounts nCounts) throws IOException, ClassNotFoundException {
+		ReadContext outer = READ_CONTEXT.get();
+		READ_CONTEXT.set(new ReadContext(this.arena, depth, nCounts));
+		try {
+			return (AbstractTrie) in.readObject();
+		} finally {
+			if (outer == null) READ_CONTEXT.remove();
+			else READ_CONTEXT.set(outer);
+		}
+	}
+
+	/**
+	 * Reads a child node and counts it in this node.
+	 */
+	final AbstractTrie readChild(ObjectInput in, AbstractTrie child, int depth, CountOfCounts nCounts) throws IOException, ClassNotFoundException {
+		child.readNode(in, depth + 1, nCounts);
+		addCountAt(1 + Math.min(child.getCount(), COUNT_OF_COUNTS_CUTOFF), 1);
+		return child;
+	}
+
+	/**
+	 * Reads a suffix array of the given length straight into the arena and counts it in this node.
+	 * @return address of the suffix.
+	 */
+	final int readSuffix(ObjectInput in, int length, int depth, CountOfCounts nCounts) throws IOException {
+		int suffix = this.arena.allocateSuffix(length);
+		int[] page = this.arena.suffixPage(suffix);
+		int start = IntArena.suffixStart(suffix);
+		for (int i = start; i < start + length; i++) page[i] = in.readInt();
+		int count = page[start];
+		for (int n = depth + 1; n <= depth + length; n++) nCounts.update(n, count, count);
+		addCountAt(1 + Math.min(count, COUNT_OF_COUNTS_CUTOFF), 1);
+		return suffix;
+	}
+
+	final void writeSuffix(ObjectOutput out, int suffix) throws IOException {
+		int[] page = this.arena.suffixPage(suffix);
+		int start = IntArena.suffixStart(suffix);
+		int length = this.arena.suffixLength(suffix);
+		out.writeInt(length);
+		for (int i = start; i < start + length; i++) out.writeInt(page[i]);
+	}
+
+	/**
+	 * Reads a node at the given depth, n-grams ending in the node and its subtree are added to {@code nCounts}.
+	 */
+	abstract void readNode(ObjectInput in, int depth, CountOfCounts nCounts) throws IOException, ClassNotFoundException;
 	public abstract void writeExternal(ObjectOutput out) throws IOException;
 
 	/*
@@ -61,58 +184,143 @@ public abstract class AbstractTrie implements Counter {
 	 */
 	@Override
 	public final int getCount() {
-		return this.counts[0];
+		return countAt(0);
 	}
 	
+	final int countAt(int index) {
+		return this.arena.get(this.countsRecord, index);
+	}
+
+	final void setCountAt(int index, int value) {
+		this.arena.set(this.countsRecord, index, value);
+	}
+
+	final void addCountAt(int index, int delta) {
+		this.arena.add(this.countsRecord, index, delta);
+	}
+
 	final int getCount(Object successor) {
 		if (successor == null) return 0;
 		else if (successor instanceof AbstractTrie) return ((AbstractTrie) successor).getCount();
 		else return ((int[]) successor)[0];
 	}
+
+	final int countOf(int key) {
+		AbstractTrie child = getChild(key);
+		if (child != null) return child.getCount();
+		int suffix = getSuffix(key);
+		return suffix == IntArena.NO_SUFFIX ? 0 : this.arena.suffixCount(suffix);
+	}
 	
 	public final int getContextCount() {
-		return this.counts[1];
+		return countAt(1);
+	}
+
+	final List<Integer> getTopSuccessorsInternal(int limit) {
+		SuccessorOrder order = this.successorOrder;
+		if (order == null) order = SuccessorOrder.of(this);
+		return order.getTop(limit);
+	}
+
+	/**
+	 * Builds the order of successors of a node that was filled without updates, e.g. read from a file.
+	 */
+	final void initSuccessorOrder() {
+		this.successorOrder = size() > ORDERED_SUCCESSORS_THRESHOLD ? SuccessorOrder.of(this) : null;
+	}
+
+	/**
+	 * Returns the counts record of a removed node to the arena.
+	 */
+	final void release() {
+		this.arena.release(this.countsRecord);
 	}
 
 	@Override
 	public final int getCountOfCount(int n, int count) {
-		int minN = Math.min(n, nCounts.length) - 1;
-		int minC = Math.min(count, nCounts[minN].length) - 1;
-		return nCounts[minN][minC];
+		return getCountOfCounts().get(n, count);
+	}
+
+	final synchronized CountOfCounts getCountOfCounts() {
+		if (this.countOfCounts == null) this.countOfCounts = new CountOfCounts();
+		return this.countOfCounts;
 	}
 	
 	@Override
 	public final long[] getCounts(List<Integer> indices) {
-		if (indices.isEmpty()) return new long[] { getCount(), getCount() };
-		return getCounts(indices, 0);
-	}
-
-	private long[] getCounts(List<Integer> indices, int index) {
-		Integer next = indices.get(index);
-		Object succ = this.getSuccessor(next);
-		boolean nearLast = index == indices.size() - 1;
-		// Recurse if applicable
-		if ((succ instanceof AbstractTrie successor)) {
-			if (!nearLast) return successor.getCounts(indices, index + 1);
-			else return new long[] { successor.getCount(), this.counts[1] };
-		}
-		// Else, return counts from array if present
 		long[] counts = new long[2];
-		if (nearLast) counts[1] = this.counts[1];
-		if (succ != null) {
-			int[] successor = (int[]) succ;
-			if (ArrayStorage.checkPartialSequence(indices, index, successor)) {
-				counts[0] = successor[0];
-				if (!nearLast) counts[1] = counts[0];
+		getCounts(ArrayStorage.toArray(indices), 0, indices.size(), counts);
+		return counts;
+	}
+
+	@Override
+	public final void getCounts(int[] indices, int offset, int length, long[] counts) {
+		if (length == 0) {
+			counts[0] = counts[1] = getCount();
+			return;
+		}
+		int end = offset + length;
+		AbstractTrie node = this;
+		for (int index = offset; ; index++) {
+			AbstractTrie child = node.getChild(indices[index]);
+			boolean nearLast = index == end - 1;
+			// Descend if applicable
+			if (child != null) {
+				if (!nearLast) {
+					node = child;
+					continue;
+				}
+				counts[0] = child.getCount();
+				counts[1] = node.countAt(1);
+				return;
 			}
-			else if (!nearLast && successor.length >= indices.size() - index
-					&& ArrayStorage.checkPartialSequence(indices.subList(0, indices.size() - 1), index, successor)) {
-				counts[1] = successor[0];
+			// Else, return counts from array if present
+			counts[0] = 0;
+			counts[1] = nearLast ? node.countAt(1) : 0;
+			int suffix = node.getSuffix(indices[index]);
+			if (suffix != IntArena.NO_SUFFIX) {
+				int[] page = this.arena.suffixPage(suffix);
+				int start = IntArena.suffixStart(suffix);
+				int suffixLength = this.arena.suffixLength(suffix);
+				if (ArrayStorage.checkPartialSequence(indices, index, end, page, start, suffixLength)) {
+					counts[0] = page[start];
+					if (!nearLast) counts[1] = counts[0];
+				}
+				else if (!nearLast && suffixLength >= end - index
+						&& ArrayStorage.checkPartialSequence(indices, index, end - 1, page, start, suffixLength)) {
+					counts[1] = page[start];
+				}
 			}
+			return;
 		}
-		return counts;
 	}
 	
+	@Override
+	public final void getPrefixCounts(int[] indices, int offset, int length, long[] counts) {
+		Arrays.fill(counts, 0, 2 * length, 0);
+		int end = offset + length;
+		AbstractTrie node = this;
+		for (int index = offset; index < end; index++) {
+			int i = index - offset;
+			counts[2 * i + 1] = node.countAt(1);
+			AbstractTrie child = node.getChild(indices[index]);
+			if (child != null) {
+				counts[2 * i] = child.getCount();
+				node = child;
+				continue;
+			}
+			int suffix = node.getSuffix(indices[index]);
+			if (suffix != IntArena.NO_SUFFIX) {
+				int[] page = this.arena.suffixPage(suffix);
+				int start = IntArena.suffixStart(suffix);
+				counts[2 * i] = page[start];
+				ArrayStorage.fillPrefixCounts(indices, offset, index, end, page, start, this.arena.suffixLength(suffix), counts);
+			}
+			// Nothing is stored deeper than the array
+			break;
+		}
+	}
+
 	@Override
 	public final int[] getDistinctCounts(int range, List<Integer> indices) {
 		return getDistinctCounts(range, indices, 0);
@@ -138,8 +346,8 @@ public abstract class AbstractTrie implements Counter {
 		} else {
 			int[] distinctCounts = new int[range];
 			int totalDistinct = this.getSuccessorCount();
-			for (int i = 2; i < this.counts.length - 1 && i - 1 < range; i++) {
-				int countOfCountsI = this.counts[i];
+			for (int i = 2; i < this.arena.recordSize() - 1 && i - 1 < range; i++) {
+				int countOfCountsI = countAt(i);
 				distinctCounts[i - 2] = countOfCountsI;
 				totalDistinct -= countOfCountsI;
 			}
@@ -150,7 +358,7 @@ public abstract class AbstractTrie implements Counter {
 
 	@Override
 	public final int getSuccessorCount() {
-		return Arrays.stream(this.counts).skip(2).sum();
+		return this.arena.sum(this.countsRecord, 2);
 	}
 
 	@Override
@@ -181,6 +389,27 @@ public abstract class AbstractTrie implements Counter {
 		}
 	}
 
+	/**
+	 * @return how many times exactly this sequence was counted, not counting longer sequences starting with it.
+	 */
+	public final int getSequenceCount(int[] indices) {
+		AbstractTrie node = this;
+		for (int index = 0; index < indices.length; index++) {
+			AbstractTrie child = node.getChild(indices[index]);
+			if (child != null) {
+				node = child;
+				continue;
+			}
+			int suffix = node.getSuffix(indices[index]);
+			if (suffix == IntArena.NO_SUFFIX) return 0;
+			int[] page = this.arena.suffixPage(suffix);
+			int start = IntArena.suffixStart(suffix);
+			return ArrayStorage.checkExactSequence(indices, index, indices.length, page, start, this.arena.suffixLength(suffix))
+					? page[start] : 0;
+		}
+		return node.countAt(0) - node.countAt(1);
+	}
+
 	@Override
 	public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
 		Object successor = getSuccessorNode(indices, 0);
@@ -207,133 +436,197 @@ public abstract class AbstractTrie implements Counter {
 		update(indices, -1);
 	}
 
+	/**
+	 * Counts n-grams of a whole file at once, in lexicographic order.
+	 */
+	@Override
+	public final void countBatch(List<List<Integer>> indices) {
+		updateBatch(indices, 1);
+	}
+
+	/**
+	 * Forgets n-grams of a whole file at once, in lexicographic order.
+	 */
+	@Override
+	public final void unCountBatch(List<List<Integer>> indices) {
+		updateBatch(indices, -1);
+	}
+
+	public final void updateBatch(List<List<Integer>> indices, int adj) {
+		SortedBatch batch = new SortedBatch(indices);
+		CountOfCounts nCounts = getCountOfCounts();
+		for (int i = 0; i < batch.size(); i++) {
+			int offset = batch.offset(i);
+			update(batch.tokens, offset, offset + batch.length(i), offset, adj, nCounts);
+		}
+	}
+
 	public final void updateCount(int adj) {
 		update(Collections.emptyList(), adj);
 	}
 
 	public final void update(List<Integer> indices, int adj) {
-		update(indices, 0, adj);
+		update(ArrayStorage.toArray(indices), 0, indices.size(), adj);
+	}
+
+	public final void update(int[] indices, int offset, int length, int adj) {
+		update(indices, offset, offset + length, offset, adj, getCountOfCounts());
 	}
 	
-	private synchronized void update(List<Integer> indices, int index, int adj) {
-		if (index < indices.size()) {
-			int key = indices.get(index);
-			Object successor = getSuccessor(key);
-			if (successor != null) this.updateSuccessor(indices, index, adj, successor);
-			else this.addArray(indices, index, adj);
+	/**
+	 * Adds all n-gram counts of another counter to this one, e.g. to combine shards trained in parallel.
+	 * Sequences of the other counter are replayed through {@link #update(List, int)},
+	 * so successor maps, suffix arrays and counts of counts end up the same as if they were counted here.
+	 */
+	public final void merge(Counter other) {
+		forEachSequence(other, this::update);
+	}
+
+	/**
+	 * Visits every sequence stored in the counter together with the number of times it was counted
+	 * (not as a prefix of a longer sequence).
+	 */
+	static void forEachSequence(Counter counter, ObjIntConsumer<List<Integer>> consumer) {
+		if (counter instanceof AbstractTrie trie) {
+			forEachSequence(trie, new ArrayList<>(), consumer);
+		} else if (counter instanceof ConcurrentTrieCounter concurrentCounter) {
+			for (AbstractTrie stripe : concurrentCounter.getStripes()) forEachSequence(stripe, new ArrayList<>(), consumer);
+		} else if (counter instanceof PersistentCounter persistentCounter) {
+			persistentCounter.forEachSequence(consumer);
+		} else {
+			throw new IllegalArgumentException("Can't merge counter of type " + counter.getClass().getName());
+		}
+	}
+
+	private static void forEachSequence(AbstractTrie node, List<Integer> path, ObjIntConsumer<List<Integer>> consumer) {
+		int ownCount = node.countAt(0) - node.countAt(1);
+		if (ownCount != 0) consumer.accept(path, ownCount);
+		for (int key : node.getSuccessors()) {
+			Object succ = node.getSuccessor(key);
+			if (succ == null) continue;
+			path.add(key);
+			if (succ instanceof AbstractTrie successor) {
+				forEachSequence(successor, path, consumer);
+			} else {
+				int[] successor = (int[]) succ;
+				for (int i = 1; i < successor.length; i++) path.add(successor[i]);
+				if (successor[0] != 0) consumer.accept(path, successor[0]);
+				path.subList(path.size() - successor.length + 1, path.size()).clear();
+			}
+			path.remove(path.size() - 1);
 		}
-		this.counts[0] += adj;
-		if (index != indices.size()) this.counts[1] += adj;
-		updateNCounts(index, this.getCount(), adj);
 	}
 
-	private void updateSuccessor(List<Integer> indices, int index, int adj, Object succ) {
-		if (succ instanceof AbstractTrie) updateTrie(indices, index, adj, succ);
-		else updateArray(indices, index, adj, succ);
+	private synchronized void update(int[] indices, int offset, int end, int index, int adj, CountOfCounts nCounts) {
+		if (index < end) {
+			int key = indices[index];
+			AbstractTrie child = getChild(key);
+			if (child != null) this.updateTrie(indices, offset, end, index, adj, child, nCounts);
+			else {
+				int suffix = getSuffix(key);
+				if (suffix != IntArena.NO_SUFFIX) this.updateSuffix(indices, offset, end, index, adj, suffix, nCounts);
+				else this.addSuffix(indices, offset, end, index, adj, nCounts);
+			}
+		}
+		addCountAt(0, adj);
+		if (index != end) addCountAt(1, adj);
+		nCounts.update(index - offset, this.getCount(), adj);
 	}
 
-	private void updateTrie(List<Integer> indices, int index, int adj, Object succ) {
-		AbstractTrie next = (AbstractTrie) succ;
+	private void updateTrie(int[] indices, int offset, int end, int index, int adj, AbstractTrie next, CountOfCounts nCounts) {
 		if (next instanceof ArrayTrieCounter arrayCounter) {
 			if (arrayCounter.indices.length > 10) {
-				next = promoteArrayToMap(indices, index, arrayCounter);
+				next = promoteArrayToMap(indices[index], arrayCounter);
 			}
 		}
-		next.update(indices, index + 1, adj);
-		updateCoCs(next.getCount(), adj);
+		next.update(indices, offset, end, index + 1, adj, nCounts);
+		updateSuccessorCount(indices[index], next.getCount(), adj);
 		if (next.getCount() == 0) {
-			this.removeSuccessor(indices.get(index));
+			this.removeSuccessor(indices[index]);
+			next.release();
 		}
 	}
 
-	private void updateArray(List<Integer> indices, int index, int adj, Object succ) {
-		int[] successor = (int[]) succ;
-		boolean valid = ArrayStorage.checkExactSequence(indices, index, successor);
-		if (valid) updateArrayCount(indices, index, adj, successor);
+	private void updateSuffix(int[] indices, int offset, int end, int index, int adj, int suffix, CountOfCounts nCounts) {
+		boolean valid = ArrayStorage.checkExactSequence(indices, index, end,
+				this.arena.suffixPage(suffix), IntArena.suffixStart(suffix), this.arena.suffixLength(suffix));
+		if (valid) updateSuffixCount(indices, offset, end, index, adj, suffix, nCounts);
 		else {
-			AbstractTrie newNext = promoteArrayToTrie(indices, index, successor);
-			updateTrie(indices, index, adj, newNext);
+			AbstractTrie newNext = promoteSuffixToTrie(indices[index], index - offset, suffix);
+			updateTrie(indices, offset, end, index, adj, newNext, nCounts);
 		}
 	}
 
-	private void updateArrayCount(List<Integer> indices, int index, int adj, int[] successor) {
-		successor[0] += adj;
-		if (successor[0] == 0) {
-			this.removeSuccessor(indices.get(index));
+	private void updateSuffixCount(int[] indices, int offset, int end, int index, int adj, int suffix, CountOfCounts nCounts) {
+		this.arena.addSuffixCount(suffix, adj);
+		int count = this.arena.suffixCount(suffix);
+		if (count == 0) {
+			this.removeSuccessor(indices[index]);
+			this.arena.releaseSuffix(suffix);
 		}
-		updateCoCs(successor[0], adj);
-		for (int i = index + 1; i <= indices.size(); i++) {
-			updateNCounts(i, successor[0], adj);
+		updateSuccessorCount(indices[index], count, adj);
+		for (int i = index + 1; i <= end; i++) {
+			nCounts.update(i - offset, count, adj);
 		}
 	}
 
-	private AbstractTrie promoteArrayToMap(List<Integer> indices, int index, ArrayTrieCounter counter) {
-		AbstractTrie newNext = new MapTrieCounter();
-		newNext.counts = counter.counts;
+	private AbstractTrie promoteArrayToMap(int key, ArrayTrieCounter counter) {
+		AbstractTrie newNext = new MapTrieCounter(this.arena);
+		newNext.release();
+		newNext.countsRecord = counter.countsRecord;
 		for (int i = 0; i < counter.indices.length; i++) {
 			int ix = counter.indices[i];
 			if (ix == Integer.MAX_VALUE) continue;
-			Object successor = counter.successors[i];
-			newNext.putSuccessor(ix, successor);
+			if (counter.children[i] != null) newNext.putChild(ix, counter.children[i]);
+			else newNext.putSuffix(ix, counter.suffixes[i]);
 		}
-		this.putSuccessor(indices.get(index), newNext);
+		newNext.initSuccessorOrder();
+		this.putChild(key, newNext);
 		return newNext;
 	}
-		
-	private AbstractTrie promoteArrayToTrie(List<Integer> indices, int index, int[] successor) {
-		AbstractTrie newNext = makeNext(index);
-		newNext.updateCount(successor[0]);
-		if (successor.length > 1) {
-			newNext.counts[1] = newNext.counts[0];
-			int[] temp = Arrays.copyOfRange(successor, 1, successor.length);
-			temp[0] = successor[0];
-			newNext.putSuccessor(successor[1], temp);
+
+	private AbstractTrie promoteSuffixToTrie(int key, int depth, int suffix) {
+		AbstractTrie newNext = makeNext(depth);
+		int count = this.arena.suffixCount(suffix);
+		newNext.addCountAt(0, count);
+		if (this.arena.suffixLength(suffix) > 1) {
+			newNext.setCountAt(1, count);
+			int next = this.arena.suffixPage(suffix)[IntArena.suffixStart(suffix) + 1];
+			newNext.putSuffix(next, this.arena.allocateSuffix(count, suffix, 2));
 			if (COUNT_OF_COUNTS_CUTOFF > 0) {
-				newNext.counts[1 + Math.min(temp[0], COUNT_OF_COUNTS_CUTOFF)]++;
+				newNext.addCountAt(1 + Math.min(count, COUNT_OF_COUNTS_CUTOFF), 1);
 			}
 		}
-		this.putSuccessor(indices.get(index), newNext);
+		this.putChild(key, newNext);
+		this.arena.releaseSuffix(suffix);
 		return newNext;
 	}
 
-	private void addArray(List<Integer> indices, int index, int adj) {
+	private void addSuffix(int[] indices, int offset, int end, int index, int adj, CountOfCounts nCounts) {
 		if (adj < 0) {
-			//System.out.println("Attempting to forget unknown event: " + indices.subList(index, indices.size()));
+			//System.out.println("Attempting to forget unknown event: " + Arrays.toString(Arrays.copyOfRange(indices, index, end)));
 			return;
 		}
-		int[] singleton = new int[indices.size() - index];
-		singleton[0] = adj;
-		for (int i = 1; i < singleton.length; i++) {
-			singleton[i] = indices.get(index + i);
-		}
-		putSuccessor(indices.get(index), singleton);
-		updateCoCs(adj, adj);
-		for (int i = index + 1; i <= indices.size(); i++) {
-			updateNCounts(i, adj, adj);
+		putSuffix(indices[index], this.arena.allocateSuffix(adj, indices, index + 1, end));
+		updateSuccessorCount(indices[index], adj, adj);
+		for (int i = index + 1; i <= end; i++) {
+			nCounts.update(i - offset, adj, adj);
 		}
 	}
 
-	private static void updateNCounts(int n, int count, int adj) {
-		if (n == 0) return;
-		if (n > ModelRunner.DEFAULT_NGRAM_ORDER) return;
-		int[] toUpdate = nCounts[n - 1];
-		int currIndex = Math.min(count, toUpdate.length);
-		int prevIndex = Math.min(count - adj, toUpdate.length);
-		if (currIndex != prevIndex) {
-			boolean updateCurr = currIndex > 0;
-			boolean updatePrev = prevIndex > 0;
-			if (updateCurr) toUpdate[currIndex - 1]++;
-			if (updatePrev) toUpdate[prevIndex - 1]--;	
-		}
+	private void updateSuccessorCount(int key, int count, int adj) {
+		updateCoCs(count, adj);
+		if (this.successorOrder != null) this.successorOrder.update(key, count - adj, count);
+		else if (count == adj && size() > ORDERED_SUCCESSORS_THRESHOLD) this.successorOrder = SuccessorOrder.of(this);
 	}
-	
+
 	private void updateCoCs(int count, int adj) {
 		if (COUNT_OF_COUNTS_CUTOFF == 0) return;
 		int currIndex = Math.min(count, COUNT_OF_COUNTS_CUTOFF);
 		int prevIndex = Math.min(count - adj, COUNT_OF_COUNTS_CUTOFF);
 		if (currIndex != prevIndex) {
-			if (currIndex >= 1) this.counts[currIndex + 1]++;
-			if (prevIndex >= 1) this.counts[prevIndex + 1]--;
+			if (currIndex >= 1) addCountAt(currIndex + 1, 1);
+			if (prevIndex >= 1) addCountAt(prevIndex + 1, -1);
 		}
 	}
 }
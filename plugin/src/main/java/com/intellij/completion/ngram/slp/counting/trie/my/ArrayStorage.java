@@ -25,7 +25,7 @@ public class ArrayStorage {
 		boolean valid = successor.length == indices.size() - index;
 		if (valid) {
 			for (int i = 1; i < successor.length; i++) {
-				if (indices.get(index + i) != successor[i]) {
+				if (indices.get(index + i).intValue() != successor[i]) {
 					valid = false;
 					break;
 				}
@@ -34,11 +34,30 @@ public class ArrayStorage {
 		return valid;
 	}
 
+	/**
+	 * Same as {@link #checkExactSequence(List, int, int[])} for the sequence {@code indices[..end)}.
+	 */
+	public static boolean checkExactSequence(int[] indices, int index, int end, int[] successor) {
+		return checkExactSequence(indices, index, end, successor, 0, successor.length);
+	}
+
+	/**
+	 * Same as {@link #checkExactSequence(int[], int, int, int[])}
+	 * for the successor stored in {@code successor[start..start + length)}.
+	 */
+	public static boolean checkExactSequence(int[] indices, int index, int end, int[] successor, int start, int length) {
+		if (length != end - index) return false;
+		for (int i = 1; i < length; i++) {
+			if (indices[index + i] != successor[start + i]) return false;
+		}
+		return true;
+	}
+
 	public static boolean checkPartialSequence(List<Integer> indices, int index, int[] successor) {
 		boolean valid = successor.length >= indices.size() - index;
 		if (valid) {
 			for (int i = 1; i < indices.size() - index; i++) {
-				if (indices.get(index + i) != successor[i]) {
+				if (indices.get(index + i).intValue() != successor[i]) {
 					valid = false;
 					break;
 				}
@@ -46,4 +65,54 @@ public class ArrayStorage {
 		}
 		return valid;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Same as {@link #checkPartialSequence(List, int, int[])} for the sequence {@code indices[..end)}.
+	 */
+	public static boolean checkPartialSequence(int[] indices, int index, int end, int[] successor) {
+		return checkPartialSequence(indices, index, end, successor, 0, successor.length);
+	}
+
+	/**
+	 * Same as {@link #checkPartialSequence(int[], int, int, int[])}
+	 * for the successor stored in {@code successor[start..start + length)}.
+	 */
+	public static boolean checkPartialSequence(int[] indices, int index, int end, int[] successor, int start, int length) {
+		if (length < end - index) return false;
+		for (int i = 1; i < end - index; i++) {
+			if (indices[index + i] != successor[start + i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Fills counts of prefixes of {@code indices[offset..end)} longer than {@code index - offset + 1}
+	 * that end inside the successor array.
+	 * A prefix matching the array has the count of the array, the prefix which diverges from it right after
+	 * its context still has the context count of the array.
+	 *
+	 * @see PrefixCounter#getPrefixCounts(int[], int, int, long[])
+	 */
+	public static void fillPrefixCounts(int[] indices, int offset, int index, int end, int[] successor, long[] counts) {
+		fillPrefixCounts(indices, offset, index, end, successor, 0, successor.length, counts);
+	}
+
+	/**
+	 * Same as {@link #fillPrefixCounts(int[], int, int, int, int[], long[])}
+	 * for the successor stored in {@code successor[start..start + length)}.
+	 */
+	public static void fillPrefixCounts(int[] indices, int offset, int index, int end,
+										int[] successor, int start, int length, long[] counts) {
+		for (int i = index + 1; i < end && i - index < length; i++) {
+			counts[2 * (i - offset) + 1] = successor[start];
+			if (indices[i] != successor[start + i - index]) return;
+			counts[2 * (i - offset)] = successor[start];
+		}
+	}
+
+	public static int[] toArray(List<Integer> indices) {
+		int[] array = new int[indices.size()];
+		for (int i = 0; i < array.length; i++) array[i] = indices.get(i);
+		return array;
+	}
+}
@@ -15,20 +15,19 @@
 
 package com.intellij.completion.ngram.slp.counting.trie.my;
 
-import com.intellij.completion.ngram.slp.util.Pair;
-
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 public class ArrayTrieCounter extends AbstractTrie {
 
 	public int[] indices;
-	public Object[] successors;
+	// Every successor is either a child node or a suffix in the arena, the other one is null or IntArena.NO_SUFFIX
+	public AbstractTrie[] children;
+	public int[] suffixes;
 	private static final double GROWTH_FACTOR = 1.5;
 
 	public ArrayTrieCounter() {
@@ -38,10 +37,18 @@ public class ArrayTrieCounter extends AbstractTrie {
 	public ArrayTrieCounter(int initSize) {
 		super();
 		this.indices = new int[initSize];
-		this.successors = new Object[initSize];
+		this.children = new AbstractTrie[initSize];
+		this.suffixes = new int[initSize];
 		Arrays.fill(this.indices, Integer.MAX_VALUE);
 	}
 
+	ArrayTrieCounter(IntArena arena) {
+		super(arena);
+		this.indices = new int[]{Integer.MAX_VALUE};
+		this.children = new AbstractTrie[1];
+		this.suffixes = new int[1];
+	}
+
 	@Override
 	public List<Integer> getSuccessors() {
 		return Arrays.stream(this.indices)
@@ -50,29 +57,27 @@ public class ArrayTrieCounter extends AbstractTrie {
 				.collect(Collectors.toList());
 	}
 	
-	@Override
-	public List<Integer> getTopSuccessorsInternal(int limit) {
-		return IntStream.range(0, this.indices.length)
-			.filter(i -> this.indices[i] != Integer.MAX_VALUE)
-			.mapToObj(i -> Pair.of(this.indices[i], this.getCount(this.successors[i])))
-			.filter(p -> p.right != null && p.right > 0)
-			.sorted((p1, p2) -> -Integer.compare(p1.right, p2.right))
-			.limit(limit)
-			.map(p -> p.left)
-			.collect(Collectors.toList());
-	}
-
 	@Override
     AbstractTrie makeNext(int depth) {
-		return new ArrayTrieCounter();
+		return new ArrayTrieCounter(this.arena);
 	}
 	
-	public Object getSuccessor(int key) {
+	@Override
+	AbstractTrie getChild(int key) {
 		int ix = getSuccIx(key);
 		if (ix < 0) {
 			return null;
 		}
-		else return this.successors[ix];
+		else return this.children[ix];
+	}
+
+	@Override
+	int getSuffix(int key) {
+		int ix = getSuccIx(key);
+		if (ix < 0) {
+			return IntArena.NO_SUFFIX;
+		}
+		else return this.suffixes[ix];
 	}
 
 	void removeSuccessor(int index) {
@@ -80,34 +85,58 @@ public class ArrayTrieCounter extends AbstractTrie {
 		if (ix >= 0) {
 			if (ix < this.indices.length - 1) {
 				System.arraycopy(this.indices, ix + 1, this.indices, ix, this.indices.length - ix - 1);
-				System.arraycopy(this.successors, ix + 1, this.successors, ix, this.successors.length - ix - 1);
+				System.arraycopy(this.children, ix + 1, this.children, ix, this.children.length - ix - 1);
+				System.arraycopy(this.suffixes, ix + 1, this.suffixes, ix, this.suffixes.length - ix - 1);
 			}
 			this.indices[this.indices.length - 1] = Integer.MAX_VALUE;
+			this.children[this.children.length - 1] = null;
 			int padding = getSuccIx(Integer.MAX_VALUE);
 			if (padding >= 5 && padding < this.indices.length / 2) {
 				this.indices = Arrays.copyOf(this.indices, padding + 1);
-				this.successors = Arrays.copyOf(this.successors, padding + 1);
+				this.children = Arrays.copyOf(this.children, padding + 1);
+				this.suffixes = Arrays.copyOf(this.suffixes, padding + 1);
 			}
 		}
 	}
 
-	void putSuccessor(int key, Object o) {
+	@Override
+	void putChild(int key, AbstractTrie child) {
+		int ix = insertIx(key);
+		this.children[ix] = child;
+		this.suffixes[ix] = IntArena.NO_SUFFIX;
+	}
+
+	@Override
+	void putSuffix(int key, int suffix) {
+		int ix = insertIx(key);
+		this.children[ix] = null;
+		this.suffixes[ix] = suffix;
+	}
+
+	private int insertIx(int key) {
 		int ix = getSuccIx(key);
-		if (ix >= 0) {
-			this.successors[ix] = o;
-		} else {
-			ix = -ix - 1;
-			if (ix >= this.indices.length) grow();
-			if (this.indices[ix] != Integer.MAX_VALUE) {
-				System.arraycopy(this.indices, ix, this.indices, ix + 1, this.indices.length - ix - 1);
-				System.arraycopy(this.successors, ix, this.successors, ix + 1, this.successors.length - ix - 1);
-			}
-			this.indices[ix] = key;
-			this.successors[ix] = o;
-			if (this.indices[this.indices.length - 1] != Integer.MAX_VALUE) {
-				grow();
-			}
+		if (ix >= 0) return ix;
+		ix = -ix - 1;
+		if (ix >= this.indices.length) grow();
+		if (this.indices[ix] != Integer.MAX_VALUE) {
+			System.arraycopy(this.indices, ix, this.indices, ix + 1, this.indices.length - ix - 1);
+			System.arraycopy(this.children, ix, this.children, ix + 1, this.children.length - ix - 1);
+			System.arraycopy(this.suffixes, ix, this.suffixes, ix + 1, this.suffixes.length - ix - 1);
+		}
+		this.indices[ix] = key;
+		if (this.indices[this.indices.length - 1] != Integer.MAX_VALUE) {
+			grow();
 		}
+		return ix;
+	}
+
+	@Override
+	int size() {
+		int size = 0;
+		for (int index : this.indices) {
+			if (index != Integer.MAX_VALUE) size++;
+		}
+		return size;
 	}
 
 	/*
@@ -126,54 +155,64 @@ public class ArrayTrieCounter extends AbstractTrie {
 		int newLen = (int) (this.indices.length * GROWTH_FACTOR + 1);
 		if (newLen == oldLen - 1) newLen++;
 		this.indices = Arrays.copyOf(this.indices, newLen);
-		this.successors = Arrays.copyOf(this.successors, newLen);
+		this.children = Arrays.copyOf(this.children, newLen);
+		this.suffixes = Arrays.copyOf(this.suffixes, newLen);
 		for (int i = oldLen; i < this.indices.length; i++) this.indices[i] = Integer.MAX_VALUE;
 	}
 
 	@Override
-	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-		this.counts = new int[2 + COUNT_OF_COUNTS_CUTOFF];
-		this.counts[0] = in.readInt();
-		this.counts[1] = in.readInt();
+	void readNode(ObjectInput in, int depth, CountOfCounts nCounts) throws IOException, ClassNotFoundException {
+		this.arena.clear(this.countsRecord);
+		setCountAt(0, in.readInt());
+		setCountAt(1, in.readInt());
+		nCounts.update(depth, getCount(), getCount());
 		int successors = in.readInt();
 		this.indices = new int[successors + 1];
-		this.successors = new Object[successors + 1];
+		this.children = new AbstractTrie[successors + 1];
+		this.suffixes = new int[successors + 1];
 		this.indices[successors] = Integer.MAX_VALUE;
 		int pos = 0;
 		for (; pos < successors; pos++) {
 			int key = in.readInt();
 			int code = in.readInt();
-			Object value;
-			if (code < 0) {
-				value = in.readObject();
-				this.counts[1 + Math.min(((AbstractTrie) value).getCount(), COUNT_OF_COUNTS_CUTOFF)]++;
+			this.indices[pos] = key;
+			this.suffixes[pos] = IntArena.NO_SUFFIX;
+			if (code == -1) {
+				// Old files keep child nodes as serialized objects, they are read into the arena of this trie as well
+				AbstractTrie child = readLegacyChild(in, depth + 1, nCounts);
+				addCountAt(1 + Math.min(child.getCount(), COUNT_OF_COUNTS_CUTOFF), 1);
+				this.children[pos] = child;
+			}
+			else if (code < 0) {
+				AbstractTrie child;
+				if (code == -2) child = new ArrayTrieCounter(this.arena);
+				else child = new MapTrieCounter(this.arena);
+				this.children[pos] = readChild(in, child, depth, nCounts);
 			}
 			else {
-				value = new int[code];
-				for (int j = 0; j < code; j++) ((int[]) value)[j] = in.readInt();
-				this.counts[1 + Math.min(((int[]) value)[0], COUNT_OF_COUNTS_CUTOFF)]++;
+				this.suffixes[pos] = readSuffix(in, code, depth, nCounts);
 			}
-			this.indices[pos] = key;
-			this.successors[pos] = value;
 		}
+		initSuccessorOrder();
 	}
 
 	@Override
 	public void writeExternal(ObjectOutput out) throws IOException {
-		out.writeInt(this.counts[0]);
-		out.writeInt(this.counts[1]);
+		out.writeInt(getCount());
+		out.writeInt(getContextCount());
 		out.writeInt(this.getSuccessorCount());
 		for (int i = 0; i < this.indices.length; i++) {
 			if (this.indices[i] == Integer.MAX_VALUE) continue;
 			out.writeInt(this.indices[i]);
-			Object o = this.successors[i];
-			if (o instanceof int[] arr) {
-				out.writeInt(arr.length);
-				for (int value : arr) out.writeInt(value);
+			AbstractTrie child = this.children[i];
+			if (child == null) {
+				writeSuffix(out, this.suffixes[i]);
 			}
 			else {
-				out.writeInt(-1);
-				out.writeObject(o);
+				// Children are written inline, -1 is left for old files which serialized them as objects
+				if (child instanceof ArrayTrieCounter) out.writeInt(-2);
+				else out.writeInt(-3);
+				child.writeExternal(out);
 			}
 		}
 	}
@@ -0,0 +1,330 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import com.intellij.completion.ngram.slp.counting.Counter;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Counter that can be trained from many threads at once.
+ * The root of the trie is split into stripes by the first token of an n-gram,
+ * every stripe is an ordinary {@link AbstractTrie} guarded by its own read-write lock.
+ * Totals of the root are kept in atomics and all stripes share one {@link CountOfCounts},
+ * so no global lock is taken neither on counting nor on querying.
+ */
+public class ConcurrentTrieCounter implements PrefixCounter {
+    private static final int STRIPES = 64;
+    private static final int STRIPE_MASK = STRIPES - 1;
+
+    private final Supplier<AbstractTrie> stripeFactory;
+    private AbstractTrie[] stripes;
+    private final ReadWriteLock[] locks = new ReadWriteLock[STRIPES];
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicInteger contextCount = new AtomicInteger();
+    private final CountOfCounts countOfCounts = new CountOfCounts();
+
+    public ConcurrentTrieCounter() {
+        this(MapTrieCounter::new);
+    }
+
+    public ConcurrentTrieCounter(Supplier<AbstractTrie> stripeFactory) {
+        this.stripeFactory = stripeFactory;
+        this.stripes = new AbstractTrie[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = stripeFactory.get();
+            stripes[i].countOfCounts = countOfCounts;
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private static int stripeOf(List<Integer> indices) {
+        return indices.isEmpty() ? 0 : indices.get(0) & STRIPE_MASK;
+    }
+
+    /**
+     * Roots of the stripes. Successors of different stripes don't intersect.
+     */
+    public AbstractTrie[] getStripes() {
+        return stripes;
+    }
+
+    /**
+     * @return successor of the root, it is looked up without locking.
+     */
+    Object getSuccessor(int key) {
+        return stripes[key & STRIPE_MASK].getSuccessor(key);
+    }
+
+    /**
+     * Runs the action while no stripe is updated, so other threads may read the stripes without locks meanwhile.
+     * The action mustn't update the counter.
+     */
+    public void withoutUpdates(Runnable action) {
+        for (ReadWriteLock lock : locks) lock.readLock().lock();
+        try {
+            action.run();
+        } finally {
+            for (int i = STRIPES - 1; i >= 0; i--) locks[i].readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return count.get();
+    }
+
+    public int getContextCount() {
+        return contextCount.get();
+    }
+
+    @Override
+    public long[] getCounts(List<Integer> indices) {
+        if (indices.isEmpty()) return new long[]{getCount(), getCount()};
+        int stripe = stripeOf(indices);
+        long[] counts;
+        locks[stripe].readLock().lock();
+        try {
+            counts = stripes[stripe].getCounts(indices);
+        } finally {
+            locks[stripe].readLock().unlock();
+        }
+//        Context of an unigram is the whole root, not just the stripe
+        if (indices.size() == 1) counts[1] = getContextCount();
+        return counts;
+    }
+
+    @Override
+    public void getCounts(int[] indices, int offset, int length, long[] counts) {
+        if (length == 0) {
+            counts[0] = counts[1] = getCount();
+            return;
+        }
+        int stripe = indices[offset] & STRIPE_MASK;
+        locks[stripe].readLock().lock();
+        try {
+            stripes[stripe].getCounts(indices, offset, length, counts);
+        } finally {
+            locks[stripe].readLock().unlock();
+        }
+        if (length == 1) counts[1] = getContextCount();
+    }
+
+    @Override
+    public void getPrefixCounts(int[] indices, int offset, int length, long[] counts) {
+        if (length == 0) return;
+        int stripe = indices[offset] & STRIPE_MASK;
+        locks[stripe].readLock().lock();
+        try {
+            stripes[stripe].getPrefixCounts(indices, offset, length, counts);
+        } finally {
+            locks[stripe].readLock().unlock();
+        }
+        counts[1] = getContextCount();
+    }
+
+    @Override
+    public int getCountOfCount(int n, int count) {
+        return countOfCounts.get(n, count);
+    }
+
+    @Override
+    public int getSuccessorCount() {
+        int successors = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i].readLock().lock();
+            try {
+                successors += stripes[i].getSuccessorCount();
+            } finally {
+                locks[i].readLock().unlock();
+            }
+        }
+        return successors;
+    }
+
+    @Override
+    public int getSuccessorCount(List<Integer> indices) {
+        if (indices.isEmpty()) return getSuccessorCount();
+        int stripe = stripeOf(indices);
+        locks[stripe].readLock().lock();
+        try {
+            return stripes[stripe].getSuccessorCount(indices);
+        } finally {
+            locks[stripe].readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
+        if (!indices.isEmpty()) {
+            int stripe = stripeOf(indices);
+            locks[stripe].readLock().lock();
+            try {
+                return stripes[stripe].getTopSuccessors(indices, limit);
+            } finally {
+                locks[stripe].readLock().unlock();
+            }
+        }
+        List<int[]> candidates = new ArrayList<>();
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i].readLock().lock();
+            try {
+                for (int key : stripes[i].getTopSuccessorsInternal(limit)) {
+                    candidates.add(new int[]{key, stripes[i].countOf(key)});
+                }
+            } finally {
+                locks[i].readLock().unlock();
+            }
+        }
+        candidates.sort((c1, c2) -> c1[1] != c2[1] ? -Integer.compare(c1[1], c2[1]) : Integer.compare(c1[0], c2[0]));
+        List<Integer> topSuccessors = new ArrayList<>();
+        for (int i = 0; i < Math.min(limit, candidates.size()); i++) topSuccessors.add(candidates.get(i)[0]);
+        return topSuccessors;
+    }
+
+    @Override
+    public int[] getDistinctCounts(int range, List<Integer> indices) {
+        if (!indices.isEmpty()) {
+            int stripe = stripeOf(indices);
+            locks[stripe].readLock().lock();
+            try {
+                return stripes[stripe].getDistinctCounts(range, indices);
+            } finally {
+                locks[stripe].readLock().unlock();
+            }
+        }
+        int[] distinctCounts = new int[range];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i].readLock().lock();
+            try {
+                int[] stripeCounts = stripes[i].getDistinctCounts(range, indices);
+                for (int j = 0; j < range; j++) distinctCounts[j] += stripeCounts[j];
+            } finally {
+                locks[i].readLock().unlock();
+            }
+        }
+        return distinctCounts;
+    }
+
+    /*
+     * Updater Methods
+     */
+    @Override
+    public void count(List<Integer> indices) {
+        update(indices, 1);
+    }
+
+    @Override
+    public void unCount(List<Integer> indices) {
+        update(indices, -1);
+    }
+
+    @Override
+    public void countBatch(List<List<Integer>> indices) {
+        updateBatch(indices, 1);
+    }
+
+    @Override
+    public void unCountBatch(List<List<Integer>> indices) {
+        updateBatch(indices, -1);
+    }
+
+    /**
+     * Adds all n-gram counts of another counter to this one.
+     *
+     * @see AbstractTrie#merge(Counter)
+     */
+    public void merge(Counter other) {
+        AbstractTrie.forEachSequence(other, this::update);
+    }
+
+    private void update(List<Integer> indices, int adj) {
+        int stripe = stripeOf(indices);
+        locks[stripe].writeLock().lock();
+        try {
+            updateStripe(stripe, indices, adj);
+        } finally {
+            locks[stripe].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Groups n-grams by stripes, so lock of every stripe is taken only once per batch,
+     * and applies every group as a sorted batch.
+     */
+    private void updateBatch(List<List<Integer>> indices, int adj) {
+        List<List<List<Integer>>> byStripe = new ArrayList<>(Collections.nCopies(STRIPES, null));
+        for (List<Integer> ngram : indices) {
+            int stripe = stripeOf(ngram);
+            if (byStripe.get(stripe) == null) byStripe.set(stripe, new ArrayList<>());
+            byStripe.get(stripe).add(ngram);
+        }
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            if (byStripe.get(stripe) == null) continue;
+            locks[stripe].writeLock().lock();
+            try {
+                updateStripeBatch(stripe, byStripe.get(stripe), adj);
+            } finally {
+                locks[stripe].writeLock().unlock();
+            }
+        }
+    }
+
+    private void updateStripe(int stripe, List<Integer> indices, int adj) {
+        AbstractTrie root = stripes[stripe];
+        int oldCount = root.getCount();
+        int oldContextCount = root.getContextCount();
+        root.update(indices, adj);
+//        Take deltas from the stripe itself, so totals always agree with the stripes
+        count.addAndGet(root.getCount() - oldCount);
+        contextCount.addAndGet(root.getContextCount() - oldContextCount);
+    }
+
+    private void updateStripeBatch(int stripe, List<List<Integer>> ngrams, int adj) {
+        AbstractTrie root = stripes[stripe];
+        int oldCount = root.getCount();
+        int oldContextCount = root.getContextCount();
+        root.updateBatch(ngrams, adj);
+//        Take deltas from the stripe itself, so totals always agree with the stripes
+        count.addAndGet(root.getCount() - oldCount);
+        contextCount.addAndGet(root.getContextCount() - oldContextCount);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        int stripesNumber = in.readInt();
+        if (stripesNumber != STRIPES) throw new IOException("Unexpected number of stripes: " + stripesNumber);
+        stripes = new AbstractTrie[STRIPES];
+        int newCount = 0;
+        int newContextCount = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = stripeFactory.get();
+            stripes[i].countOfCounts = countOfCounts;
+            stripes[i].readExternal(in);
+            newCount += stripes[i].getCount();
+            newContextCount += stripes[i].getContextCount();
+        }
+        count.set(newCount);
+        contextCount.set(newContextCount);
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeInt(STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i].readLock().lock();
+            try {
+                stripes[i].writeExternal(out);
+            } finally {
+                locks[i].readLock().unlock();
+            }
+        }
+    }
+}
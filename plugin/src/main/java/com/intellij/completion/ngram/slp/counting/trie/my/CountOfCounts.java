@@ -0,0 +1,48 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import com.intellij.completion.ngram.slp.modeling.runners.ModelRunner;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Numbers of distinct n-grams of every order that were seen once, twice, ... times. They are used by smoothing.
+ * Every counter owns its statistics, so models of different projects don't share them.
+ * Cells are {@link LongAdder}s, so threads of a parallel training don't contend on them.
+ */
+public class CountOfCounts {
+    private final LongAdder[][] nCounts;
+
+    public CountOfCounts() {
+        this(ModelRunner.DEFAULT_NGRAM_ORDER, 4);
+    }
+
+    public CountOfCounts(int order, int cutoff) {
+        nCounts = new LongAdder[order][cutoff];
+        for (LongAdder[] counts : nCounts) {
+            for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param n     order of the n-gram.
+     * @param count new count of the n-gram.
+     * @param adj   change of the count.
+     */
+    void update(int n, int count, int adj) {
+        if (n == 0) return;
+        if (n > nCounts.length) return;
+        LongAdder[] toUpdate = nCounts[n - 1];
+        int currIndex = Math.min(count, toUpdate.length);
+        int prevIndex = Math.min(count - adj, toUpdate.length);
+        if (currIndex != prevIndex) {
+            if (currIndex > 0) toUpdate[currIndex - 1].increment();
+            if (prevIndex > 0) toUpdate[prevIndex - 1].decrement();
+        }
+    }
+
+    public int get(int n, int count) {
+        int minN = Math.min(n, nCounts.length) - 1;
+        int minC = Math.min(count, nCounts[minN].length) - 1;
+        return nCounts[minN][minC].intValue();
+    }
+}
@@ -0,0 +1,27 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Buffers of threads for counts which counters with changes add to or subtract from counts of their base,
+ * so lookups of such counters don't allocate. A counter takes the buffer only after its base is walked and passes it
+ * only to in-memory tries, which don't take the buffer themselves, so one lookup never takes it twice.
+ */
+public final class DeltaBuffer {
+    private static final ThreadLocal<long[]> BUFFERS = ThreadLocal.withInitial(() -> new long[0]);
+
+    private DeltaBuffer() {
+    }
+
+    /**
+     * @return buffer of the current thread with at least {@code size} elements, its content is undefined.
+     */
+    public static long @NotNull [] get(int size) {
+        long[] buffer = BUFFERS.get();
+        if (buffer.length < size) {
+            buffer = new long[size];
+            BUFFERS.set(buffer);
+        }
+        return buffer;
+    }
+}
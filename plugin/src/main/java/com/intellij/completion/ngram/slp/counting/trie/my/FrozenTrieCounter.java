@@ -0,0 +1,446 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import com.intellij.completion.ngram.slp.counting.Counter;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read-optimized trie which a trained counter is frozen into for evaluation.
+ * Nodes are numbered in breadth-first order and laid out in parallel {@code int[]}s:
+ * successors of a node are a contiguous range of edges sorted by key, so a lookup is a binary search
+ * inside a small range, and the same range of {@code topEdges} keeps the edges ordered by count.
+ * Suffix arrays of the trie are kept in one shared pool, so there is no object per node or per n-gram.
+ * <p>
+ * Files are still learnt and forgotten while the model is used (see {@code NGramModelManager#forgetFileIfNeeded}).
+ * Such changes go to two small mutable counters on top of the frozen trie, and counts are combined on lookup.
+ * Counts of counts, distinct counts and successor counts are taken from the frozen trie only.
+ */
+public class FrozenTrieCounter implements PrefixCounter {
+    private static final int ABSENT = -1;
+    private static final int IN_SUFFIX = -2;
+
+    /**
+     * Count and context count of every node.
+     */
+    private int[] nodeCounts;
+    /**
+     * Edges of node {@code i} are {@code [firstEdges[i], firstEdges[i + 1])}.
+     */
+    private int[] firstEdges;
+    private int[] edgeKeys;
+    /**
+     * Id of the successor node, or {@code ~offset} of the successor array in {@link #suffixes}.
+     */
+    private int[] edgeTargets;
+    /**
+     * Edges of every node ordered by count: bigger count first, then smaller key.
+     */
+    private int[] topEdges;
+    /**
+     * Successor arrays of the trie, every one is stored as its length followed by the array itself.
+     */
+    private int[] suffixes;
+    private CountOfCounts countOfCounts = new CountOfCounts();
+
+    private final MapTrieCounter added = new MapTrieCounter();
+    private final MapTrieCounter forgotten = new MapTrieCounter();
+
+    /**
+     * Don't use. Added for deserialization.
+     */
+    public FrozenTrieCounter() {
+        build(new AbstractTrie[]{new MapTrieCounter()});
+    }
+
+    private FrozenTrieCounter(AbstractTrie[] roots) {
+        build(roots);
+    }
+
+    /**
+     * @param counter {@link AbstractTrie} or {@link ConcurrentTrieCounter} to copy counts from.
+     */
+    public static FrozenTrieCounter freeze(Counter counter) {
+        if (counter instanceof AbstractTrie trie) {
+            return new FrozenTrieCounter(new AbstractTrie[]{trie});
+        } else if (counter instanceof ConcurrentTrieCounter concurrentCounter) {
+            return new FrozenTrieCounter(concurrentCounter.getStripes());
+        }
+        throw new IllegalArgumentException("Can't freeze counter of type " + counter.getClass().getName());
+    }
+
+    /**
+     * Lays out the trie breadth-first. Several roots are merged into one, their successors mustn't intersect.
+     */
+    private void build(AbstractTrie[] roots) {
+        IntArrayList nodeCounts = new IntArrayList();
+        IntArrayList firstEdges = new IntArrayList();
+        IntArrayList edgeKeys = new IntArrayList();
+        IntArrayList edgeTargets = new IntArrayList();
+        IntArrayList topEdges = new IntArrayList();
+        IntArrayList suffixes = new IntArrayList();
+        int count = 0;
+        int contextCount = 0;
+        for (AbstractTrie root : roots) {
+            count += root.getCount();
+            contextCount += root.getContextCount();
+        }
+        nodeCounts.add(count);
+        nodeCounts.add(contextCount);
+        ArrayDeque<AbstractTrie> queue = new ArrayDeque<>();
+        int nodes = 1;
+        AbstractTrie[] parts = roots;
+        while (parts != null) {
+            List<Integer> keyList = new ArrayList<>();
+            for (AbstractTrie part : parts) keyList.addAll(part.getSuccessors());
+            int[] keys = ArrayStorage.toArray(keyList);
+            Arrays.sort(keys);
+            int first = edgeKeys.size();
+            firstEdges.add(first);
+            long[] order = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                Object successor = null;
+                AbstractTrie owner = parts[0];
+                for (AbstractTrie part : parts) {
+                    successor = part.getSuccessor(keys[i]);
+                    owner = part;
+                    if (successor != null) break;
+                }
+                edgeKeys.add(keys[i]);
+                if (successor instanceof AbstractTrie trie) {
+                    edgeTargets.add(nodes++);
+                    queue.add(trie);
+                } else {
+                    int[] array = (int[]) successor;
+                    edgeTargets.add(~suffixes.size());
+                    suffixes.add(array.length);
+                    suffixes.addElements(suffixes.size(), array);
+                }
+//                Edges are sorted by key, so ordering by local index among equal counts orders by key
+                order[i] = SuccessorOrder.pack(i, owner.getCount(successor));
+            }
+            Arrays.sort(order);
+            for (long entry : order) topEdges.add(first + SuccessorOrder.keyOf(entry));
+            AbstractTrie next = queue.poll();
+            if (next != null) {
+                nodeCounts.add(next.getCount());
+                nodeCounts.add(next.getContextCount());
+            }
+            parts = next == null ? null : new AbstractTrie[]{next};
+        }
+        firstEdges.add(edgeKeys.size());
+        this.nodeCounts = nodeCounts.toIntArray();
+        this.firstEdges = firstEdges.toIntArray();
+        this.edgeKeys = edgeKeys.toIntArray();
+        this.edgeTargets = edgeTargets.toIntArray();
+        this.topEdges = topEdges.toIntArray();
+        this.suffixes = suffixes.toIntArray();
+        this.countOfCounts = roots[0].getCountOfCounts();
+    }
+
+    private int findEdge(int node, int key) {
+        return Arrays.binarySearch(edgeKeys, firstEdges[node], firstEdges[node + 1], key);
+    }
+
+    private int successorCount(int edge) {
+        int target = edgeTargets[edge];
+        return target >= 0 ? nodeCounts[2 * target] : suffixes[~target + 1];
+    }
+
+    private boolean hasChanges() {
+        return added.getCount() != 0 || forgotten.getCount() != 0;
+    }
+
+    /*
+     * Lookups
+     */
+    @Override
+    public int getCount() {
+        return nodeCounts[0] + added.getCount() - forgotten.getCount();
+    }
+
+    @Override
+    public long[] getCounts(List<Integer> indices) {
+        long[] counts = new long[2];
+        getCounts(ArrayStorage.toArray(indices), 0, indices.size(), counts);
+        return counts;
+    }
+
+    @Override
+    public void getCounts(int[] indices, int offset, int length, long[] counts) {
+        getFrozenCounts(indices, offset, length, counts);
+        if (!hasChanges()) return;
+        long count = counts[0];
+        long contextCount = counts[1];
+        added.getCounts(indices, offset, length, counts);
+        count += counts[0];
+        contextCount += counts[1];
+        forgotten.getCounts(indices, offset, length, counts);
+        counts[0] = Math.max(0, count - counts[0]);
+        counts[1] = Math.max(0, contextCount - counts[1]);
+    }
+
+    private void getFrozenCounts(int[] indices, int offset, int length, long[] counts) {
+        if (length == 0) {
+            counts[0] = counts[1] = nodeCounts[0];
+            return;
+        }
+        int end = offset + length;
+        int node = 0;
+        for (int index = offset; ; index++) {
+            int edge = findEdge(node, indices[index]);
+            boolean nearLast = index == end - 1;
+            int target = edge < 0 ? 0 : edgeTargets[edge];
+            if (edge >= 0 && target >= 0) {
+                if (!nearLast) {
+                    node = target;
+                    continue;
+                }
+                counts[0] = nodeCounts[2 * target];
+                counts[1] = nodeCounts[2 * node + 1];
+                return;
+            }
+            counts[0] = 0;
+            counts[1] = nearLast ? nodeCounts[2 * node + 1] : 0;
+            if (edge >= 0) {
+                int start = ~target + 1;
+                int suffixLength = suffixes[~target];
+                if (ArrayStorage.checkPartialSequence(indices, index, end, suffixes, start, suffixLength)) {
+                    counts[0] = suffixes[start];
+                    if (!nearLast) counts[1] = counts[0];
+                } else if (!nearLast && suffixLength >= end - index
+                        && ArrayStorage.checkPartialSequence(indices, index, end - 1, suffixes, start, suffixLength)) {
+                    counts[1] = suffixes[start];
+                }
+            }
+            return;
+        }
+    }
+
+    @Override
+    public void getPrefixCounts(int[] indices, int offset, int length, long[] counts) {
+        getFrozenPrefixCounts(indices, offset, length, counts);
+        if (!hasChanges()) return;
+        long[] delta = DeltaBuffer.get(2 * length);
+        added.getPrefixCounts(indices, offset, length, delta);
+        for (int i = 0; i < 2 * length; i++) counts[i] += delta[i];
+        forgotten.getPrefixCounts(indices, offset, length, delta);
+        for (int i = 0; i < 2 * length; i++) counts[i] = Math.max(0, counts[i] - delta[i]);
+    }
+
+    private void getFrozenPrefixCounts(int[] indices, int offset, int length, long[] counts) {
+        Arrays.fill(counts, 0, 2 * length, 0);
+        int end = offset + length;
+        int node = 0;
+        for (int index = offset; index < end; index++) {
+            int i = index - offset;
+            counts[2 * i + 1] = nodeCounts[2 * node + 1];
+            int edge = findEdge(node, indices[index]);
+            if (edge < 0) break;
+            int target = edgeTargets[edge];
+            if (target >= 0) {
+                counts[2 * i] = nodeCounts[2 * target];
+                node = target;
+                continue;
+            }
+            counts[2 * i] = suffixes[~target + 1];
+            ArrayStorage.fillPrefixCounts(indices, offset, index, end, suffixes, ~target + 1, suffixes[~target], counts);
+            // Nothing is stored deeper than the array
+            break;
+        }
+    }
+
+    /**
+     * @return id of the node at the end of the sequence, {@link #IN_SUFFIX} if the sequence ends inside a suffix array,
+     * or {@link #ABSENT} if the sequence isn't in the trie.
+     */
+    private int findSequence(int[] indices) {
+        int node = 0;
+        for (int index = 0; index < indices.length; index++) {
+            int edge = findEdge(node, indices[index]);
+            if (edge < 0) return ABSENT;
+            int target = edgeTargets[edge];
+            if (target >= 0) {
+                node = target;
+                continue;
+            }
+            return ArrayStorage.checkPartialSequence(indices, index, indices.length, suffixes, ~target + 1, suffixes[~target])
+                    ? IN_SUFFIX : ABSENT;
+        }
+        return node;
+    }
+
+    @Override
+    public int getCountOfCount(int n, int count) {
+        return countOfCounts.get(n, count);
+    }
+
+    @Override
+    public int getSuccessorCount() {
+        return firstEdges[1] - firstEdges[0];
+    }
+
+    @Override
+    public int getSuccessorCount(List<Integer> indices) {
+        int node = findSequence(ArrayStorage.toArray(indices));
+        if (node == ABSENT) return 0;
+        if (node == IN_SUFFIX) return 1;
+        return firstEdges[node + 1] - firstEdges[node];
+    }
+
+    @Override
+    public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
+        if (!hasChanges()) return getFrozenTopSuccessors(indices, limit);
+//        Successors that were forgotten can drop out of the top, so take enough frozen ones to replace them
+        long frozenLimit = Math.min(Integer.MAX_VALUE, (long) limit + forgotten.getSuccessorCount(indices));
+        List<Integer> candidates = new ArrayList<>(getFrozenTopSuccessors(indices, (int) frozenLimit));
+        for (int successor : added.getTopSuccessors(indices, Integer.MAX_VALUE)) {
+            if (!candidates.contains(successor)) candidates.add(successor);
+        }
+        int[] sequence = Arrays.copyOf(ArrayStorage.toArray(indices), indices.size() + 1);
+        long[] counts = new long[2];
+        long[] order = new long[candidates.size()];
+        int size = 0;
+        for (int successor : candidates) {
+            sequence[indices.size()] = successor;
+            getCounts(sequence, 0, sequence.length, counts);
+            if (counts[0] > 0) order[size++] = SuccessorOrder.pack(successor, (int) counts[0]);
+        }
+        Arrays.sort(order, 0, size);
+        List<Integer> topSuccessors = new ArrayList<>();
+        for (int i = 0; i < Math.min(size, limit); i++) topSuccessors.add(SuccessorOrder.keyOf(order[i]));
+        return topSuccessors;
+    }
+
+    private List<Integer> getFrozenTopSuccessors(List<Integer> indices, int limit) {
+        List<Integer> topSuccessors = new ArrayList<>();
+        int[] sequence = ArrayStorage.toArray(indices);
+        int node = 0;
+        for (int index = 0; index < sequence.length; index++) {
+            int edge = findEdge(node, sequence[index]);
+            if (edge < 0) return topSuccessors;
+            int target = edgeTargets[edge];
+            if (target >= 0) {
+                node = target;
+                continue;
+            }
+            int start = ~target + 1;
+            int length = suffixes[~target];
+            int next = sequence.length - index;
+            if (ArrayStorage.checkPartialSequence(sequence, index, sequence.length, suffixes, start, length)
+                    && next < length && limit > 0) {
+                topSuccessors.add(suffixes[start + next]);
+            }
+            return topSuccessors;
+        }
+        int end = firstEdges[node] + Math.min(firstEdges[node + 1] - firstEdges[node], limit);
+        for (int i = firstEdges[node]; i < end; i++) topSuccessors.add(edgeKeys[topEdges[i]]);
+        return topSuccessors;
+    }
+
+    @Override
+    public int[] getDistinctCounts(int range, List<Integer> indices) {
+        int[] distinctCounts = new int[range];
+        int[] sequence = ArrayStorage.toArray(indices);
+        int node = 0;
+        for (int index = 0; index < sequence.length; index++) {
+            int edge = findEdge(node, sequence[index]);
+            if (edge < 0) return distinctCounts;
+            int target = edgeTargets[edge];
+            if (target >= 0) {
+                node = target;
+                continue;
+            }
+            int start = ~target + 1;
+            int length = suffixes[~target];
+            if (ArrayStorage.checkPartialSequence(sequence, index, sequence.length, suffixes, start, length)
+                    && !ArrayStorage.checkExactSequence(sequence, index, sequence.length, suffixes, start, length)) {
+                distinctCounts[Math.min(range - 1, suffixes[start] - 1)] = 1;
+            }
+            return distinctCounts;
+        }
+//        Same buckets as counts of counts of trie nodes: exact counts below the cutoff, the rest in the last one
+        int exactBuckets = Math.min(AbstractTrie.COUNT_OF_COUNTS_CUTOFF - 1, range - 1);
+        for (int edge = firstEdges[node]; edge < firstEdges[node + 1]; edge++) {
+            int count = successorCount(edge);
+            if (count <= 0) continue;
+            if (count - 1 < exactBuckets) distinctCounts[count - 1]++;
+            else distinctCounts[range - 1]++;
+        }
+        return distinctCounts;
+    }
+
+    /*
+     * Updater Methods
+     */
+    @Override
+    public void count(List<Integer> indices) {
+        update(indices, 1);
+    }
+
+    @Override
+    public void unCount(List<Integer> indices) {
+        update(indices, -1);
+    }
+
+    @Override
+    public void countBatch(List<List<Integer>> indices) {
+        for (List<Integer> ngram : indices) update(ngram, 1);
+    }
+
+    @Override
+    public void unCountBatch(List<List<Integer>> indices) {
+        for (List<Integer> ngram : indices) update(ngram, -1);
+    }
+
+    /**
+     * Counting a forgotten sequence takes it back from the forgotten counter, and vice versa,
+     * so learning back a forgotten file leaves both counters empty.
+     */
+    private synchronized void update(List<Integer> indices, int adj) {
+        MapTrieCounter undo = adj > 0 ? forgotten : added;
+        MapTrieCounter redo = adj > 0 ? added : forgotten;
+        int[] sequence = ArrayStorage.toArray(indices);
+        if (undo.getSequenceCount(sequence) > 0) undo.update(sequence, 0, sequence.length, -1);
+        else redo.update(sequence, 0, sequence.length, 1);
+    }
+
+    /*
+     * Serialization: the frozen trie is written in the format of MapTrieCounter, learnt and forgotten files are not.
+     */
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        MapTrieCounter counter = new MapTrieCounter();
+        counter.readExternal(in);
+        build(new AbstractTrie[]{counter});
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        writeNode(out, 0);
+    }
+
+    private void writeNode(ObjectOutput out, int node) throws IOException {
+        out.writeInt(nodeCounts[2 * node]);
+        out.writeInt(nodeCounts[2 * node + 1]);
+        out.writeInt(firstEdges[node + 1] - firstEdges[node]);
+        for (int edge = firstEdges[node]; edge < firstEdges[node + 1]; edge++) {
+            out.writeInt(edgeKeys[edge]);
+            int target = edgeTargets[edge];
+            if (target >= 0) {
+                out.writeInt(-1);
+                writeNode(out, target);
+            } else {
+                int length = suffixes[~target];
+                out.writeInt(length);
+                for (int i = 0; i < length; i++) out.writeInt(suffixes[~target + 1 + i]);
+            }
+        }
+    }
+}
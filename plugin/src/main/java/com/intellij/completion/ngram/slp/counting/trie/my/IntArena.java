@@ -0,0 +1,243 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import java.util.Arrays;
+
+/**
+ * Storage of a trie in large shared {@code int} pages: fixed-size records of counts of nodes
+ * and variable-length suffix arrays of successors.
+ * A record or a suffix is addressed by a number instead of being a separate array object,
+ * so a trie with millions of nodes and n-grams keeps them in a few big arrays instead of millions of small ones.
+ * Released records and suffixes are linked into free lists and reused.
+ * <p>
+ * One arena is shared by all nodes of a trie. Allocation and release are synchronized, reads and writes are guarded
+ * by the trie, whose updates are serialized by the monitor of its root. Pages are published through volatile fields,
+ * but a lookup that races with an update of the same trie may still read stale counts,
+ * so counters that are read while they are updated guard the trie, like {@link ConcurrentTrieCounter} does.
+ */
+final class IntArena {
+    private static final int PAGE_SHIFT = 12;
+    private static final int RECORDS_PER_PAGE = 1 << PAGE_SHIFT;
+    private static final int RECORD_MASK = RECORDS_PER_PAGE - 1;
+    private static final int INITIAL_RECORDS = 16;
+    private static final int NO_RECORD = -1;
+    /**
+     * Suffix pages are addressed by {@code int}s, not by records.
+     */
+    private static final int SUFFIX_PAGE_SHIFT = 16;
+    private static final int SUFFIX_PAGE_SIZE = 1 << SUFFIX_PAGE_SHIFT;
+    private static final int SUFFIX_MASK = SUFFIX_PAGE_SIZE - 1;
+    private static final int INITIAL_SUFFIX_PAGE_SIZE = 64;
+    static final int NO_SUFFIX = -1;
+
+    private final int recordSize;
+    private volatile int[][] pages;
+    private int size;
+    private int freeRecord = NO_RECORD;
+
+    /**
+     * A suffix is stored as its length followed by the array which used to be a separate {@code int[]} successor:
+     * its count and the rest of the tokens of the sequence.
+     */
+    private volatile int[][] suffixPages;
+    private int suffixEnd;
+    /**
+     * Heads of lists of released suffixes by their length.
+     */
+    private int[] freeSuffixes = new int[0];
+
+    IntArena(int recordSize) {
+        this.recordSize = recordSize;
+//        Every root of a trie has its own arena, so first pages grow gradually for small tries
+        this.pages = new int[][]{new int[INITIAL_RECORDS * recordSize]};
+        this.suffixPages = new int[][]{new int[INITIAL_SUFFIX_PAGE_SIZE]};
+    }
+
+    int recordSize() {
+        return recordSize;
+    }
+
+    /**
+     * @return number of a new record filled with zeros.
+     */
+    synchronized int allocate() {
+        if (freeRecord != NO_RECORD) {
+            int record = freeRecord;
+            freeRecord = get(record, 0);
+            set(record, 0, 0);
+            return record;
+        }
+        int record = size++;
+        int page = record >>> PAGE_SHIFT;
+        if (page == pages.length) {
+            int[][] newPages = Arrays.copyOf(pages, page + 1);
+            newPages[page] = new int[RECORDS_PER_PAGE * recordSize];
+            pages = newPages;
+        } else if ((record & RECORD_MASK) * recordSize == pages[page].length) {
+            int[][] newPages = pages.clone();
+            newPages[page] = Arrays.copyOf(pages[page], Math.min(2 * pages[page].length, RECORDS_PER_PAGE * recordSize));
+            pages = newPages;
+        }
+        return record;
+    }
+
+    /**
+     * Makes the record available for reuse. The record mustn't be used after that.
+     */
+    synchronized void release(int record) {
+        clear(record);
+        set(record, 0, freeRecord);
+        freeRecord = record;
+    }
+
+    int get(int record, int index) {
+        return pages[record >>> PAGE_SHIFT][offset(record) + index];
+    }
+
+    void set(int record, int index, int value) {
+        pages[record >>> PAGE_SHIFT][offset(record) + index] = value;
+    }
+
+    void add(int record, int index, int delta) {
+        pages[record >>> PAGE_SHIFT][offset(record) + index] += delta;
+    }
+
+    /**
+     * @return sum of the record fields starting from {@code from}.
+     */
+    int sum(int record, int from) {
+        int[] page = pages[record >>> PAGE_SHIFT];
+        int offset = offset(record);
+        int sum = 0;
+        for (int i = offset + from; i < offset + recordSize; i++) sum += page[i];
+        return sum;
+    }
+
+    void clear(int record) {
+        Arrays.fill(pages[record >>> PAGE_SHIFT], offset(record), offset(record) + recordSize, 0);
+    }
+
+    private int offset(int record) {
+        return (record & RECORD_MASK) * recordSize;
+    }
+
+    /*
+     * Suffixes
+     */
+
+    /**
+     * @param count  count of the suffix.
+     * @param tokens tokens of the suffix after its key are {@code tokens[from..to)}.
+     * @return address of a new suffix.
+     */
+    synchronized int allocateSuffix(int count, int[] tokens, int from, int to) {
+        int suffix = allocateSuffix(1 + to - from);
+        int[] page = suffixPage(suffix);
+        int start = suffixStart(suffix);
+        page[start] = count;
+        System.arraycopy(tokens, from, page, start + 1, to - from);
+        return suffix;
+    }
+
+    /**
+     * Same as {@link #allocateSuffix(int, int[], int, int)} for the tail of another suffix:
+     * tokens are {@code [from..)} of the array of the suffix.
+     */
+    synchronized int allocateSuffix(int count, int source, int from) {
+        int length = suffixLength(source) - from;
+        int suffix = allocateSuffix(1 + length);
+//        The source page is taken after allocation, which may replace it
+        int[] sourcePage = suffixPage(source);
+        int[] page = suffixPage(suffix);
+        int start = suffixStart(suffix);
+        page[start] = count;
+        System.arraycopy(sourcePage, suffixStart(source) + from, page, start + 1, length);
+        return suffix;
+    }
+
+    /**
+     * @return address of a new suffix of the given length, its array is to be filled by the caller.
+     */
+    synchronized int allocateSuffix(int length) {
+        if (length + 1 > SUFFIX_PAGE_SIZE) throw new IllegalArgumentException("Too long suffix: " + length);
+        if (length < freeSuffixes.length && freeSuffixes[length] != NO_SUFFIX) {
+            int suffix = freeSuffixes[length];
+            int[] page = suffixPage(suffix);
+            freeSuffixes[length] = page[suffixStart(suffix)];
+            page[suffixStart(suffix)] = 0;
+            return suffix;
+        }
+        int page = suffixEnd >>> SUFFIX_PAGE_SHIFT;
+        if ((suffixEnd & SUFFIX_MASK) + length + 1 > SUFFIX_PAGE_SIZE) {
+//            Suffixes don't cross pages
+            page++;
+            suffixEnd = page << SUFFIX_PAGE_SHIFT;
+        }
+        int suffix = suffixEnd;
+        int end = (suffix & SUFFIX_MASK) + length + 1;
+        if (page == suffixPages.length) {
+            int[][] newPages = Arrays.copyOf(suffixPages, page + 1);
+            newPages[page] = new int[SUFFIX_PAGE_SIZE];
+            suffixPages = newPages;
+        } else if (end > suffixPages[page].length) {
+            int[][] newPages = suffixPages.clone();
+            int newLength = suffixPages[page].length;
+            while (newLength < end) newLength *= 2;
+            newPages[page] = Arrays.copyOf(suffixPages[page], Math.min(newLength, SUFFIX_PAGE_SIZE));
+            suffixPages = newPages;
+        }
+        suffixEnd += length + 1;
+        suffixPages[page][suffix & SUFFIX_MASK] = length;
+        return suffix;
+    }
+
+    /**
+     * Makes the suffix available for reuse. The suffix mustn't be used after that.
+     */
+    synchronized void releaseSuffix(int suffix) {
+        int length = suffixLength(suffix);
+        if (length >= freeSuffixes.length) {
+            int oldLength = freeSuffixes.length;
+            freeSuffixes = Arrays.copyOf(freeSuffixes, length + 1);
+            Arrays.fill(freeSuffixes, oldLength, freeSuffixes.length, NO_SUFFIX);
+        }
+        int[] page = suffixPage(suffix);
+        int start = suffixStart(suffix);
+        Arrays.fill(page, start + 1, start + length, 0);
+        page[start] = freeSuffixes[length];
+        freeSuffixes[length] = suffix;
+    }
+
+    /**
+     * @return page where the array of the suffix is {@code [suffixStart(suffix)..suffixStart(suffix) + suffixLength(suffix))}.
+     */
+    int[] suffixPage(int suffix) {
+        return suffixPages[suffix >>> SUFFIX_PAGE_SHIFT];
+    }
+
+    static int suffixStart(int suffix) {
+        return (suffix & SUFFIX_MASK) + 1;
+    }
+
+    /**
+     * @return length of the array of the suffix: its count and the tokens.
+     */
+    int suffixLength(int suffix) {
+        return suffixPage(suffix)[suffix & SUFFIX_MASK];
+    }
+
+    int suffixCount(int suffix) {
+        return suffixPage(suffix)[suffixStart(suffix)];
+    }
+
+    void addSuffixCount(int suffix, int delta) {
+        suffixPage(suffix)[suffixStart(suffix)] += delta;
+    }
+
+    /**
+     * @return array of the suffix in the layout of {@code int[]} successors: its count and the tokens.
+     */
+    int[] copySuffix(int suffix) {
+        int start = suffixStart(suffix);
+        return Arrays.copyOfRange(suffixPage(suffix), start, start + suffixLength(suffix));
+    }
+}
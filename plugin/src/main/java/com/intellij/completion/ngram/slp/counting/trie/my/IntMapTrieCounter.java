@@ -0,0 +1,201 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Trie node that keeps its successors in an open-addressing table with primitive int keys.
+ * Unlike {@link MapTrieCounter} it doesn't box keys, doesn't allocate an entry object per successor
+ * and doesn't keep a separate ordering list, so it is used on every level of the trie.
+ */
+public class IntMapTrieCounter extends AbstractTrie {
+    static final int FREE_KEY = Integer.MAX_VALUE;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    int[] keys;
+    /**
+     * Every successor is either a child node or a suffix in the arena, the other slot is null or {@link IntArena#NO_SUFFIX}.
+     */
+    AbstractTrie[] children;
+    int[] suffixes;
+    private int size;
+
+    public IntMapTrieCounter() {
+        this(1);
+    }
+
+    public IntMapTrieCounter(int initSize) {
+        super();
+        allocate(tableSize(initSize));
+    }
+
+    IntMapTrieCounter(IntArena arena) {
+        super(arena);
+        allocate(tableSize(1));
+    }
+
+    @Override
+    AbstractTrie makeNext(int depth) {
+        return new IntMapTrieCounter(this.arena);
+    }
+
+    @Override
+    public List<Integer> getSuccessors() {
+        List<Integer> successors = new ArrayList<>(size);
+        for (int key : keys) {
+            if (key != FREE_KEY) successors.add(key);
+        }
+        return successors;
+    }
+
+    @Override
+    AbstractTrie getChild(int key) {
+        int slot = findSlot(key);
+        return keys[slot] == FREE_KEY ? null : children[slot];
+    }
+
+    @Override
+    int getSuffix(int key) {
+        int slot = findSlot(key);
+        return keys[slot] == FREE_KEY ? IntArena.NO_SUFFIX : suffixes[slot];
+    }
+
+    @Override
+    void putChild(int key, AbstractTrie child) {
+        int slot = insertSlot(key);
+        children[slot] = child;
+        suffixes[slot] = IntArena.NO_SUFFIX;
+    }
+
+    @Override
+    void putSuffix(int key, int suffix) {
+        int slot = insertSlot(key);
+        children[slot] = null;
+        suffixes[slot] = suffix;
+    }
+
+    private int insertSlot(int key) {
+        int slot = findSlot(key);
+        if (keys[slot] == FREE_KEY) {
+            if ((size + 1) > keys.length * LOAD_FACTOR) {
+                rehash(keys.length * 2);
+                slot = findSlot(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        return slot;
+    }
+
+    @Override
+    void removeSuccessor(int key) {
+        int slot = findSlot(key);
+        if (keys[slot] == FREE_KEY) return;
+        size--;
+//        Backward shift deletion keeps linear probing chains valid without tombstones
+        int mask = keys.length - 1;
+        int last = slot;
+        int curr = (slot + 1) & mask;
+        while (keys[curr] != FREE_KEY) {
+            int home = hash(keys[curr]) & mask;
+            if (last <= curr ? (home <= last || home > curr) : (home <= last && home > curr)) {
+                keys[last] = keys[curr];
+                children[last] = children[curr];
+                suffixes[last] = suffixes[curr];
+                last = curr;
+            }
+            curr = (curr + 1) & mask;
+        }
+        keys[last] = FREE_KEY;
+        children[last] = null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /*
+     * Map bookkeeping
+     */
+    private int findSlot(int key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != FREE_KEY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSize(int expected) {
+        int size = 2;
+        while (size * LOAD_FACTOR < expected) size <<= 1;
+        return size;
+    }
+
+    private void allocate(int tableSize) {
+        keys = new int[tableSize];
+        children = new AbstractTrie[tableSize];
+        suffixes = new int[tableSize];
+        Arrays.fill(keys, FREE_KEY);
+        size = 0;
+    }
+
+    private void rehash(int newTableSize) {
+        int[] oldKeys = keys;
+        AbstractTrie[] oldChildren = children;
+        int[] oldSuffixes = suffixes;
+        allocate(newTableSize);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == FREE_KEY) continue;
+            int slot = findSlot(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            children[slot] = oldChildren[i];
+            suffixes[slot] = oldSuffixes[i];
+            size++;
+        }
+    }
+
+    @Override
+    void readNode(ObjectInput in, int depth, CountOfCounts nCounts) throws IOException, ClassNotFoundException {
+        this.arena.clear(this.countsRecord);
+        setCountAt(0, in.readInt());
+        setCountAt(1, in.readInt());
+        nCounts.update(depth, getCount(), getCount());
+        int successors = in.readInt();
+        allocate(tableSize(successors));
+        for (int pos = 0; pos < successors; pos++) {
+            int key = in.readInt();
+            int code = in.readInt();
+            if (code < 0) putChild(key, readChild(in, new IntMapTrieCounter(this.arena), depth, nCounts));
+            else putSuffix(key, readSuffix(in, code, depth, nCounts));
+        }
+        initSuccessorOrder();
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeInt(getCount());
+        out.writeInt(getContextCount());
+        out.writeInt(this.size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == FREE_KEY) continue;
+            out.writeInt(keys[i]);
+            if (children[i] == null) {
+                writeSuffix(out, suffixes[i]);
+            } else {
+                out.writeInt(-1);
+                children[i].writeExternal(out);
+            }
+        }
+    }
+}
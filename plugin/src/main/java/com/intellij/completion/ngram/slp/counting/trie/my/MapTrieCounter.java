@@ -15,28 +15,26 @@
 
 package com.intellij.completion.ngram.slp.counting.trie.my;
 
-//import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-//import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-//import it.unimi.dsi.fastutil.ints.IntArrayList;
-//import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 
 public class MapTrieCounter extends AbstractTrie {
 	/**
 	 * 'counts' contains in order: own count, context count (sum of successor's counts),
 	 * no of distinct successors seen once, twice, up to the COCcutoff in Configuration
 	 */
-	//private Int2ObjectMap<Object> map;
-	public HashMap<Integer, Object> map;
-	private final ArrayList<Integer> pseudoOrdering;
+	// Keys aren't boxed, so lookups don't allocate
+	public Int2ObjectOpenHashMap<AbstractTrie> map;
+	// Successors which are suffixes in the arena
+	public Int2IntOpenHashMap suffixes;
 
 	// Maximum depth in trie to use Map-tries, after this Array-Tries are used, which are slower but more memory-efficient
 	private static final int MAX_DEPTH_MAP_TRIE = 1;
@@ -47,116 +45,111 @@ public class MapTrieCounter extends AbstractTrie {
 
 	public MapTrieCounter(int initSize) {
 		super();
-		//this.map = new Int2ObjectOpenHashMap<>(initSize);
-		this.map = new HashMap<>(initSize);
-		//this.map.defaultReturnValue(null);
-		this.pseudoOrdering = new ArrayList<>();
+		this.map = new Int2ObjectOpenHashMap<>(initSize);
+		this.suffixes = newSuffixes(initSize);
 	}
 
-	@Override
-	public List<Integer> getSuccessors() {
-		return new ArrayList<>(this.map.keySet());
+	MapTrieCounter(IntArena arena) {
+		super(arena);
+		this.map = new Int2ObjectOpenHashMap<>(1);
+		this.suffixes = newSuffixes(1);
 	}
-	
-	private static final Map<Integer, Integer> cache = new HashMap<>();
+
+	private static Int2IntOpenHashMap newSuffixes(int initSize) {
+		Int2IntOpenHashMap suffixes = new Int2IntOpenHashMap(initSize);
+		suffixes.defaultReturnValue(IntArena.NO_SUFFIX);
+		return suffixes;
+	}
+
 	@Override
-	public List<Integer> getTopSuccessorsInternal(int limit) {
-		int classKey = this.hashCode();
-		int countsKey = this.keyCode();
-		Integer cached = cache.get(classKey);
-		if (cached == null || cached != countsKey) {
-			this.pseudoOrdering.sort(this::compareCounts);
-		}
-		int end = Math.min(this.pseudoOrdering.size(), limit);
-		List<Integer> topSuccessors = new ArrayList<>(this.pseudoOrdering.subList(0, end));
-		if (this.getSuccessorCount() > 10) cache.put(classKey, countsKey);
-		return topSuccessors;
+	public List<Integer> getSuccessors() {
+		List<Integer> successors = new ArrayList<>(size());
+		successors.addAll(this.map.keySet());
+		successors.addAll(this.suffixes.keySet());
+		return successors;
 	}
 	
-	private int keyCode() {
-		return 31*(this.getSuccessorCount() + 31*this.getCount());
-	}
-
 	@Override
     AbstractTrie makeNext(int depth) {
 		AbstractTrie newNext;
-		if (depth <= MAX_DEPTH_MAP_TRIE) newNext = new MapTrieCounter(1);
-		else newNext = new ArrayTrieCounter();
+		if (depth <= MAX_DEPTH_MAP_TRIE) newNext = new MapTrieCounter(this.arena);
+		else newNext = new ArrayTrieCounter(this.arena);
 		return newNext;
 	}
 
 	@Override
-	public Object getSuccessor(int next) {
+	AbstractTrie getChild(int next) {
 		return this.map.get(next);
 	}
 
 	@Override
-	void putSuccessor(int next, Object o) {
-		Object curr = this.map.put(next, o);
-		if (curr == null) this.pseudoOrdering.add(next);
+	int getSuffix(int next) {
+		return this.suffixes.get(next);
+	}
+
+	@Override
+	void putChild(int next, AbstractTrie child) {
+		this.suffixes.remove(next);
+		this.map.put(next, child);
 	}
 
-	private int compareCounts(Integer i1, Integer i2) {
-		int base = -Integer.compare(getCount(this.map.get(i1)), getCount(this.map.get(i2)));
-		if (base != 0) return base;
-		return Integer.compare(i1, i2);
+	@Override
+	void putSuffix(int next, int suffix) {
+		this.map.remove(next);
+		this.suffixes.put(next, suffix);
 	}
 
 	@Override
 	void removeSuccessor(int next) {
-		Object removed = this.map.remove(next);
-		this.pseudoOrdering.remove(pseudoOrdering.indexOf(next));
-		if (removed instanceof MapTrieCounter) {
-			cache.remove(removed.hashCode());
-		}
+		if (this.map.remove(next) == null) this.suffixes.remove(next);
 	}
 
 	@Override
-	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-		this.counts = new int[2 + COUNT_OF_COUNTS_CUTOFF];
-		this.counts[0] = in.readInt();
-		this.counts[1] = in.readInt();
+	int size() {
+		return this.map.size() + this.suffixes.size();
+	}
+
+	@Override
+	void readNode(ObjectInput in, int depth, CountOfCounts nCounts) throws IOException, ClassNotFoundException {
+		this.arena.clear(this.countsRecord);
+		setCountAt(0, in.readInt());
+		setCountAt(1, in.readInt());
+		nCounts.update(depth, getCount(), getCount());
 		int successors = in.readInt();
-		this.map = new HashMap<>(successors, 0.9f);
+		this.map = new Int2ObjectOpenHashMap<>(1);
+		this.suffixes = newSuffixes(1);
 		int pos = 0;
 		for (; pos < successors; pos++) {
 			int key = in.readInt();
 			int code = in.readInt();
-			Object value;
 			if (code < 0) {
-				if (code < -1) value = new ArrayTrieCounter();
-				else value = new MapTrieCounter();
-				((AbstractTrie) value).readExternal(in);
-				this.counts[1 + Math.min(((AbstractTrie) value).getCount(), COUNT_OF_COUNTS_CUTOFF)]++;
+				AbstractTrie child;
+				if (code < -1) child = new ArrayTrieCounter(this.arena);
+				else child = new MapTrieCounter(this.arena);
+				this.map.put(key, readChild(in, child, depth, nCounts));
 			}
 			else {
-				value = new int[code];
-				for (int j = 0; j < code; j++) ((int[]) value)[j] = in.readInt();
-				this.counts[1 + Math.min(((int[]) value)[0], COUNT_OF_COUNTS_CUTOFF)]++;
+				this.suffixes.put(key, readSuffix(in, code, depth, nCounts));
 			}
-			this.putSuccessor(key, value);
 		}
+		initSuccessorOrder();
 	}
 
 	@Override
 	public void writeExternal(ObjectOutput out) throws IOException {
-		out.writeInt(this.counts[0]);
-		out.writeInt(this.counts[1]);
-		out.writeInt(this.map.size());
-		//for (Entry<Integer, Object> entry : this.map.int2ObjectEntrySet()) {
-		for (Entry<Integer, Object> entry : this.map.entrySet()) {
-			int key = entry.getKey();
-			Object value = entry.getValue();
-			out.writeInt(key);
-			if (value instanceof int[] arr) {
-				out.writeInt(arr.length);
-				for (int i : arr) out.writeInt(i);
-			}
-			else {
-				if (value instanceof ArrayTrieCounter) out.writeInt(-2);
-				else out.writeInt(-1);
-				((AbstractTrie) value).writeExternal(out);
-			}
+		out.writeInt(getCount());
+		out.writeInt(getContextCount());
+		out.writeInt(size());
+		for (Int2IntMap.Entry entry : this.suffixes.int2IntEntrySet()) {
+			out.writeInt(entry.getIntKey());
+			writeSuffix(out, entry.getIntValue());
+		}
+		for (Int2ObjectMap.Entry<AbstractTrie> entry : this.map.int2ObjectEntrySet()) {
+			AbstractTrie value = entry.getValue();
+			out.writeInt(entry.getIntKey());
+			if (value instanceof ArrayTrieCounter) out.writeInt(-2);
+			else out.writeInt(-1);
+			value.writeExternal(out);
 		}
 	}
 }
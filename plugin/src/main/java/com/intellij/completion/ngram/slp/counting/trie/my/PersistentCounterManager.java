@@ -2,141 +2,637 @@ package com.intellij.completion.ngram.slp.counting.trie.my;
 
 import com.intellij.completion.ngram.slp.counting.Counter;
 import com.intellij.completion.ngram.slp.counting.trie.my.persistent.CounterWithForgetting;
+import com.intellij.completion.ngram.slp.counting.trie.my.persistent.CompactTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.persistent.CounterWithDelta;
 import com.intellij.completion.ngram.slp.counting.trie.my.persistent.CountersCache;
+import com.intellij.completion.ngram.slp.counting.trie.my.persistent.MappedTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.persistent.NGramBloomFilter;
 import com.intellij.completion.ngram.slp.counting.trie.my.persistent.PersistentCounter;
+import com.intellij.openapi.diagnostic.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.stream.Collectors;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 
+/**
+ * Writes counters in the format read by {@link CountersCache}.
+ * Children are written before their parent, a parent keeps positions of its children in the file.
+ * Files of version 2 and later keep positions as longs and end with a trailer: position of the root, version and magic.
+ * Files without the trailer keep positions as ints and end with the position of the root, they are still readable.
+ * <p>
+ * A node of version 3 is written as its code, number of successors, count and context count followed by three arrays:
+ * keys of successors in ascending order, their positions, and indices of successors ordered by count.
+ * So a successor is found by binary search right in the file, see {@link MappedTrieCounter}.
+ * <p>
+ * Subtrees of the root are written in parallel. Size of a subtree is known before it is written,
+ * so every subtree gets its own region of the file and is written there directly, without temporary files.
+ * Tries are walked with an explicit stack, so their depth doesn't matter. Subtrees are written by {@link #SAVE_THREADS}
+ * threads of their own rather than by the common pool, and the counter isn't updated until the file is written.
+ * <p>
+ * Every lookup walks the upper levels of the trie, while deeper nodes are visited rarely. So nodes of the upper
+ * {@link #UPPER_LEVELS} levels are written after all subtrees, right before the root, and only deeper nodes are written
+ * in post order of their subtrees. Then the nodes visited by most lookups share pages instead of being scattered
+ * between deep subtrees, and children are still written before their parents.
+ * <p>
+ * Files of version 4 are written on request, see {@link #COMPACT_FORMAT}. Everything in them is a varint:
+ * a header of a node is the number of successors shifted left with the lowest bit set, a header of an array is its length
+ * shifted left. A node continues with count, context count and the size of its successors in bytes.
+ * Successors go by blocks of {@link #BLOCK_SIZE} as pairs of a key and a position. The first pair of a block keeps
+ * the key itself and the distance from the node back to the successor, next pairs keep deltas from the previous pair.
+ * Nodes with more than one block start with a table of fixed ints: the first key and the offset of every block.
+ * Successors are followed by their keys ordered by count. See {@link CompactTrieCounter}.
+ * <p>
+ * With {@link #BLOOM_FILTER} a {@link NGramBloomFilter} of all stored sequences longer than one token is written next
+ * to the file. Sequences are counted while sizes of subtrees are computed, and hashes of sequences are added while subtrees
+ * are written. The filter of the previous file is deleted before the file is written, and the new one is written after it.
+ */
 public class PersistentCounterManager {
+    private static final Logger LOG = Logger.getInstance(PersistentCounterManager.class);
     public static int MAP_TRIE_COUNTER_CODE = -1;
     public static int ARRAY_TRIE_COUNTER_CODE = -2;
+    public static final int FORMAT_VERSION = 3;
+    public static final int COMPACT_FORMAT_VERSION = 4;
+    public static final int BLOCK_SIZE = 16;
+    /**
+     * Write files of {@link #COMPACT_FORMAT_VERSION} unless the format is given explicitly.
+     * Models of the plugin are written in the format chosen by the registry key {@code iren.compact.counters},
+     * see {@code PersistentNGramModelRunner}, this flag is the default for other callers such as experiments.
+     */
+    public static boolean COMPACT_FORMAT = false;
+    /**
+     * Write {@link NGramBloomFilter} of stored sequences, so persistent counters skip lookups of absent n-grams.
+     */
+    public static boolean BLOOM_FILTER = true;
+    /**
+     * Number of levels below the root whose nodes are written apart from deeper ones, 0 writes plain post order.
+     */
+    public static int UPPER_LEVELS = 2;
+    /**
+     * Number of threads which write subtrees of the root.
+     */
+    public static int SAVE_THREADS = Runtime.getRuntime().availableProcessors();
+    /**
+     * Marks files with a trailer. Old files end with a position, which is never negative.
+     */
+    public static final int FORMAT_MAGIC = 0xC0DE_C0DE;
+    private static final int BUFFER_SIZE = 1 << 16;
     private final String counterPath;
-    private DataOutputStream out;
+    private final boolean compact;
 
     public PersistentCounterManager(String counterPath) {
+        this(counterPath, COMPACT_FORMAT);
+    }
+
+    /**
+     * @param compact write a file of {@link #COMPACT_FORMAT_VERSION} rather than of {@link #FORMAT_VERSION}.
+     */
+    public PersistentCounterManager(String counterPath, boolean compact) {
         this.counterPath = counterPath;
+        this.compact = compact;
     }
 
-    public static void serialize(String counterPath, Counter counter) {
-        new PersistentCounterManager(counterPath).serialize(counter);
+    public static boolean serialize(String counterPath, Counter counter) {
+        return new PersistentCounterManager(counterPath).serialize(counter);
     }
 
-    public void serialize(Counter counter) {
-        try (FileOutputStream fout = new FileOutputStream(counterPath);
-             BufferedOutputStream bout = new BufferedOutputStream(fout)) {
-            out = new DataOutputStream(bout);
-            try {
-                final int idx = write(counter);
-                writeInt(idx);
-            } finally {
-                out.close();
+    public static boolean serialize(String counterPath, Counter counter, boolean compact) {
+        return new PersistentCounterManager(counterPath, compact).serialize(counter);
+    }
+
+    /**
+     * Writes the counter. Subtrees are read by other threads without locks, so updates of the counter wait until
+     * the file is written: a {@link ConcurrentTrieCounter} is locked for reading, updates of another trie are serialized
+     * by the monitor of its root, which is held meanwhile.
+     *
+     * @return false if the file isn't written, it is incomplete then and mustn't replace the previous one.
+     */
+    public boolean serialize(Counter counter) {
+        try {
+            if (counter instanceof ConcurrentTrieCounter concurrentCounter) {
+                concurrentCounter.withoutUpdates(() -> {
+                    try {
+                        write(counter);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } else {
+                synchronized (counter) {
+                    write(counter);
+                }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            return true;
+        } catch (IOException | UncheckedIOException e) {
+            LOG.warn("Failed to write counter " + counterPath, e);
+            return false;
         }
     }
 
-    private int write(@NotNull Object counter) throws IOException {
-        if (counter instanceof MapTrieCounter) {
-            return writeMapTrieCounter((MapTrieCounter) counter);
-        } else if (counter instanceof ArrayTrieCounter) {
-            return writeArrayTrieCounter((ArrayTrieCounter) counter);
-        } else {
-            return writeArray((int[]) counter);
+    private void write(@NotNull Object counter) throws IOException {
+//        A crash while the file is written mustn't leave the filter of the previous file, which would hide new n-grams
+        NGramBloomFilter.delete(counterPath);
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, SAVE_THREADS), runnable -> {
+            final Thread thread = new Thread(runnable, "Counter serializer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (FileChannel channel = FileChannel.open(Path.of(counterPath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final int upperLevels = UPPER_LEVELS;
+            final Frame rootFrame = new Frame(counter);
+            final int[] keys = rootFrame.keys;
+            final long[] starts = new long[keys.length + 1];
+            final long[] sequences = new long[keys.length];
+            forEachSubtree(executor, keys.length, i -> {
+                final SubtreeWriter sizeCounter = new SubtreeWriter(new Segment(null, 0, compact, null), upperLevels);
+                sizeCounter.write(getSuccessor(counter, keys[i]), keys[i], rootFrame, i);
+                starts[i + 1] = sizeCounter.segment.position;
+                sequences[i] = sizeCounter.segment.sequences;
+            });
+            for (int i = 0; i < keys.length; i++) starts[i + 1] += starts[i];
+            final NGramBloomFilter.Builder filter = BLOOM_FILTER ? NGramBloomFilter.Builder.create(Arrays.stream(sequences).sum()) : null;
+            final SubtreeWriter[] writers = new SubtreeWriter[keys.length];
+            forEachSubtree(executor, keys.length, i -> {
+                writers[i] = new SubtreeWriter(new Segment(channel, starts[i], compact, filter), upperLevels);
+                writers[i].write(getSuccessor(counter, keys[i]), keys[i], rootFrame, i);
+                writers[i].segment.flush();
+            });
+            final Segment segment = new Segment(channel, starts[keys.length], compact, null);
+            for (SubtreeWriter writer : writers) {
+                for (Deferred deferred : writer.upper) deferred.write(segment);
+            }
+            final long root = segment.writeNode(rootFrame);
+            while (segment.position % Integer.BYTES != 0) segment.writeByte(0);
+            segment.writeLong(root);
+            segment.writeInt(compact ? COMPACT_FORMAT_VERSION : FORMAT_VERSION);
+            segment.writeInt(FORMAT_MAGIC);
+            segment.flush();
+            if (filter != null) filter.write(counterPath);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs the action for every subtree of the root on the executor and waits for all of them.
+     * Every thread takes the next subtree once it is done with the previous one, the first failure stops the rest.
+     */
+    private static void forEachSubtree(@NotNull ExecutorService executor, int subtrees, @NotNull IntConsumer action)
+            throws IOException {
+        final AtomicInteger next = new AtomicInteger();
+        final List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < Math.max(1, Math.min(SAVE_THREADS, subtrees)); t++) {
+            workers.add(executor.submit(() -> {
+                try {
+                    for (int i = next.getAndIncrement(); i < subtrees; i = next.getAndIncrement()) action.accept(i);
+                } catch (RuntimeException | Error e) {
+                    next.set(subtrees);
+                    throw e;
+                }
+            }));
+        }
+        try {
+            for (Future<?> worker : workers) worker.get();
+        } catch (InterruptedException e) {
+            next.set(subtrees);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Counter serialization was interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException cause) throw cause.getCause();
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            if (e.getCause() instanceof Error cause) throw cause;
+            throw new IOException(e.getCause());
         }
     }
 
-    private int writeMapTrieCounter(@NotNull MapTrieCounter counter) throws IOException {
-//        Starting to write from children
-        Map<Integer, Integer> childrenToWrite = new HashMap<>();
-        for (Entry<Integer, Object> entry : counter.map.entrySet()) {
-            if (entry.getValue() != null) {
-                childrenToWrite.put(entry.getKey(), write(entry.getValue()));
+    /**
+     * Writes subtrees of successors of the root, children before parents.
+     * Nodes of the upper levels aren't written, they are collected in post order and written after all subtrees,
+     * when positions of their deeper children are known.
+     */
+    private static final class SubtreeWriter {
+        final Segment segment;
+        final int upperLevels;
+        final List<Deferred> upper = new ArrayList<>();
+
+        SubtreeWriter(@NotNull Segment segment, int upperLevels) {
+            this.segment = segment;
+            this.upperLevels = upperLevels;
+        }
+
+        /**
+         * Writes the subtree of the successor of the root by the key, its position goes to the slot of the root.
+         */
+        void write(@NotNull Object subtree, int key, @NotNull Frame root, int slot) {
+//            Successors of the root are found without the filter
+            final long hash = NGramBloomFilter.extend(NGramBloomFilter.EMPTY, key);
+            if (subtree instanceof int[] array) {
+                segment.addSequences(array, hash);
+                place(array, 1, root, slot);
+                return;
             }
+            final Deque<Frame> stack = new ArrayDeque<>();
+            stack.push(new Frame(subtree, hash, 1));
+            while (!stack.isEmpty()) {
+                final Frame frame = stack.peek();
+                if (frame.next < frame.keys.length) {
+                    final Object child = getSuccessor(frame.node, frame.keys[frame.next]);
+                    final long childHash = NGramBloomFilter.extend(frame.hash, frame.keys[frame.next]);
+                    segment.addSequence(childHash);
+                    if (child instanceof int[] array) {
+                        segment.addSequences(array, childHash);
+                        place(array, frame.depth + 1, frame, frame.next++);
+                    } else {
+                        stack.push(new Frame(child, childHash, frame.depth + 1));
+                    }
+                    continue;
+                }
+                stack.pop();
+                final Frame parent = stack.peek();
+                if (parent != null) place(frame, frame.depth, parent, parent.next++);
+                else place(frame, frame.depth, root, slot);
+            }
+        }
+
+        private void place(@NotNull Object item, int depth, @NotNull Frame parent, int slot) {
+            final Deferred deferred = new Deferred(item, parent, slot);
+            if (depth <= upperLevels) upper.add(deferred);
+            else deferred.write(segment);
         }
-//        I hope that size of a counter won't be greater than 2 GB
-        final int start = out.size();
-        writeInt(MAP_TRIE_COUNTER_CODE);
-        writeAfterChildren(counter, childrenToWrite);
-        return start;
     }
 
-    private int writeArrayTrieCounter(@NotNull ArrayTrieCounter counter) throws IOException {
-//        Starting to write from children
-        Map<Integer, Integer> childrenToWrite = new HashMap<>();
-        for (int i = 0; i < counter.indices.length; i++) {
-            if (counter.indices[i] < Integer.MAX_VALUE &&
-                    counter.successors[i] != null)
-                childrenToWrite.put(counter.indices[i], write(counter.successors[i]));
+    /**
+     * Node or suffix array whose position goes to the slot of its parent once it is written.
+     */
+    private static final class Deferred {
+        /**
+         * {@link Frame} or int[].
+         */
+        final Object item;
+        final Frame parent;
+        final int slot;
+
+        Deferred(@NotNull Object item, @NotNull Frame parent, int slot) {
+            this.item = item;
+            this.parent = parent;
+            this.slot = slot;
+        }
+
+        void write(@NotNull Segment segment) {
+            parent.positions[slot] = item instanceof Frame frame ? segment.writeNode(frame) : segment.writeArray((int[]) item);
         }
-//        I hope that size of a counter won't be greater than 2 GB
-        final int start = out.size();
-        writeInt(ARRAY_TRIE_COUNTER_CODE);
-        writeAfterChildren(counter, childrenToWrite);
-        return start;
     }
 
-    private void writeAfterChildren(@NotNull AbstractTrie counter,
-                                    Map<Integer, Integer> childrenToWrite) throws IOException {
-        childrenToWrite = sortChildren(counter, childrenToWrite);
-        writeInt(childrenToWrite.size());
-        writeInt(counter.counts[0]);
-        writeInt(counter.counts[1]);
-        for (Entry<Integer, Integer> entry : childrenToWrite.entrySet()) {
-            writeInt(entry.getKey());
-            writeInt(entry.getValue());
+    /**
+     * Node of the trie whose children are being written.
+     */
+    private static final class Frame {
+        final Object node;
+        /**
+         * {@link NGramBloomFilter} hash of the sequence which leads to the node.
+         */
+        final long hash;
+        /**
+         * Level of the node, successors of the root are on the first one.
+         */
+        final int depth;
+        /**
+         * Keys of successors in ascending order.
+         */
+        final int[] keys;
+        final long[] positions;
+        /**
+         * Indices of successors in {@link #keys} ordered by count.
+         */
+        final int[] order;
+        int next;
+
+        Frame(Object node) {
+            this(node, NGramBloomFilter.EMPTY, 0);
         }
+
+        Frame(Object node, long hash, int depth) {
+            this.node = node;
+            this.hash = hash;
+            this.depth = depth;
+            final List<Integer> topKeys = getSortedKeys(node);
+            this.keys = ArrayStorage.toArray(topKeys);
+            Arrays.sort(keys);
+            this.positions = new long[keys.length];
+            this.order = new int[keys.length];
+            for (int i = 0; i < order.length; i++) order[i] = Arrays.binarySearch(keys, topKeys.get(i));
+        }
+    }
+
+    /**
+     * Stripes of the concurrent counter are written as one root, so the file doesn't depend on the way of training.
+     */
+    private static @NotNull List<Integer> getSortedKeys(@NotNull Object node) {
+        if (node instanceof MergedNode merged) return merged.topKeys;
+        if (node instanceof ConcurrentTrieCounter counter) return counter.getTopSuccessors(List.of(), Integer.MAX_VALUE);
+        return ((AbstractTrie) node).getTopSuccessorsInternal(Integer.MAX_VALUE);
+    }
+
+    private static @NotNull Object getSuccessor(@NotNull Object node, int key) {
+        if (node instanceof MergedNode merged) return merged.getSuccessor(key);
+        if (node instanceof ConcurrentTrieCounter counter) return counter.getSuccessor(key);
+        return ((AbstractTrie) node).getSuccessor(key);
+    }
+
+    private static int getCode(@NotNull Object node) {
+        return node instanceof ArrayTrieCounter ? ARRAY_TRIE_COUNTER_CODE : MAP_TRIE_COUNTER_CODE;
     }
 
-    private Map<Integer, Integer> sortChildren(AbstractTrie counter, Map<Integer, Integer> childrenToWrite) {
-        return counter.getTopSuccessorsInternal(Integer.MAX_VALUE).stream()
-                .collect(Collectors.toMap(
-                        i -> i,
-                        childrenToWrite::get,
-                        (v1, v2) -> {
-                            throw new IllegalStateException();
-                        },
-                        LinkedHashMap::new));
+    private static int getCount(@NotNull Object node) {
+        if (node instanceof MergedNode merged) return merged.count;
+        return ((Counter) node).getCount();
     }
 
-    public int writeArray(int @NotNull [] array) throws IOException {
-//        I hope that size of a counter won't be greater than 2 GB
-        final int start = out.size();
-        writeInt(array.length);
-        for (int i : array) writeInt(i);
-        return start;
+    private static int getContextCount(@NotNull Object node) {
+        if (node instanceof MergedNode merged) return merged.contextCount;
+        if (node instanceof ConcurrentTrieCounter counter) return counter.getContextCount();
+        return ((AbstractTrie) node).getContextCount();
     }
 
-    private void writeInt(int i) throws IOException {
-        out.writeInt(i);
+    /**
+     * Node of a counter file with changes of {@link CounterWithDelta} applied, it is built from lookups of the counter
+     * when the writer visits it. So compaction walks the file and the changes together and writes the result right away,
+     * without building the merged trie in memory. A successor whose subtree is a single sequence is written as a suffix
+     * array, as tries store it.
+     */
+    private static final class MergedNode {
+        final CounterWithDelta counter;
+        final int[] path;
+        final int count;
+        final int contextCount;
+        /**
+         * Keys of successors ordered by count.
+         */
+        final List<Integer> topKeys;
+        final int[] keys;
+        final int[] counts;
+
+        MergedNode(@NotNull CounterWithDelta counter, int @NotNull [] path, int count) {
+            this.counter = counter;
+            this.path = path;
+            this.topKeys = counter.getTopSuccessors(Arrays.stream(path).boxed().toList(), Integer.MAX_VALUE);
+            this.keys = ArrayStorage.toArray(topKeys);
+            Arrays.sort(keys);
+            this.counts = new int[keys.length];
+            final int[] sequence = Arrays.copyOf(path, path.length + 1);
+            final long[] sequenceCounts = new long[2];
+            long contextCount = 0;
+            for (int i = 0; i < keys.length; i++) {
+                sequence[path.length] = keys[i];
+                counter.getCounts(sequence, 0, sequence.length, sequenceCounts);
+                counts[i] = (int) sequenceCounts[0];
+                contextCount += counts[i];
+            }
+            this.contextCount = (int) contextCount;
+//            Counts of removed n-grams are clamped, so a node never counts less than its successors
+            this.count = Math.max(count, this.contextCount);
+        }
+
+        private @NotNull MergedNode getChild(int index) {
+            final int[] childPath = Arrays.copyOf(path, path.length + 1);
+            childPath[path.length] = keys[index];
+            return new MergedNode(counter, childPath, counts[index]);
+        }
+
+        /**
+         * @return node of the successor, or its suffix array if only one sequence goes through it.
+         */
+        @NotNull Object getSuccessor(int key) {
+            final MergedNode child = getChild(Arrays.binarySearch(keys, key));
+            final List<Integer> suffix = new ArrayList<>();
+            MergedNode tail = child;
+            while (tail.keys.length == 1 && tail.counts[0] == tail.count) {
+                suffix.add(tail.keys[0]);
+                tail = tail.getChild(0);
+            }
+            if (tail.keys.length > 0) return child;
+            final int[] array = new int[1 + suffix.size()];
+            array[0] = child.count;
+            for (int i = 0; i < suffix.size(); i++) array[i + 1] = suffix.get(i);
+            return array;
+        }
+    }
+
+    /**
+     * Region of the file which is written sequentially through a buffer.
+     * Without a channel nothing is written and only the size of the written data is counted.
+     * Stored sequences are counted and added to the filter, if there is one.
+     */
+    private static final class Segment {
+        private final @Nullable FileChannel channel;
+        private final @Nullable ByteBuffer buffer;
+        private final boolean compact;
+        private final NGramBloomFilter.@Nullable Builder filter;
+        private long position;
+        private long flushed;
+        private long sequences;
+
+        Segment(@Nullable FileChannel channel, long start, boolean compact, NGramBloomFilter.@Nullable Builder filter) {
+            this.channel = channel;
+            this.compact = compact;
+            this.filter = filter;
+            this.buffer = channel == null ? null : ByteBuffer.allocate(BUFFER_SIZE);
+            this.position = start;
+            this.flushed = start;
+        }
+
+        void addSequence(long hash) {
+            sequences++;
+            if (filter != null) filter.add(hash);
+        }
+
+        /**
+         * Adds every sequence which the suffix array continues to.
+         *
+         * @param hash hash of the sequence which leads to the array.
+         */
+        void addSequences(int @NotNull [] array, long hash) {
+            for (int i = 1; i < array.length; i++) {
+                hash = NGramBloomFilter.extend(hash, array[i]);
+                addSequence(hash);
+            }
+        }
+
+        long writeArray(int @NotNull [] array) {
+            final long start = position;
+            if (compact) {
+                writeVarLong((long) array.length << 1);
+                for (int i : array) writeVarLong(i);
+                return start;
+            }
+            writeInt(array.length);
+            for (int i : array) writeInt(i);
+            return start;
+        }
+
+        long writeNode(@NotNull Frame frame) {
+            final long start = position;
+            if (compact) {
+                writeCompactNode(frame);
+                return start;
+            }
+            writeInt(getCode(frame.node));
+            writeInt(frame.keys.length);
+            writeInt(getCount(frame.node));
+            writeInt(getContextCount(frame.node));
+            for (int key : frame.keys) writeInt(key);
+            for (long childPosition : frame.positions) writeLong(childPosition);
+            for (int index : frame.order) writeInt(index);
+            return start;
+        }
+
+        private void writeCompactNode(@NotNull Frame frame) {
+            final int successors = frame.keys.length;
+            final int blocks = successors > BLOCK_SIZE ? (successors + BLOCK_SIZE - 1) / BLOCK_SIZE : 0;
+            final int[] blockOffsets = new int[blocks];
+            final ByteArrayOutputStream pairs = new ByteArrayOutputStream();
+            for (int i = 0; i < successors; i++) {
+                if (i % BLOCK_SIZE == 0) {
+                    if (blocks > 0) blockOffsets[i / BLOCK_SIZE] = pairs.size();
+                    writeVarLong(pairs, frame.keys[i]);
+                    writeVarLong(pairs, position - frame.positions[i]);
+                } else {
+                    writeVarLong(pairs, frame.keys[i] - frame.keys[i - 1]);
+                    writeVarLong(pairs, frame.positions[i] - frame.positions[i - 1]);
+                }
+            }
+            writeVarLong(((long) successors << 1) | 1);
+            writeVarLong(getCount(frame.node));
+            writeVarLong(getContextCount(frame.node));
+            writeVarLong((long) blocks * 2 * Integer.BYTES + pairs.size());
+            for (int block = 0; block < blocks; block++) {
+                writeInt(frame.keys[block * BLOCK_SIZE]);
+                writeInt(blockOffsets[block]);
+            }
+            for (byte b : pairs.toByteArray()) writeByte(b);
+            for (int index : frame.order) writeVarLong(frame.keys[index]);
+        }
+
+        /**
+         * Values are written by 7 bits starting from the lowest ones, the highest bit of a byte is set if more bytes follow.
+         */
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((byte) value);
+        }
+
+        private static void writeVarLong(@NotNull ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        void writeByte(int b) {
+            if (buffer != null) {
+                if (!buffer.hasRemaining()) flush();
+                buffer.put((byte) b);
+            }
+            position++;
+        }
+
+        void writeInt(int i) {
+            if (buffer != null) {
+                if (buffer.remaining() < Integer.BYTES) flush();
+                buffer.putInt(i);
+            }
+            position += Integer.BYTES;
+        }
+
+        void writeLong(long l) {
+            if (buffer != null) {
+                if (buffer.remaining() < Long.BYTES) flush();
+                buffer.putLong(l);
+            }
+            position += Long.BYTES;
+        }
+
+        /**
+         * Positional writes don't move the position of the channel, so segments are written from many threads at once.
+         */
+        void flush() {
+            if (channel == null || buffer == null) return;
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) flushed += channel.write(buffer, flushed);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.clear();
+        }
     }
 
     public static @Nullable PersistentCounter deserialize(String counterPath) {
-        final Object counter;
-        try (FileInputStream in = new FileInputStream(counterPath);
-             DataInputStream din = new DataInputStream(in)) {
-//            Integer from the end defines root counter
-            final FileChannel channel = in.getChannel();
-            channel.position(channel.size() - 4);
-            int idx = din.readInt();
-            final CountersCache cache = new CountersCache(counterPath);
-            counter = cache.readFromFile(idx);
+        final PersistentCounter counter;
+        try {
+            counter = read(counterPath);
         } catch (IOException e) {
-            e.printStackTrace();
+            LOG.warn("Failed to read counter " + counterPath, e);
             return null;
         }
-        if (counter instanceof PersistentCounter) {
-            ((PersistentCounter) counter).prepareCache();
-            return new CounterWithForgetting((PersistentCounter) counter);
+        return new CounterWithForgetting(new CounterWithDelta(counter, counterPath));
+    }
+
+    /**
+     * @return counter of the file with its filter, without changes of the side files.
+     */
+    public static @NotNull PersistentCounter read(String counterPath) throws IOException {
+        final Object counter = new CountersCache(counterPath).readRoot();
+        if (!(counter instanceof PersistentCounter persistentCounter)) {
+            throw new IOException("Not a counter file: " + counterPath);
+        }
+        persistentCounter.prepareCache();
+        persistentCounter.setBloomFilter(NGramBloomFilter.read(counterPath));
+        return persistentCounter;
+    }
+
+    /**
+     * Folds changes of the counter into a new counter file of the same format, which replaces the file of the counter.
+     * The file and the changes are merged while the new file is written, see {@link MergedNode}.
+     * Changes made during compaction are kept in a new side file, and the counter continues with them and the new file.
+     *
+     * @return true if the file was replaced.
+     */
+    public static boolean compact(String counterPath, @NotNull CounterWithDelta counter) {
+        try {
+            final CounterWithDelta changes = counter.startCompaction();
+            final Path compacted = Path.of(counterPath + ".compacted");
+            new PersistentCounterManager(compacted.toString(), changes.getBase() instanceof CompactTrieCounter)
+                    .write(new MergedNode(changes, new int[0], changes.getCount()));
+            counter.finishCompaction(compacted);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Failed to compact counter " + counterPath, e);
+            return false;
         }
-        return null;
     }
 }
@@ -0,0 +1,85 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import com.intellij.completion.ngram.slp.counting.Counter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counter that returns counts of all prefixes of a sequence in one walk from the root of the trie.
+ * Windows of a token sequence share prefixes, so counts of all orders are obtained without re-walking the trie.
+ * <p>
+ * Lookups also accept a window of an {@code int[]} and write into a buffer of the caller,
+ * so querying a sequence of tokens neither boxes tokens, nor creates sublists, nor allocates results.
+ */
+public interface PrefixCounter extends Counter {
+    /**
+     * Writes {@code getCounts(indices[offset..offset + length))} into {@code counts[0]} and {@code counts[1]}.
+     */
+    void getCounts(int[] indices, int offset, int length, long[] counts);
+
+    /**
+     * Writes counts of all prefixes of {@code indices[offset..offset + length)} into {@code counts}:
+     * elements {@code 2 * i} and {@code 2 * i + 1} are equal to counts of the prefix of length {@code i + 1}.
+     */
+    void getPrefixCounts(int[] indices, int offset, int length, long[] counts);
+
+    /**
+     * @return array of length {@code 2 * indices.size()}: elements {@code 2 * i} and {@code 2 * i + 1}
+     * are equal to {@code getCounts(indices.subList(0, i + 1))}.
+     */
+    default long[] getPrefixCounts(List<Integer> indices) {
+        long[] counts = new long[2 * indices.size()];
+        getPrefixCounts(ArrayStorage.toArray(indices), 0, indices.size(), counts);
+        return counts;
+    }
+
+    /**
+     * Gets counts of a sequence from any counter, without boxing if the counter supports it.
+     */
+    static void getCounts(Counter counter, int[] indices, int offset, int length, long[] counts) {
+        if (counter instanceof PrefixCounter) {
+            ((PrefixCounter) counter).getCounts(indices, offset, length, counts);
+            return;
+        }
+        long[] sequenceCounts = counter.getCounts(toList(indices, offset, length));
+        counts[0] = sequenceCounts[0];
+        counts[1] = sequenceCounts[1];
+    }
+
+    /**
+     * Gets counts of all prefixes from any counter, in one walk if the counter supports it.
+     */
+    static void getPrefixCounts(Counter counter, int[] indices, int offset, int length, long[] counts) {
+        if (counter instanceof PrefixCounter) {
+            ((PrefixCounter) counter).getPrefixCounts(indices, offset, length, counts);
+            return;
+        }
+        List<Integer> sequence = toList(indices, offset, length);
+        for (int i = 0; i < length; i++) {
+            long[] prefixCounts = counter.getCounts(sequence.subList(0, i + 1));
+            counts[2 * i] = prefixCounts[0];
+            counts[2 * i + 1] = prefixCounts[1];
+        }
+    }
+
+    /**
+     * Gets counts of all prefixes from any counter, in one walk if the counter supports it.
+     */
+    static long[] getPrefixCounts(Counter counter, List<Integer> indices) {
+        if (counter instanceof PrefixCounter) return ((PrefixCounter) counter).getPrefixCounts(indices);
+        long[] counts = new long[2 * indices.size()];
+        for (int i = 0; i < indices.size(); i++) {
+            long[] prefixCounts = counter.getCounts(indices.subList(0, i + 1));
+            counts[2 * i] = prefixCounts[0];
+            counts[2 * i + 1] = prefixCounts[1];
+        }
+        return counts;
+    }
+
+    private static List<Integer> toList(int[] indices, int offset, int length) {
+        List<Integer> list = new ArrayList<>(length);
+        for (int i = offset; i < offset + length; i++) list.add(indices[i]);
+        return list;
+    }
+}
@@ -0,0 +1,60 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+import java.util.List;
+
+/**
+ * Batch of n-grams copied into one flat {@code int[]} and ordered lexicographically.
+ * N-grams of a file are applied in this order on learning and forgetting,
+ * so consecutive updates walk mostly the same trie nodes instead of jumping across the trie.
+ */
+final class SortedBatch {
+    final int[] tokens;
+    private final int[] offsets;
+    private final int[] order;
+
+    SortedBatch(List<List<Integer>> ngrams) {
+        int total = 0;
+        for (List<Integer> ngram : ngrams) total += ngram.size();
+        tokens = new int[total];
+        offsets = new int[ngrams.size() + 1];
+        int position = 0;
+        for (int i = 0; i < ngrams.size(); i++) {
+            offsets[i] = position;
+            for (int token : ngrams.get(i)) tokens[position++] = token;
+        }
+        offsets[ngrams.size()] = position;
+        order = new int[ngrams.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        IntArrays.quickSort(order, this::compare);
+    }
+
+    private int compare(int ngram1, int ngram2) {
+        int length1 = offsets[ngram1 + 1] - offsets[ngram1];
+        int length2 = offsets[ngram2 + 1] - offsets[ngram2];
+        for (int i = 0; i < Math.min(length1, length2); i++) {
+            int cmp = Integer.compare(tokens[offsets[ngram1] + i], tokens[offsets[ngram2] + i]);
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(length1, length2);
+    }
+
+    int size() {
+        return order.length;
+    }
+
+    /**
+     * @return offset in {@link #tokens} of the i-th n-gram in the sorted order.
+     */
+    int offset(int i) {
+        return offsets[order[i]];
+    }
+
+    /**
+     * @return length of the i-th n-gram in the sorted order.
+     */
+    int length(int i) {
+        return offsets[order[i] + 1] - offsets[order[i]];
+    }
+}
@@ -0,0 +1,215 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Successors of a trie node ordered by count: bigger count first, then smaller key.
+ * Every successor is packed with its count into one long, entries are kept in an array grouped into buckets
+ * of equal counts, buckets go in descending order of counts. The position of every successor and the bounds
+ * of every bucket are indexed, so when a count grows by one the entry is swapped with the head of its bucket
+ * and becomes the tail of the next bucket in O(1). When a count drops by one, the entry is swapped with the tail
+ * of its bucket and becomes the head of the previous bucket, so decrements and removals take O(1) as well.
+ * <p>
+ * Entries of one bucket aren't ordered, so ties are broken by key when top successors are read.
+ * Updates are guarded by the node, readers take a snapshot of the array and its size published together.
+ * A reader that races with an update may see a successor out of its place, but never a stale size with a new array.
+ */
+final class SuccessorOrder {
+    private long[] entries;
+    private int size;
+    /**
+     * Index of every successor in {@link #entries}.
+     */
+    private final Int2IntOpenHashMap positions;
+    /**
+     * Head and length of the bucket of every count, packed into a long.
+     */
+    private final Int2LongOpenHashMap buckets = new Int2LongOpenHashMap();
+    private volatile Snapshot snapshot;
+
+    private static final class Snapshot {
+        final long[] entries;
+        final int size;
+
+        Snapshot(long[] entries, int size) {
+            this.entries = entries;
+            this.size = size;
+        }
+    }
+
+    SuccessorOrder(int capacity) {
+        entries = new long[Math.max(capacity, 1)];
+        positions = new Int2IntOpenHashMap(capacity);
+        positions.defaultReturnValue(-1);
+        publish();
+    }
+
+    /**
+     * Builds the order of current successors of the node.
+     */
+    static SuccessorOrder of(AbstractTrie node) {
+        List<Integer> successors = node.getSuccessors();
+        SuccessorOrder order = new SuccessorOrder(successors.size());
+        for (int key : successors) {
+            int count = node.countOf(key);
+            if (count > 0) order.entries[order.size++] = pack(key, count);
+        }
+        Arrays.sort(order.entries, 0, order.size);
+        for (int i = 0; i < order.size; i++) {
+            order.positions.put(keyOf(order.entries[i]), i);
+            int count = countOf(order.entries[i]);
+            long bucket = order.buckets.get(count);
+            order.buckets.put(count, bucket == 0 ? bucket(i, 1) : bucket + 1);
+        }
+        order.publish();
+        return order;
+    }
+
+    static long pack(int key, int count) {
+        return ((long) (Integer.MAX_VALUE - count) << 32) | (key & 0xFFFFFFFFL);
+    }
+
+    static int keyOf(long entry) {
+        return (int) entry;
+    }
+
+    private static int countOf(long entry) {
+        return Integer.MAX_VALUE - (int) (entry >>> 32);
+    }
+
+    private static long bucket(int head, int length) {
+        return ((long) head << 32) | length;
+    }
+
+    private static int headOf(long bucket) {
+        return (int) (bucket >>> 32);
+    }
+
+    private static int lengthOf(long bucket) {
+        return (int) bucket;
+    }
+
+    /**
+     * Moves the successor to the bucket of its new count.
+     */
+    void update(int key, int oldCount, int newCount) {
+        if (oldCount == newCount) return;
+        int position = positions.get(key);
+        if (position < 0) {
+            if (newCount <= 0) return;
+            position = append(key);
+            moveUp(position, 0, newCount);
+            return;
+        }
+        int count = countOf(entries[position]);
+        if (newCount > count) moveUp(position, count, newCount);
+        else if (newCount < count) moveDown(position, count, newCount);
+    }
+
+    /**
+     * Adds an entry with zero count after all buckets.
+     */
+    private int append(int key) {
+        if (size == entries.length) entries = Arrays.copyOf(entries, size + (size >> 1) + 1);
+        entries[size] = pack(key, 0);
+        positions.put(key, size);
+        size++;
+        publish();
+        return size - 1;
+    }
+
+    /**
+     * Moves the entry to the front of its bucket, then past every bucket of a smaller count than the new one,
+     * each of them is shifted by one position. A count that grows by one passes no buckets.
+     */
+    private void moveUp(int position, int count, int newCount) {
+        if (count > 0) {
+            long bucket = buckets.get(count);
+            int head = headOf(bucket);
+            swap(position, head);
+            position = head;
+            if (lengthOf(bucket) == 1) buckets.remove(count);
+            else buckets.put(count, bucket(head + 1, lengthOf(bucket) - 1));
+        }
+        while (position > 0) {
+            int above = countOf(entries[position - 1]);
+            if (above >= newCount) break;
+            long bucket = buckets.get(above);
+            int head = headOf(bucket);
+            swap(position, head);
+            buckets.put(above, bucket(head + 1, lengthOf(bucket)));
+            position = head;
+        }
+        if (position > 0 && countOf(entries[position - 1]) == newCount) buckets.addTo(newCount, 1);
+        else buckets.put(newCount, bucket(position, 1));
+        entries[position] = pack(keyOf(entries[position]), newCount);
+    }
+
+    /**
+     * Moves the entry to the back of its bucket, then past every bucket of a bigger count than the new one.
+     * A count that drops by one passes no buckets, and a successor is removed when its count drops to zero,
+     * which happens in the last bucket, so both take O(1).
+     */
+    private void moveDown(int position, int count, int newCount) {
+        long bucket = buckets.get(count);
+        int tail = headOf(bucket) + lengthOf(bucket) - 1;
+        swap(position, tail);
+        position = tail;
+        if (lengthOf(bucket) == 1) buckets.remove(count);
+        else buckets.put(count, bucket(headOf(bucket), lengthOf(bucket) - 1));
+        while (position < size - 1) {
+            int below = countOf(entries[position + 1]);
+            if (below <= newCount) break;
+            long belowBucket = buckets.get(below);
+            int belowTail = position + lengthOf(belowBucket);
+            swap(position, belowTail);
+            buckets.put(below, bucket(position, lengthOf(belowBucket)));
+            position = belowTail;
+        }
+        if (newCount <= 0) {
+            positions.remove(keyOf(entries[position]));
+            size--;
+            publish();
+            return;
+        }
+        if (position < size - 1 && countOf(entries[position + 1]) == newCount) {
+            buckets.put(newCount, bucket(position, lengthOf(buckets.get(newCount)) + 1));
+        } else {
+            buckets.put(newCount, bucket(position, 1));
+        }
+        entries[position] = pack(keyOf(entries[position]), newCount);
+    }
+
+    private void swap(int i, int j) {
+        if (i == j) return;
+        long entry = entries[i];
+        entries[i] = entries[j];
+        entries[j] = entry;
+        positions.put(keyOf(entries[i]), i);
+        positions.put(keyOf(entries[j]), j);
+    }
+
+    private void publish() {
+        snapshot = new Snapshot(entries, size);
+    }
+
+    List<Integer> getTop(int limit) {
+        Snapshot snapshot = this.snapshot;
+        int end = Math.min(snapshot.size, limit);
+        if (end == 0) return new ArrayList<>();
+//        The last bucket is taken whole, its successors with the smallest keys go to the top
+        int lastCount = countOf(snapshot.entries[end - 1]);
+        while (end < snapshot.size && countOf(snapshot.entries[end]) == lastCount) end++;
+        long[] top = Arrays.copyOf(snapshot.entries, end);
+        Arrays.sort(top);
+        int topSize = Math.min(end, limit);
+        List<Integer> topSuccessors = new ArrayList<>(topSize);
+        for (int i = 0; i < topSize; i++) topSuccessors.add(keyOf(top[i]));
+        return topSuccessors;
+    }
+}
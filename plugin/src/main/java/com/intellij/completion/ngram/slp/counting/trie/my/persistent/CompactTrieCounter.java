@@ -0,0 +1,314 @@
+package com.intellij.completion.ngram.slp.counting.trie.my.persistent;
+
+import com.intellij.completion.ngram.slp.counting.trie.my.ArrayStorage;
+import com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Persistent counter of a compact file of version 4, which is queried right in the mapped file as {@link MappedTrieCounter}.
+ * Successors of a node are delta coded in blocks, so a successor is found by binary search over the first keys
+ * of blocks and then by a scan of at most {@link PersistentCounterManager#BLOCK_SIZE} pairs.
+ * Only the root, which is visited by every lookup, is kept decoded.
+ *
+ * @see PersistentCounterManager
+ */
+public class CompactTrieCounter extends PersistentCounter {
+    private static final int BLOCK_SIZE = PersistentCounterManager.BLOCK_SIZE;
+    private static final int BLOCK_ENTRY_SIZE = 2 * Integer.BYTES;
+    private static final long NOT_FOUND = -1;
+
+    private final MappedCounterFile file;
+    private final CountersCache cache;
+    private final long root;
+    private final int count;
+    private final int contextCount;
+    private final int[] rootKeys;
+    private final long[] rootPositions;
+
+    public CompactTrieCounter(@NotNull MappedCounterFile file, @NotNull CountersCache cache) {
+        this.file = file;
+        this.cache = cache;
+        this.root = file.getRootPosition();
+        Reader reader = new Reader(root);
+        int successors = readInt(reader) >>> 1;
+        this.count = readInt(reader);
+        this.contextCount = readInt(reader);
+        readLong(reader);
+        if (successors > BLOCK_SIZE) reader.position += (long) BLOCK_ENTRY_SIZE * blocks(successors);
+        this.rootKeys = new int[successors];
+        this.rootPositions = new long[successors];
+        for (int i = 0; i < successors; i++) {
+            int key = readInt(reader);
+            long position = readLong(reader);
+            boolean first = i % BLOCK_SIZE == 0;
+            rootKeys[i] = first ? key : rootKeys[i - 1] + key;
+            rootPositions[i] = first ? root - position : rootPositions[i - 1] + position;
+        }
+    }
+
+    /**
+     * Position of the decoder of varints. Lookups take readers of their threads, so they don't allocate readers.
+     */
+    private static final class Reader {
+        long position;
+
+        Reader(long position) {
+            this.position = position;
+        }
+    }
+
+    private static final ThreadLocal<Reader> READERS = ThreadLocal.withInitial(() -> new Reader(0));
+
+    private @NotNull Reader getReader() {
+        Reader reader = READERS.get();
+        reader.position = root;
+        return reader;
+    }
+
+    /**
+     * Decodes the varint at the position of the reader and moves the reader past it.
+     */
+    private long readLong(@NotNull Reader reader) {
+        byte first = file.getByte(reader.position++);
+        if (first >= 0) return first;
+        long value = first & 0x7F;
+        for (int shift = 7; ; shift += 7) {
+            byte b = file.getByte(reader.position++);
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    private int readInt(@NotNull Reader reader) {
+        return (int) readLong(reader);
+    }
+
+    private static int blocks(int successors) {
+        return (successors + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    private boolean isNode(long position) {
+        return (file.getByte(position) & 1) != 0;
+    }
+
+    private int getNodeCount(@NotNull Reader reader, long node) {
+        reader.position = node;
+        readLong(reader);
+        return readInt(reader);
+    }
+
+    private int getNodeContextCount(@NotNull Reader reader, long node) {
+        if (node == root) return contextCount;
+        reader.position = node;
+        readLong(reader);
+        readLong(reader);
+        return readInt(reader);
+    }
+
+    /**
+     * @return position of the successor of the node, or {@link #NOT_FOUND}.
+     */
+    private long findSuccessor(@NotNull Reader reader, long node, int key) {
+        if (node == root) {
+            int index = Arrays.binarySearch(rootKeys, key);
+            return index < 0 ? NOT_FOUND : rootPositions[index];
+        }
+        reader.position = node;
+        int successors = readInt(reader) >>> 1;
+        readLong(reader);
+        readLong(reader);
+        readLong(reader);
+        int inBlock = successors;
+        if (successors > BLOCK_SIZE) {
+            int blocks = blocks(successors);
+            long table = reader.position;
+            int low = 0;
+            int high = blocks - 1;
+            int block = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (file.getUnalignedInt(table + (long) BLOCK_ENTRY_SIZE * mid) <= key) {
+                    block = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (block < 0) return NOT_FOUND;
+            long offset = file.getUnalignedInt(table + (long) BLOCK_ENTRY_SIZE * block + Integer.BYTES);
+            reader.position = table + (long) BLOCK_ENTRY_SIZE * blocks + offset;
+            inBlock = Math.min(BLOCK_SIZE, successors - block * BLOCK_SIZE);
+        }
+        int successorKey = 0;
+        long position = node;
+        for (int i = 0; i < inBlock; i++) {
+            int keyDelta = readInt(reader);
+            long positionDelta = readLong(reader);
+            successorKey = i == 0 ? keyDelta : successorKey + keyDelta;
+            position = i == 0 ? node - positionDelta : position + positionDelta;
+            if (successorKey == key) return position;
+            if (successorKey > key) break;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Same as {@link ArrayStorage#checkPartialSequence(int[], int, int, int[])} for the suffix array at the position.
+     */
+    private boolean checkPartialSequence(@NotNull Reader reader, int[] indices, int index, int end, long array) {
+        reader.position = array;
+        int length = readInt(reader) >>> 1;
+        if (length < end - index) return false;
+        readLong(reader);
+        for (int i = 1; i < end - index; i++) {
+            if (indices[index + i] != readInt(reader)) return false;
+        }
+        return true;
+    }
+
+    private int getArrayCount(@NotNull Reader reader, long array) {
+        reader.position = array;
+        readLong(reader);
+        return readInt(reader);
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public long[] getCounts(List<Integer> indices) {
+        long[] counts = new long[2];
+        getCounts(ArrayStorage.toArray(indices), 0, indices.size(), counts);
+        return counts;
+    }
+
+    @Override
+    public void getCounts(int[] indices, int offset, int length, long[] counts) {
+        if (length == 0) {
+            counts[0] = counts[1] = count;
+            return;
+        }
+        Reader reader = getReader();
+        int end = offset + length;
+        long node = root;
+        long hash = NGramBloomFilter.EMPTY;
+        for (int index = offset; ; index++) {
+            hash = NGramBloomFilter.extend(hash, indices[index]);
+            long successor = node == root || mightContain(hash) ? findSuccessor(reader, node, indices[index]) : NOT_FOUND;
+            boolean nearLast = index == end - 1;
+            if (successor != NOT_FOUND && isNode(successor)) {
+                if (!nearLast) {
+                    node = successor;
+                    continue;
+                }
+                counts[0] = getNodeCount(reader, successor);
+                counts[1] = getNodeContextCount(reader, node);
+                return;
+            }
+            counts[0] = 0;
+            counts[1] = nearLast ? getNodeContextCount(reader, node) : 0;
+            if (successor != NOT_FOUND) {
+                int arrayCount = getArrayCount(reader, successor);
+                if (checkPartialSequence(reader, indices, index, end, successor)) {
+                    counts[0] = arrayCount;
+                    if (!nearLast) counts[1] = counts[0];
+                } else if (!nearLast && checkPartialSequence(reader, indices, index, end - 1, successor)) {
+                    counts[1] = arrayCount;
+                }
+            }
+            return;
+        }
+    }
+
+    @Override
+    public void getPrefixCounts(int[] indices, int offset, int length, long[] counts) {
+        Arrays.fill(counts, 0, 2 * length, 0);
+        Reader reader = getReader();
+        int end = offset + length;
+        long node = root;
+        long hash = NGramBloomFilter.EMPTY;
+        for (int index = offset; index < end; index++) {
+            int i = index - offset;
+            counts[2 * i + 1] = getNodeContextCount(reader, node);
+            hash = NGramBloomFilter.extend(hash, indices[index]);
+            if (node != root && !mightContain(hash)) break;
+            long successor = findSuccessor(reader, node, indices[index]);
+            if (successor == NOT_FOUND) break;
+            if (isNode(successor)) {
+                counts[2 * i] = getNodeCount(reader, successor);
+                node = successor;
+                continue;
+            }
+            reader.position = successor;
+            int arrayLength = readInt(reader) >>> 1;
+            int arrayCount = readInt(reader);
+            counts[2 * i] = arrayCount;
+//            Same as ArrayStorage.fillPrefixCounts
+            for (int j = index + 1; j < end && j - index < arrayLength; j++) {
+                counts[2 * (j - offset) + 1] = arrayCount;
+                if (indices[j] != readInt(reader)) break;
+                counts[2 * (j - offset)] = arrayCount;
+            }
+            break;
+        }
+    }
+
+    @Override
+    public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
+        List<Integer> topSuccessors = new ArrayList<>();
+        int[] sequence = ArrayStorage.toArray(indices);
+        Reader reader = new Reader(root);
+        long node = root;
+        for (int index = 0; index < sequence.length; index++) {
+            long successor = findSuccessor(reader, node, sequence[index]);
+            if (successor == NOT_FOUND) return topSuccessors;
+            if (isNode(successor)) {
+                node = successor;
+                continue;
+            }
+            int next = sequence.length - index;
+            if (checkPartialSequence(reader, sequence, index, sequence.length, successor) && limit > 0) {
+                reader.position = successor;
+                int length = readInt(reader) >>> 1;
+                if (next < length) {
+                    for (int i = 0; i < next; i++) readLong(reader);
+                    topSuccessors.add(readInt(reader));
+                }
+            }
+            return topSuccessors;
+        }
+        reader.position = node;
+        int successors = readInt(reader) >>> 1;
+        readLong(reader);
+        readLong(reader);
+        long pairsSize = readLong(reader);
+        reader.position += pairsSize;
+        for (int i = 0; i < Math.min(successors, limit); i++) topSuccessors.add(readInt(reader));
+        return topSuccessors;
+    }
+
+    @Override
+    public void prepareCache() {
+    }
+
+    @Override
+    public @NotNull CountersCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) {
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) {
+    }
+}
@@ -0,0 +1,420 @@
+package com.intellij.completion.ngram.slp.counting.trie.my.persistent;
+
+import com.intellij.completion.ngram.slp.counting.trie.my.ArrayStorage;
+import com.intellij.completion.ngram.slp.counting.trie.my.DeltaBuffer;
+import com.intellij.completion.ngram.slp.counting.trie.my.MapTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Persistent counter with n-grams learnt and removed after the file was written.
+ * Changes are kept in memory in two tries, the same way as in
+ * {@link com.intellij.completion.ngram.slp.counting.trie.my.FrozenTrieCounter}, and lookups merge them with the file.
+ * An n-gram which isn't counted by the file and the changes isn't removed, its removal would take its count
+ * from prefixes which it shares with other n-grams.
+ * <p>
+ * Changes are appended to the side file {@code counterPath + DELTA_SUFFIX} by batches of n-grams sorted in ascending
+ * order, every n-gram is written as the adjustment, its length and its tokens. The side file is replayed when
+ * the counter is loaded, so the model keeps edits between retrainings. Changes are folded into the counter file by
+ * {@link com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager#compact}.
+ * <p>
+ * Lookups hold the read lock, updates and replacement of the file hold the write lock,
+ * so the file is unmapped only when nobody reads it.
+ */
+public class CounterWithDelta extends PersistentCounter {
+    public static final String DELTA_SUFFIX = ".delta";
+    /**
+     * Delta which is being folded into the counter file, it is replayed if compaction didn't finish.
+     */
+    public static final String COMPACTING_SUFFIX = ".compacting";
+    /**
+     * Number of changed n-grams which are kept in memory before they are appended to the side file.
+     */
+    public static int FLUSH_THRESHOLD = 10_000;
+
+    private final String counterPath;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private PersistentCounter base;
+    private MapTrieCounter added = new MapTrieCounter();
+    private MapTrieCounter removed = new MapTrieCounter();
+    /**
+     * Changes which aren't flushed yet: the adjustment followed by the n-gram.
+     */
+    private final List<int[]> pending = new ArrayList<>();
+    private int size;
+    private boolean detached;
+
+    public CounterWithDelta(@NotNull PersistentCounter base, @NotNull String counterPath) {
+        this(base, counterPath, List.of(Path.of(counterPath + COMPACTING_SUFFIX), Path.of(counterPath + DELTA_SUFFIX)));
+    }
+
+    private CounterWithDelta(@NotNull PersistentCounter base, @NotNull String counterPath, @NotNull List<Path> sideFiles) {
+        this.base = base;
+        this.counterPath = counterPath;
+        for (Path sideFile : sideFiles) replay(sideFile);
+    }
+
+    private void replay(@NotNull Path deltaPath) {
+        if (!Files.exists(deltaPath)) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(deltaPath)))) {
+            while (true) {
+                int adj;
+                try {
+                    adj = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                int[] sequence = new int[in.readInt()];
+                for (int i = 0; i < sequence.length; i++) sequence[i] = in.readInt();
+                if (update(sequence, adj)) size++;
+            }
+        } catch (IOException e) {
+//            The tail of the side file can be lost if the IDE was killed while flushing
+            e.printStackTrace();
+        }
+    }
+
+    public @NotNull PersistentCounter getBase() {
+        lock.readLock().lock();
+        try {
+            return base;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of n-grams changed since the counter file was written, changes which cancel each other included.
+     */
+    public int getSize() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean hasChanges() {
+        return added.getCount() != 0 || removed.getCount() != 0;
+    }
+
+    /**
+     * Learns or removes n-grams, they are appended to the side file once {@link #FLUSH_THRESHOLD} of them are collected.
+     */
+    public void update(@NotNull List<List<Integer>> ngrams, int adj) {
+        lock.writeLock().lock();
+        try {
+            for (List<Integer> ngram : ngrams) {
+                int[] sequence = ArrayStorage.toArray(ngram);
+                if (!update(sequence, adj)) continue;
+                size++;
+                if (detached) continue;
+                int[] record = new int[sequence.length + 1];
+                record[0] = adj;
+                System.arraycopy(sequence, 0, record, 1, sequence.length);
+                pending.add(record);
+            }
+            if (pending.size() >= FLUSH_THRESHOLD) flush();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Learning a removed n-gram takes it back from the removed ones, and vice versa,
+     * so n-grams which were both learnt and removed don't take memory.
+     *
+     * @return false if the n-gram is to be removed, but it isn't counted.
+     */
+    private boolean update(int @NotNull [] sequence, int adj) {
+        if (adj < 0) {
+            long[] counts = new long[2];
+            getCounts(sequence, 0, sequence.length, counts);
+            if (counts[0] <= 0) return false;
+        }
+        MapTrieCounter undo = adj > 0 ? removed : added;
+        MapTrieCounter redo = adj > 0 ? added : removed;
+        if (undo.getSequenceCount(sequence) > 0) undo.update(sequence, 0, sequence.length, -1);
+        else redo.update(sequence, 0, sequence.length, 1);
+        return true;
+    }
+
+    /**
+     * Stops writing the side file, changes are kept only in memory from now on.
+     * Used when the counter file is moved aside to be replaced by a new one.
+     */
+    public void detach() {
+        lock.writeLock().lock();
+        try {
+            detached = true;
+            pending.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the side file again after {@link #detach()}, when the counter file was moved back.
+     */
+    public void attach() {
+        lock.writeLock().lock();
+        try {
+            detached = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public interface IORunnable {
+        void run() throws IOException;
+    }
+
+    /**
+     * Runs the action while the counter is neither updated nor read, so its files can be moved meanwhile.
+     */
+    public void runLocked(@NotNull IORunnable action) throws IOException {
+        lock.writeLock().lock();
+        try {
+            action.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends the pending n-grams to the side file.
+     */
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            if (pending.isEmpty()) return;
+            pending.sort((r1, r2) -> Arrays.compare(r1, 1, r1.length, r2, 1, r2.length));
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(counterPath + DELTA_SUFFIX, true)))) {
+                for (int[] record : pending) {
+                    out.writeInt(record[0]);
+                    out.writeInt(record.length - 1);
+                    for (int i = 1; i < record.length; i++) out.writeInt(record[i]);
+                }
+                pending.clear();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes changes and moves the side file aside, so changes made during compaction go to a new side file.
+     *
+     * @return counter with the changes which are being compacted, it isn't changed anymore.
+     */
+    public @NotNull CounterWithDelta startCompaction() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (detached) throw new IOException("Counter file was moved: " + counterPath);
+            flush();
+            Path compacting = Path.of(counterPath + COMPACTING_SUFFIX);
+            Path delta = Path.of(counterPath + DELTA_SUFFIX);
+            if (Files.exists(delta)) {
+                if (Files.exists(compacting)) {
+//                    The previous compaction failed, its changes go first
+                    try (OutputStream out = Files.newOutputStream(compacting, StandardOpenOption.APPEND)) {
+                        Files.copy(delta, out);
+                    }
+                    Files.delete(delta);
+                } else {
+                    Files.move(delta, compacting, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            return new CounterWithDelta(base, counterPath, List.of(compacting));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the counter file by the compacted one and continues with the changes made since compaction started.
+     * Lookups and updates wait meanwhile, so no edit is lost, and the old file is unmapped before it is replaced,
+     * which is impossible on Windows while the file is mapped.
+     * A counter which was detached meanwhile doesn't own its path anymore, so its compaction is abandoned.
+     *
+     * @param compacted file with the changes returned by {@link #startCompaction()} folded in.
+     */
+    public void finishCompaction(@NotNull Path compacted) throws IOException {
+//        A broken file is rejected while the old one still works
+        PersistentCounterManager.read(compacted.toString()).close();
+        lock.writeLock().lock();
+        try {
+            if (detached) throw new IOException("Counter file was moved: " + counterPath);
+            flush();
+            base.close();
+            try {
+//                The old filter goes first, a filter must never miss n-grams of the file next to it
+                NGramBloomFilter.delete(counterPath);
+                Files.move(compacted, Path.of(counterPath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Path compactedFilter = Path.of(compacted + NGramBloomFilter.SUFFIX);
+                if (Files.exists(compactedFilter)) {
+                    Files.move(compactedFilter, Path.of(counterPath + NGramBloomFilter.SUFFIX),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } finally {
+//                If the file wasn't replaced, the old one is mapped again
+                base = PersistentCounterManager.read(counterPath);
+            }
+            Files.deleteIfExists(Path.of(counterPath + COMPACTING_SUFFIX));
+            added = new MapTrieCounter();
+            removed = new MapTrieCounter();
+            size = 0;
+            replay(Path.of(counterPath + DELTA_SUFFIX));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            base.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int getCount() {
+        lock.readLock().lock();
+        try {
+            return base.getCount() + added.getCount() - removed.getCount();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long[] getCounts(List<Integer> indices) {
+        long[] counts = new long[2];
+        getCounts(ArrayStorage.toArray(indices), 0, indices.size(), counts);
+        return counts;
+    }
+
+    @Override
+    public void getCounts(int[] indices, int offset, int length, long[] counts) {
+        lock.readLock().lock();
+        try {
+            base.getCounts(indices, offset, length, counts);
+            if (!hasChanges()) return;
+            long count = counts[0];
+            long contextCount = counts[1];
+            added.getCounts(indices, offset, length, counts);
+            count += counts[0];
+            contextCount += counts[1];
+            removed.getCounts(indices, offset, length, counts);
+            counts[0] = Math.max(0, count - counts[0]);
+            counts[1] = Math.max(0, contextCount - counts[1]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void getPrefixCounts(int[] indices, int offset, int length, long[] counts) {
+        lock.readLock().lock();
+        try {
+            base.getPrefixCounts(indices, offset, length, counts);
+            if (!hasChanges()) return;
+            long[] delta = DeltaBuffer.get(2 * length);
+            added.getPrefixCounts(indices, offset, length, delta);
+            for (int i = 0; i < 2 * length; i++) counts[i] += delta[i];
+            removed.getPrefixCounts(indices, offset, length, delta);
+            for (int i = 0; i < 2 * length; i++) counts[i] = Math.max(0, counts[i] - delta[i]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
+        lock.readLock().lock();
+        try {
+            if (!hasChanges()) return base.getTopSuccessors(indices, limit);
+//            Successors that were removed can drop out of the top, so take enough of the file to replace them
+            long baseLimit = Math.min(Integer.MAX_VALUE, (long) limit + removed.getSuccessorCount(indices));
+            List<Integer> candidates = new ArrayList<>(base.getTopSuccessors(indices, (int) baseLimit));
+            for (int successor : added.getTopSuccessors(indices, Integer.MAX_VALUE)) {
+                if (!candidates.contains(successor)) candidates.add(successor);
+            }
+            int[] sequence = Arrays.copyOf(ArrayStorage.toArray(indices), indices.size() + 1);
+            long[] counts = new long[2];
+            List<long[]> order = new ArrayList<>();
+            for (int successor : candidates) {
+                sequence[indices.size()] = successor;
+                getCounts(sequence, 0, sequence.length, counts);
+                if (counts[0] > 0) order.add(new long[]{successor, counts[0]});
+            }
+            order.sort((s1, s2) -> s1[1] != s2[1] ? -Long.compare(s1[1], s2[1]) : Long.compare(s1[0], s2[0]));
+            List<Integer> topSuccessors = new ArrayList<>();
+            for (int i = 0; i < Math.min(order.size(), limit); i++) topSuccessors.add((int) order.get(i)[0]);
+            return topSuccessors;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void prefetch(int @NotNull [] tokens, int @NotNull [] windows, int count) {
+        lock.readLock().lock();
+        try {
+            base.prefetch(tokens, windows, count);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isCached() {
+        lock.readLock().lock();
+        try {
+            return base.isCached();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void prepareCache() {
+        lock.readLock().lock();
+        try {
+            base.prepareCache();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public @NotNull CountersCache getCache() {
+        return getBase().getCache();
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) {
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) {
+    }
+}
@@ -1,13 +1,15 @@
 package com.intellij.completion.ngram.slp.counting.trie.my.persistent;
 
 import com.intellij.completion.ngram.slp.counting.Counter;
+import com.intellij.completion.ngram.slp.counting.trie.my.ArrayStorage;
+import com.intellij.completion.ngram.slp.counting.trie.my.DeltaBuffer;
 import com.intellij.completion.ngram.slp.counting.trie.my.MapTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.PrefixCounter;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.List;
-import java.util.stream.IntStream;
 
 public class CounterWithForgetting extends PersistentCounter {
     private final PersistentCounter persistentCounter;
@@ -44,16 +46,35 @@ public class CounterWithForgetting extends PersistentCounter {
         this(null);
     }
 
+    public PersistentCounter getPersistentCounter() {
+        return persistentCounter;
+    }
+
     @Override
     public void prepareCache() {
         persistentCounter.prepareCache();
     }
 
+    @Override
+    public void prefetch(int @NotNull [] tokens, int @NotNull [] windows, int count) {
+        persistentCounter.prefetch(tokens, windows, count);
+    }
+
+    @Override
+    public boolean isCached() {
+        return persistentCounter.isCached();
+    }
+
     @Override
     public @NotNull CountersCache getCache() {
         return persistentCounter.getCache();
     }
 
+    @Override
+    public void close() {
+        persistentCounter.close();
+    }
+
     @Override
     public int getCount() {
         return persistentCounter.getCount() - counterToForget.getCount();
@@ -61,15 +82,30 @@ public class CounterWithForgetting extends PersistentCounter {
 
     @Override
     public long[] getCounts(List<Integer> indices) {
-        long[] counts = persistentCounter.getCounts(indices);
-        long[] countsToSubtract = counterToForget.getCounts(indices);
-        return subtractArrays(counts, countsToSubtract);
+        long[] counts = new long[2];
+        getCounts(ArrayStorage.toArray(indices), 0, indices.size(), counts);
+        return counts;
     }
 
-    private long[] subtractArrays(long[] counts, long[] countsToSubtract) {
-        final long[] res = new long[2];
-        IntStream.range(0, 2).forEach(i -> res[i] = Math.max(0, counts[i] - countsToSubtract[i]));
-        return res;
+    @Override
+    public void getCounts(int[] indices, int offset, int length, long[] counts) {
+        persistentCounter.getCounts(indices, offset, length, counts);
+        if (counterToForget.getCount() == 0) return;
+        long count = counts[0];
+        long contextCount = counts[1];
+        PrefixCounter.getCounts(counterToForget, indices, offset, length, counts);
+        counts[0] = Math.max(0, count - counts[0]);
+        counts[1] = Math.max(0, contextCount - counts[1]);
+    }
+
+    @Override
+    public void getPrefixCounts(int[] indices, int offset, int length, long[] counts) {
+        persistentCounter.getPrefixCounts(indices, offset, length, counts);
+//        Nothing is forgotten most of the time, so the buffer for subtraction is rarely needed
+        if (counterToForget.getCount() == 0) return;
+        long[] countsToSubtract = DeltaBuffer.get(2 * length);
+        PrefixCounter.getPrefixCounts(counterToForget, indices, offset, length, countsToSubtract);
+        for (int i = 0; i < 2 * length; i++) counts[i] = Math.max(0, counts[i] - countsToSubtract[i]);
     }
 
     @Override
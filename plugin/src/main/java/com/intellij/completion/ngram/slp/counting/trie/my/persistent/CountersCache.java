@@ -2,37 +2,76 @@ package com.intellij.completion.ngram.slp.counting.trie.my.persistent;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Nodes of a counter file read on demand.
+ * Nodes of the top {@link #CACHE_DEPTH} levels are pinned: they are visited by almost every lookup,
+ * so they are never evicted. Other nodes are kept in a cache bounded by their estimated size in bytes,
+ * so a root map with many thousands of successors and a short suffix array don't weigh the same.
+ */
 public class CountersCache {
+    /**
+     * Number of levels below the root which are pinned.
+     */
     public static int CACHE_DEPTH = 1;
-    public static int MAXIMUM_CACHE_SIZE = 3_000;
+    /**
+     * Estimated size of not pinned nodes in bytes.
+     */
+    public static long MAXIMUM_CACHE_WEIGHT = 64L * 1024 * 1024;
+    private static final int OBJECT_SIZE = 16;
+    private static final int TRIE_SIZE = 64;
+    /**
+     * Key and position in a hash map with the default load factor.
+     */
+    private static final int SUCCESSOR_SIZE = 16;
     private final String counterPath;
+    private final MappedCounterFile file;
+    private final Map<Long, Object> pinned = new ConcurrentHashMap<>();
+    private final LongAdder pinnedHits = new LongAdder();
 
-    public CountersCache(String counterPath) {
+    public CountersCache(String counterPath) throws IOException {
         this.counterPath = counterPath;
+        this.file = new MappedCounterFile(counterPath);
     }
 
-    private final LoadingCache<Integer, Object> dynamicCache =
+    private final LoadingCache<Long, Object> dynamicCache =
             CacheBuilder.newBuilder()
-                    .maximumSize(MAXIMUM_CACHE_SIZE)
+                    .maximumWeight(MAXIMUM_CACHE_WEIGHT)
+                    .weigher((Long key, Object value) -> weigh(value))
+                    .recordStats()
                     .build(new CacheLoader<>() {
                         @Override
-                        public @NotNull Object load(@NotNull Integer key) throws IOException {
+                        public @NotNull Object load(@NotNull Long key) {
                             return readFromFile(key);
                         }
                     });
 
+    /**
+     * @return estimated size of the node in bytes.
+     */
+    static int weigh(@NotNull Object node) {
+        if (node instanceof PersistentAbstractTrie) {
+            long size = TRIE_SIZE + (long) SUCCESSOR_SIZE * ((PersistentAbstractTrie) node).getSuccessorIdxs().size();
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+        return OBJECT_SIZE + Integer.BYTES * ((int[]) node).length;
+    }
 
-    public @Nullable Object get(int idx) {
+    public @Nullable Object get(long idx) {
+        Object node = pinned.get(idx);
+        if (node != null) {
+            pinnedHits.increment();
+            return node;
+        }
         try {
             return dynamicCache.get(idx);
         } catch (Exception e) {
@@ -41,29 +80,66 @@ public class CountersCache {
         }
     }
 
-    public @NotNull Object readFromFile(int idx) throws IOException {
-        try (FileInputStream in = new FileInputStream(counterPath);
-             DataInputStream din = new DataInputStream(new BufferedInputStream(in))) {
-            changePosition(in, idx);
-            int code = din.readInt();
-            if (code < 0) {
-                PersistentAbstractTrie value = new PersistentMapTrieCounter(counterPath, this);
-                value.readExternal(din);
-                return value;
-            } else {
-                return readArray(din, code);
-            }
-        }
+    /**
+     * Reads the node and keeps it until the cache is dropped.
+     */
+    public @NotNull Object pin(long idx) {
+        return pinned.computeIfAbsent(idx, key -> {
+            Object node = dynamicCache.getIfPresent(key);
+            if (node == null) return readFromFile(key);
+            dynamicCache.invalidate(key);
+            return node;
+        });
+    }
+
+    /**
+     * @return hits, misses and load time of not pinned nodes.
+     */
+    public @NotNull CacheStats getStats() {
+        return dynamicCache.stats();
+    }
+
+    public long getPinnedHitCount() {
+        return pinnedHits.sum();
     }
 
-    public static int @NotNull [] readArray(@NotNull DataInputStream din, int length) throws IOException {
-        int[] res = new int[length];
-        for (int j = 0; j < length; j++) res[j] = din.readInt();
-        return res;
+    public int getPinnedSize() {
+        return pinned.size();
+    }
+
+    /**
+     * @return estimated size of not pinned nodes in bytes.
+     */
+    public long getWeight() {
+        return dynamicCache.asMap().values().stream().mapToLong(CountersCache::weigh).sum();
+    }
+
+    /**
+     * Nodes of files of version 3 and 4 are searched right in the mapping, older files are read node by node into the cache.
+     */
+    public @NotNull Object readRoot() {
+        if (file.getVersion() >= 4) return new CompactTrieCounter(file, this);
+        if (file.getVersion() >= 3) return new MappedTrieCounter(file, this);
+        return readFromFile(file.getRootPosition());
+    }
+
+    public @NotNull Object readFromFile(long idx) {
+        int code = file.getInt(idx);
+        if (code < 0) {
+            PersistentAbstractTrie value = new PersistentMapTrieCounter(counterPath, this);
+            value.read(file, idx + 4);
+            return value;
+        } else {
+            return file.getInts(idx + 4, code);
+        }
     }
 
-    public static void changePosition(FileInputStream in, int idx) throws IOException {
-        FileChannel channel = in.getChannel();
-        channel.position(idx);
+    /**
+     * Drops the nodes and unmaps the file, counters of the file mustn't be queried after that.
+     */
+    public void close() {
+        pinned.clear();
+        dynamicCache.invalidateAll();
+        file.close();
     }
 }
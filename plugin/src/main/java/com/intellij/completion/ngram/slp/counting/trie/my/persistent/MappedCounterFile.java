@@ -0,0 +1,207 @@
+package com.intellij.completion.ngram.slp.counting.trie.my.persistent;
+
+import com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongConsumer;
+
+/**
+ * Counter file written by {@link PersistentCounterManager#serialize} and mapped into memory once.
+ * Nodes are decoded straight from the mapping with absolute reads, so loading a node doesn't open the file,
+ * doesn't seek and doesn't create streams, it only reads pages which usually are already in the page cache.
+ * Absolute reads don't change the state of the buffers, so one mapping is shared by all threads.
+ * <p>
+ * A single mapping can't be bigger than 2 GB, so the file is mapped in segments of 1 GB.
+ * Everything in the file is written as big-endian ints and longs aligned by 4 bytes, so an int never crosses
+ * a border of segments, and a long is read as two ints.
+ * Files of all versions are read: the old one with int positions, version 2 with long positions,
+ * version 3 where successors of a node are sorted by key, and the compact version 4 of varints,
+ * which is aligned only at the trailer and is read byte by byte, see {@link CompactTrieCounter}.
+ * <p>
+ * Tools which study the layout of files set {@link #ACCESS_RECORDER} to receive the position of every read.
+ * <p>
+ * A mapping lives until its buffers are collected, and a mapped file can't be replaced or deleted on Windows,
+ * so owners of the file {@link #close()} it once nobody reads it.
+ */
+public final class MappedCounterFile {
+    /**
+     * Receives positions of all reads from counter files, it is null unless accesses are profiled.
+     */
+    public static @Nullable LongConsumer ACCESS_RECORDER = null;
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = (int) SEGMENT_SIZE - 1;
+    private static final int OLD_TRAILER_SIZE = Integer.BYTES;
+    private static final int TRAILER_SIZE = Long.BYTES + 2 * Integer.BYTES;
+    /**
+     * {@code Unsafe.invokeCleaner} bound to the instance of {@code Unsafe}, null if it isn't accessible.
+     */
+    private static final @Nullable MethodHandle CLEANER = findCleaner();
+
+    private final ByteBuffer[] bytes;
+    private final IntBuffer[] segments;
+    private final long size;
+    private final int version;
+    private final long rootPosition;
+    private boolean closed;
+
+    public MappedCounterFile(@NotNull String counterPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(counterPath), StandardOpenOption.READ)) {
+            size = channel.size();
+            if (size < OLD_TRAILER_SIZE || size % Integer.BYTES != 0) {
+                throw new IOException("Corrupted counter file: " + counterPath);
+            }
+            bytes = new ByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+            segments = new IntBuffer[bytes.length];
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * SEGMENT_SIZE;
+                bytes[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+                segments[i] = bytes[i].asIntBuffer();
+            }
+        }
+        if (size >= TRAILER_SIZE && getInt(size - Integer.BYTES) == PersistentCounterManager.FORMAT_MAGIC) {
+            version = getInt(size - 2 * Integer.BYTES);
+            if (version < 2 || version > PersistentCounterManager.COMPACT_FORMAT_VERSION) {
+                throw new IOException("Unsupported version of counter file: " + version);
+            }
+            rootPosition = getLong(size - TRAILER_SIZE);
+        } else {
+            version = 1;
+            rootPosition = getInt(size - OLD_TRAILER_SIZE);
+        }
+    }
+
+    /**
+     * @return version of the format, 1 for files without a trailer.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if positions of children are written as longs, false for files of the old format.
+     */
+    public boolean hasLongPositions() {
+        return version >= 2;
+    }
+
+    /**
+     * @return position of the root counter.
+     */
+    public long getRootPosition() {
+        return rootPosition;
+    }
+
+    /**
+     * @param position position in bytes, as it was returned by the serializer.
+     */
+    public int getInt(long position) {
+        record(position);
+        return segments[(int) (position >>> SEGMENT_SHIFT)].get(((int) position & SEGMENT_MASK) >> 2);
+    }
+
+    public byte getByte(long position) {
+        record(position);
+        return bytes[(int) (position >>> SEGMENT_SHIFT)].get((int) position & SEGMENT_MASK);
+    }
+
+    /**
+     * Same as {@link #getInt(long)} for positions which aren't aligned.
+     */
+    public int getUnalignedInt(long position) {
+        ByteBuffer segment = bytes[(int) (position >>> SEGMENT_SHIFT)];
+        int offset = (int) position & SEGMENT_MASK;
+        if (offset + Integer.BYTES <= segment.limit()) {
+            record(position);
+            return segment.getInt(offset);
+        }
+        int res = 0;
+        for (int i = 0; i < Integer.BYTES; i++) res = (res << 8) | (getByte(position + i) & 0xFF);
+        return res;
+    }
+
+    private static void record(long position) {
+        LongConsumer recorder = ACCESS_RECORDER;
+        if (recorder != null) recorder.accept(position);
+    }
+
+    public long getLong(long position) {
+        return ((long) getInt(position) << 32) | (getInt(position + Integer.BYTES) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return position of a child written after the given position: a long or an int depending on the format.
+     */
+    public long getPosition(long position) {
+        return hasLongPositions() ? getLong(position) : getInt(position);
+    }
+
+    /**
+     * @return number of bytes taken by a position of a child.
+     */
+    public int positionSize() {
+        return hasLongPositions() ? Long.BYTES : Integer.BYTES;
+    }
+
+    public int @NotNull [] getInts(long position, int length) {
+        record(position);
+        int[] res = new int[length];
+        int segment = (int) (position >>> SEGMENT_SHIFT);
+        int index = ((int) position & SEGMENT_MASK) >> 2;
+        int inFirstSegment = Math.min(length, segments[segment].limit() - index);
+        segments[segment].get(index, res, 0, inFirstSegment);
+        if (inFirstSegment < length) segments[segment + 1].get(0, res, inFirstSegment, length - inFirstSegment);
+        return res;
+    }
+
+    /**
+     * Unmaps the file right away instead of waiting for its buffers to be collected.
+     * The file mustn't be read after that, a read of an unmapped buffer crashes the JVM.
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        for (ByteBuffer segment : bytes) {
+            if (!unmap(segment)) return;
+        }
+    }
+
+    /**
+     * Unmaps the mapped buffer, it mustn't be read after that.
+     *
+     * @return false if the buffer can't be unmapped, then it is unmapped when it is collected.
+     */
+    static boolean unmap(@NotNull ByteBuffer buffer) {
+        if (CLEANER == null) return false;
+        try {
+            CLEANER.invokeExact(buffer);
+            return true;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    private static @Nullable MethodHandle findCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.intellij.completion.ngram.slp.counting.trie.my.persistent;
+
+import com.intellij.completion.ngram.slp.counting.trie.my.ArrayStorage;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Persistent counter of a file of version 3 which is queried right in the mapped file.
+ * Successors of a node are found by binary search over the sorted keys of the node, and suffix arrays
+ * are compared in place, so a lookup doesn't create node objects and doesn't go through {@link CountersCache}.
+ * Only the root, which is visited by every lookup, is kept decoded.
+ *
+ * @see com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager
+ */
+public class MappedTrieCounter extends PersistentCounter {
+    /**
+     * Code, number of successors, count and context count.
+     */
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+    private static final int NOT_FOUND = -1;
+
+    private final MappedCounterFile file;
+    private final CountersCache cache;
+    private final long root;
+    private final int count;
+    private final int contextCount;
+    private final int[] rootKeys;
+    private final long[] rootPositions;
+
+    public MappedTrieCounter(@NotNull MappedCounterFile file, @NotNull CountersCache cache) {
+        this.file = file;
+        this.cache = cache;
+        this.root = file.getRootPosition();
+        this.count = getNodeCount(root);
+        this.contextCount = file.getInt(root + 3 * Integer.BYTES);
+        int successors = file.getInt(root + Integer.BYTES);
+        this.rootKeys = file.getInts(root + HEADER_SIZE, successors);
+        this.rootPositions = new long[successors];
+        long positions = root + HEADER_SIZE + (long) Integer.BYTES * successors;
+        for (int i = 0; i < successors; i++) rootPositions[i] = file.getLong(positions + (long) Long.BYTES * i);
+    }
+
+    private boolean isNode(long position) {
+        return file.getInt(position) < 0;
+    }
+
+    private int getNodeCount(long node) {
+        return file.getInt(node + 2 * Integer.BYTES);
+    }
+
+    private int getNodeContextCount(long node) {
+        return node == root ? contextCount : file.getInt(node + 3 * Integer.BYTES);
+    }
+
+    /**
+     * @return position of the successor of the node, or {@link #NOT_FOUND}.
+     */
+    private long findSuccessor(long node, int key) {
+        if (node == root) {
+            int index = Arrays.binarySearch(rootKeys, key);
+            return index < 0 ? NOT_FOUND : rootPositions[index];
+        }
+        int successors = file.getInt(node + Integer.BYTES);
+        long keys = node + HEADER_SIZE;
+        int low = 0;
+        int high = successors - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midKey = file.getInt(keys + (long) Integer.BYTES * mid);
+            if (midKey < key) low = mid + 1;
+            else if (midKey > key) high = mid - 1;
+            else return file.getLong(keys + (long) Integer.BYTES * successors + (long) Long.BYTES * mid);
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Same as {@link ArrayStorage#checkPartialSequence(int[], int, int, int[])} for the suffix array at the position.
+     */
+    private boolean checkPartialSequence(int[] indices, int index, int end, long array) {
+        int length = file.getInt(array);
+        if (length < end - index) return false;
+        for (int i = 1; i < end - index; i++) {
+            if (indices[index + i] != file.getInt(array + (long) Integer.BYTES * (i + 1))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public long[] getCounts(List<Integer> indices) {
+        long[] counts = new long[2];
+        getCounts(ArrayStorage.toArray(indices), 0, indices.size(), counts);
+        return counts;
+    }
+
+    @Override
+    public void getCounts(int[] indices, int offset, int length, long[] counts) {
+        if (length == 0) {
+            counts[0] = counts[1] = count;
+            return;
+        }
+        int end = offset + length;
+        long node = root;
+        long hash = NGramBloomFilter.EMPTY;
+        for (int index = offset; ; index++) {
+            hash = NGramBloomFilter.extend(hash, indices[index]);
+            long successor = node == root || mightContain(hash) ? findSuccessor(node, indices[index]) : NOT_FOUND;
+            boolean nearLast = index == end - 1;
+            if (successor != NOT_FOUND && isNode(successor)) {
+                if (!nearLast) {
+                    node = successor;
+                    continue;
+                }
+                counts[0] = getNodeCount(successor);
+                counts[1] = getNodeContextCount(node);
+                return;
+            }
+            counts[0] = 0;
+            counts[1] = nearLast ? getNodeContextCount(node) : 0;
+            if (successor != NOT_FOUND) {
+                int arrayCount = file.getInt(successor + Integer.BYTES);
+                if (checkPartialSequence(indices, index, end, successor)) {
+                    counts[0] = arrayCount;
+                    if (!nearLast) counts[1] = counts[0];
+                } else if (!nearLast && checkPartialSequence(indices, index, end - 1, successor)) {
+                    counts[1] = arrayCount;
+                }
+            }
+            return;
+        }
+    }
+
+    @Override
+    public void getPrefixCounts(int[] indices, int offset, int length, long[] counts) {
+        Arrays.fill(counts, 0, 2 * length, 0);
+        int end = offset + length;
+        long node = root;
+        long hash = NGramBloomFilter.EMPTY;
+        for (int index = offset; index < end; index++) {
+            int i = index - offset;
+            counts[2 * i + 1] = getNodeContextCount(node);
+            hash = NGramBloomFilter.extend(hash, indices[index]);
+            if (node != root && !mightContain(hash)) break;
+            long successor = findSuccessor(node, indices[index]);
+            if (successor == NOT_FOUND) break;
+            if (isNode(successor)) {
+                counts[2 * i] = getNodeCount(successor);
+                node = successor;
+                continue;
+            }
+            int arrayLength = file.getInt(successor);
+            int arrayCount = file.getInt(successor + Integer.BYTES);
+            counts[2 * i] = arrayCount;
+//            Same as ArrayStorage.fillPrefixCounts
+            for (int j = index + 1; j < end && j - index < arrayLength; j++) {
+                counts[2 * (j - offset) + 1] = arrayCount;
+                if (indices[j] != file.getInt(successor + (long) Integer.BYTES * (j - index + 1))) break;
+                counts[2 * (j - offset)] = arrayCount;
+            }
+            break;
+        }
+    }
+
+    @Override
+    public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
+        List<Integer> topSuccessors = new ArrayList<>();
+        int[] sequence = ArrayStorage.toArray(indices);
+        long node = root;
+        for (int index = 0; index < sequence.length; index++) {
+            long successor = findSuccessor(node, sequence[index]);
+            if (successor == NOT_FOUND) return topSuccessors;
+            if (isNode(successor)) {
+                node = successor;
+                continue;
+            }
+            int next = sequence.length - index;
+            if (checkPartialSequence(sequence, index, sequence.length, successor)
+                    && next < file.getInt(successor) && limit > 0) {
+                topSuccessors.add(file.getInt(successor + (long) Integer.BYTES * (next + 1)));
+            }
+            return topSuccessors;
+        }
+        int successors = file.getInt(node + Integer.BYTES);
+        long keys = node + HEADER_SIZE;
+        long order = keys + (long) (Integer.BYTES + Long.BYTES) * successors;
+        for (int i = 0; i < Math.min(successors, limit); i++) {
+            topSuccessors.add(file.getInt(keys + (long) Integer.BYTES * file.getInt(order + (long) Integer.BYTES * i)));
+        }
+        return topSuccessors;
+    }
+
+    @Override
+    public void prepareCache() {
+    }
+
+    @Override
+    public @NotNull CountersCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) {
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) {
+    }
+}
@@ -0,0 +1,156 @@
+package com.intellij.completion.ngram.slp.counting.trie.my.persistent;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of all sequences longer than one token stored in a counter file, it is written next to the file by
+ * {@link com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager#serialize}.
+ * Hashes of sequences are rolling: the hash of a sequence is extended token by token while the trie is walked,
+ * so a walk stops at the first prefix which is certainly absent, without searching the node for it.
+ * <p>
+ * The file is the number of hash functions, the logarithm of the number of words, and the words of the filter.
+ * It is mapped into memory, so the filter doesn't take the heap.
+ */
+public final class NGramBloomFilter {
+    public static final String SUFFIX = ".bloom";
+    /**
+     * Size of the filter in bits per stored sequence, 10 bits give about 1% of false positives.
+     */
+    public static int BITS_PER_NGRAM = 10;
+    /**
+     * Hash of the empty sequence.
+     */
+    public static final long EMPTY = 0x2545F4914F6CDD1DL;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int MAX_HASHES = 16;
+    /**
+     * The filter is mapped by one buffer, so it is limited by 1 GB.
+     */
+    private static final int MAX_WORDS_SHIFT = 27;
+
+    private final ByteBuffer buffer;
+    private final int hashes;
+    private final long mask;
+    private boolean closed;
+
+    private NGramBloomFilter(@NotNull ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.hashes = buffer.getInt(0);
+        this.mask = (64L << buffer.getInt(Integer.BYTES)) - 1;
+    }
+
+    /**
+     * @return hash of the sequence extended by the token.
+     */
+    public static long extend(long hash, int token) {
+        long h = (hash + token + 1) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * @return false if the sequence with the hash certainly isn't stored.
+     */
+    public boolean mightContain(long hash) {
+        long step = Long.rotateLeft(hash, 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = (hash + i * step) & mask;
+            if ((buffer.getLong(HEADER_SIZE + (int) (bit >>> 6) * Long.BYTES) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the filter written next to the counter file, or null if there is no filter.
+     */
+    public static @Nullable NGramBloomFilter read(@NotNull String counterPath) {
+        Path path = Path.of(counterPath + SUFFIX);
+        if (!Files.exists(path)) return null;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_SIZE
+                    || buffer.limit() != HEADER_SIZE + ((long) Long.BYTES << buffer.getInt(Integer.BYTES))) {
+                throw new IOException("Corrupted bloom filter: " + path);
+            }
+            return new NGramBloomFilter(buffer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Unmaps the filter right away, so its file can be deleted or moved on all systems.
+     * The filter mustn't be consulted after that.
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        MappedCounterFile.unmap(buffer);
+    }
+
+    public static void delete(@NotNull String counterPath) throws IOException {
+        Files.deleteIfExists(Path.of(counterPath + SUFFIX));
+    }
+
+    /**
+     * Filter which is filled from many threads at once while the counter is written.
+     */
+    public static final class Builder {
+        private final AtomicLongArray words;
+        private final int wordsShift;
+        private final int hashes;
+        private final long mask;
+
+        private Builder(int wordsShift, int hashes) {
+            this.words = new AtomicLongArray(1 << wordsShift);
+            this.wordsShift = wordsShift;
+            this.hashes = hashes;
+            this.mask = (64L << wordsShift) - 1;
+        }
+
+        /**
+         * @return builder of a filter for the number of sequences, or null if the filter would be too big.
+         */
+        public static @Nullable Builder create(long sequences) {
+            long bits = Math.max(64, sequences * BITS_PER_NGRAM);
+            int wordsShift = 64 - Long.numberOfLeadingZeros((bits - 1) >>> 6);
+            if (wordsShift > MAX_WORDS_SHIFT) return null;
+            double bitsPerSequence = (double) (64L << wordsShift) / Math.max(1, sequences);
+            int hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerSequence * Math.log(2))));
+            return new Builder(wordsShift, hashes);
+        }
+
+        public void add(long hash) {
+            long step = Long.rotateLeft(hash, 32) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = (hash + i * step) & mask;
+                int word = (int) (bit >>> 6);
+                long value = 1L << bit;
+                if ((words.get(word) & value) == 0) words.getAndAccumulate(word, value, (a, b) -> a | b);
+            }
+        }
+
+        public void write(@NotNull String counterPath) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(counterPath + SUFFIX)))) {
+                out.writeInt(hashes);
+                out.writeInt(wordsShift);
+                for (int i = 0; i < words.length(); i++) out.writeLong(words.get(i));
+            }
+        }
+    }
+}
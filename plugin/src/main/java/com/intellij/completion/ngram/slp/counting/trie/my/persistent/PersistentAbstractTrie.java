@@ -19,15 +19,27 @@ import com.intellij.completion.ngram.slp.counting.trie.my.ArrayStorage;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.DataInputStream;
-import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public abstract class PersistentAbstractTrie extends PersistentCounter {
+    private static final int PREFETCH_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    /**
+     * Threads of {@link #prefetch}, they don't take the common pool from other tasks of the IDE.
+     */
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newFixedThreadPool(PREFETCH_THREADS, runnable -> {
+        final Thread thread = new Thread(runnable, "Counter prefetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
     int[] counts;
     protected String counterPath;
 
@@ -51,7 +63,7 @@ public abstract class PersistentAbstractTrie extends PersistentCounter {
      */
     public abstract Object getSuccessor(int key);
 
-    protected abstract Collection<Integer> getSuccessorIdxs();
+    protected abstract Collection<Long> getSuccessorIdxs();
 
     abstract List<Integer> getTopSuccessorsInternal(int limit);
 
@@ -61,7 +73,10 @@ public abstract class PersistentAbstractTrie extends PersistentCounter {
     public final void writeExternal(ObjectOutput out) {
     }
 
-    public abstract void readExternal(@NotNull DataInputStream din) throws IOException;
+    /**
+     * Reads the node which starts at the given position of the file, right after its code.
+     */
+    public abstract void read(@NotNull MappedCounterFile file, long position);
 
     @Override
     public final int getCount() {
@@ -80,33 +95,70 @@ public abstract class PersistentAbstractTrie extends PersistentCounter {
 
     @Override
     public final long[] getCounts(List<Integer> indices) {
-        if (indices.isEmpty()) return new long[]{getCount(), getCount()};
-        return getCounts(indices, 0);
-    }
-
-    private long[] getCounts(List<Integer> indices, int index) {
-        Integer next = indices.get(index);
-        Object succ = this.getSuccessor(next);
-        boolean nearLast = index == indices.size() - 1;
-        // Recurse if applicable
-        if ((succ instanceof PersistentAbstractTrie successor)) {
-            if (!nearLast) return successor.getCounts(indices, index + 1);
-            else return new long[]{successor.getCount(), this.counts[1]};
-        }
-        // Else, return counts from array if present
         long[] counts = new long[2];
-        if (nearLast) counts[1] = this.counts[1];
-        if (succ != null) {
-            int[] successor = (int[]) succ;
-            if (ArrayStorage.checkPartialSequence(indices, index, successor)) {
-                counts[0] = successor[0];
-                if (!nearLast) counts[1] = counts[0];
-            } else if (!nearLast && successor.length >= indices.size() - index
-                    && ArrayStorage.checkPartialSequence(indices.subList(0, indices.size() - 1), index, successor)) {
-                counts[1] = successor[0];
+        getCounts(ArrayStorage.toArray(indices), 0, indices.size(), counts);
+        return counts;
+    }
+
+    @Override
+    public final void getCounts(int[] indices, int offset, int length, long[] counts) {
+        if (length == 0) {
+            counts[0] = counts[1] = getCount();
+            return;
+        }
+        int end = offset + length;
+        PersistentAbstractTrie node = this;
+        for (int index = offset; ; index++) {
+            Object succ = node.getSuccessor(indices[index]);
+            boolean nearLast = index == end - 1;
+            // Descend if applicable
+            if (succ instanceof PersistentAbstractTrie successor) {
+                if (!nearLast) {
+                    node = successor;
+                    continue;
+                }
+                counts[0] = successor.getCount();
+                counts[1] = node.counts[1];
+                return;
             }
+            // Else, return counts from array if present
+            counts[0] = 0;
+            counts[1] = nearLast ? node.counts[1] : 0;
+            if (succ != null) {
+                int[] successor = (int[]) succ;
+                if (ArrayStorage.checkPartialSequence(indices, index, end, successor)) {
+                    counts[0] = successor[0];
+                    if (!nearLast) counts[1] = counts[0];
+                } else if (!nearLast && successor.length >= end - index
+                        && ArrayStorage.checkPartialSequence(indices, index, end - 1, successor)) {
+                    counts[1] = successor[0];
+                }
+            }
+            return;
+        }
+    }
+
+    @Override
+    public final void getPrefixCounts(int[] indices, int offset, int length, long[] counts) {
+        Arrays.fill(counts, 0, 2 * length, 0);
+        int end = offset + length;
+        PersistentAbstractTrie node = this;
+        for (int index = offset; index < end; index++) {
+            int i = index - offset;
+            counts[2 * i + 1] = node.counts[1];
+            Object succ = node.getSuccessor(indices[index]);
+            if (succ instanceof PersistentAbstractTrie successor) {
+                counts[2 * i] = successor.getCount();
+                node = successor;
+                continue;
+            }
+            if (succ != null) {
+                int[] successor = (int[]) succ;
+                counts[2 * i] = successor[0];
+                ArrayStorage.fillPrefixCounts(indices, offset, index, end, successor, counts);
+            }
+            break;
         }
-        return counts;
     }
 
     private Object getSuccessorNode(List<Integer> indices, int index) {
@@ -148,11 +200,97 @@ public abstract class PersistentAbstractTrie extends PersistentCounter {
      * @param idx position of the counter in the file.
      * @return new or cached instance of the counter.
      */
-    public @Nullable Object readCounter(int idx) {
-        assert idx < Integer.MAX_VALUE;
+    public @Nullable Object readCounter(long idx) {
         return cache.get(idx);
     }
 
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+
+    /**
+     * Walks paths of the sequences in parallel, so their nodes are loaded before the sequences are queried one by one.
+     * Successors are written in the order of their keys, so sequences are sorted to visit the file from start to end.
+     * A sequence which is a prefix of another one is skipped, its path is walked anyway.
+     * Windows are sorted in place, so sequences aren't copied.
+     */
+    @Override
+    public void prefetch(int @NotNull [] tokens, int @NotNull [] windows, int count) {
+        sortWindows(tokens, windows, count);
+        int longest = 0;
+        for (int i = 0; i < count; i++) {
+//            In sorted order a prefix goes right before the sequences which it starts
+            if (i + 1 < count && isPrefix(tokens, windows, i, i + 1)) continue;
+            windows[2 * longest] = windows[2 * i];
+            windows[2 * longest + 1] = windows[2 * i + 1];
+            longest++;
+        }
+//        Every thread walks a contiguous part of the sorted sequences
+        List<Future<?>> parts = new ArrayList<>();
+        int partSize = (longest + PREFETCH_THREADS - 1) / PREFETCH_THREADS;
+        for (int from = 0; from < longest; from += partSize) {
+            int partFrom = from;
+            int partTo = Math.min(longest, from + partSize);
+            parts.add(PREFETCH_EXECUTOR.submit(() -> {
+                long[] counts = new long[2];
+                for (int i = partFrom; i < partTo; i++) getCounts(tokens, windows[2 * i], windows[2 * i + 1], counts);
+            }));
+        }
+        try {
+            for (Future<?> part : parts) part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static boolean isPrefix(int @NotNull [] tokens, int @NotNull [] windows, int prefix, int sequence) {
+        int from = windows[2 * prefix];
+        int length = windows[2 * prefix + 1];
+        int sequenceFrom = windows[2 * sequence];
+        int mismatch = Arrays.mismatch(tokens, from, from + length,
+                tokens, sequenceFrom, sequenceFrom + windows[2 * sequence + 1]);
+        return mismatch < 0 || mismatch == length;
+    }
+
+    /**
+     * Heap sort of the windows by their sequences, it doesn't allocate.
+     */
+    private static void sortWindows(int @NotNull [] tokens, int @NotNull [] windows, int count) {
+        for (int i = count / 2 - 1; i >= 0; i--) siftDown(tokens, windows, i, count);
+        for (int size = count - 1; size > 0; size--) {
+            swap(windows, 0, size);
+            siftDown(tokens, windows, 0, size);
+        }
+    }
+
+    private static void siftDown(int @NotNull [] tokens, int @NotNull [] windows, int i, int size) {
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && compare(tokens, windows, child + 1, child) > 0) child++;
+            if (compare(tokens, windows, child, i) <= 0) return;
+            swap(windows, i, child);
+            i = child;
+        }
+    }
+
+    private static int compare(int @NotNull [] tokens, int @NotNull [] windows, int i, int j) {
+        return Arrays.compare(tokens, windows[2 * i], windows[2 * i] + windows[2 * i + 1],
+                tokens, windows[2 * j], windows[2 * j] + windows[2 * j + 1]);
+    }
+
+    private static void swap(int @NotNull [] windows, int i, int j) {
+        int offset = windows[2 * i];
+        int length = windows[2 * i + 1];
+        windows[2 * i] = windows[2 * j];
+        windows[2 * i + 1] = windows[2 * j + 1];
+        windows[2 * j] = offset;
+        windows[2 * j + 1] = length;
+    }
+
     @Override
     public void prepareCache() {
         prepareCache(0);
@@ -161,11 +299,9 @@ public abstract class PersistentAbstractTrie extends PersistentCounter {
     private void prepareCache(int currentDepth) {
         if (currentDepth < CountersCache.CACHE_DEPTH) {
             getSuccessorIdxs().parallelStream().forEach(idx -> {
-                if (idx < Integer.MAX_VALUE) {
-                    @Nullable Object counter = cache.get(idx);
-                    if (counter instanceof PersistentAbstractTrie) {
-                        ((PersistentAbstractTrie) counter).prepareCache(currentDepth + 1);
-                    }
+                Object counter = cache.pin(idx);
+                if (counter instanceof PersistentAbstractTrie) {
+                    ((PersistentAbstractTrie) counter).prepareCache(currentDepth + 1);
                 }
             });
         }
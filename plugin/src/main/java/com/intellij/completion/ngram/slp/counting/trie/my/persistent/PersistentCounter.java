@@ -1,14 +1,36 @@
 package com.intellij.completion.ngram.slp.counting.trie.my.persistent;
 
-import com.intellij.completion.ngram.slp.counting.Counter;
+import com.intellij.completion.ngram.slp.counting.trie.my.PrefixCounter;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.ObjIntConsumer;
 
 /**
  * Counter which is dumped on disk. Its n-gram counts can't be changed.
  */
-public abstract class PersistentCounter implements Counter {
+public abstract class PersistentCounter implements PrefixCounter {
+    /**
+     * Filter of sequences stored in the file, it is consulted before a successor is searched in the file.
+     * The root is decoded in memory and is searched without the filter, so sequences of one token aren't in the filter.
+     */
+    protected @Nullable NGramBloomFilter bloomFilter;
+
+    public void setBloomFilter(@Nullable NGramBloomFilter bloomFilter) {
+        this.bloomFilter = bloomFilter;
+    }
+
+    /**
+     * @param hash {@link NGramBloomFilter} hash of a sequence.
+     * @return false if the sequence certainly isn't stored.
+     */
+    protected final boolean mightContain(long hash) {
+        final NGramBloomFilter filter = bloomFilter;
+        return filter == null || filter.mightContain(hash);
+    }
+
     @Override
     public void countBatch(List<List<Integer>> indices) {
     }
@@ -47,5 +69,52 @@ public abstract class PersistentCounter implements Counter {
 
     public abstract void prepareCache();
 
+    /**
+     * Loads nodes of the sequences before the sequences are queried one by one.
+     * Counters which are read right from the mapping have nothing to load, see {@link #isCached()}.
+     *
+     * @param windows pairs of the offset and the length of every sequence in the tokens, the first {@code count}
+     *                pairs are taken and may be reordered.
+     */
+    public void prefetch(int @NotNull [] tokens, int @NotNull [] windows, int count) {
+    }
+
+    /**
+     * @return true if nodes are loaded through {@link CountersCache}, so {@link #prefetch} is worth being called.
+     */
+    public boolean isCached() {
+        return false;
+    }
+
+    /**
+     * Visits every sequence stored in the counter together with the number of times it was counted
+     * (not as a prefix of a longer sequence). Only the public lookups are used, so it works for files of all versions.
+     */
+    public void forEachSequence(@NotNull ObjIntConsumer<List<Integer>> consumer) {
+        forEachSequence(new ArrayList<>(), getCount(), consumer);
+    }
+
+    private void forEachSequence(@NotNull List<Integer> path, long count, @NotNull ObjIntConsumer<List<Integer>> consumer) {
+        long ownCount = count;
+        for (int key : getTopSuccessors(path, Integer.MAX_VALUE)) {
+            path.add(key);
+            long successorCount = getCounts(path)[0];
+            ownCount -= successorCount;
+            if (successorCount > 0) forEachSequence(path, successorCount, consumer);
+            path.remove(path.size() - 1);
+        }
+        if (ownCount != 0 && !path.isEmpty()) consumer.accept(path, (int) ownCount);
+    }
+
     public abstract @NotNull CountersCache getCache();
+
+    /**
+     * Releases the file of the counter and of its filter, the counter mustn't be queried after that.
+     */
+    public void close() {
+        getCache().close();
+        final NGramBloomFilter filter = bloomFilter;
+        bloomFilter = null;
+        if (filter != null) filter.close();
+    }
 }
@@ -15,18 +15,16 @@
 
 package com.intellij.completion.ngram.slp.counting.trie.my.persistent;
 
-import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.DataInputStream;
-import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import java.util.stream.Collectors;
 
 public class PersistentMapTrieCounter extends PersistentAbstractTrie {
-    private Int2IntOpenHashMap map;
+    private Int2LongOpenHashMap map;
 
     public PersistentMapTrieCounter(String counterPath, CountersCache cache) {
         this(counterPath, cache, 1);
@@ -34,7 +32,8 @@ public class PersistentMapTrieCounter extends PersistentAbstractTrie {
 
     public PersistentMapTrieCounter(String counterPath, CountersCache cache, int initSize) {
         super(counterPath, cache);
-        map = new Int2IntOpenHashMap(initSize);
+        map = new Int2LongOpenHashMap(initSize);
+        map.defaultReturnValue(-1);
         map.trim();
     }
 
@@ -53,26 +52,35 @@ public class PersistentMapTrieCounter extends PersistentAbstractTrie {
 
     @Override
     public @Nullable Object getSuccessor(int next) {
-        int idx = map.get(next);
+        long idx = map.get(next);
         return idx < 0 ? null : readCounter(idx);
     }
 
     @Override
-    public void readExternal(@NotNull DataInputStream din) throws IOException {
-        int successors = din.readInt();
+    public void read(@NotNull MappedCounterFile file, long position) {
+        int successors = file.getInt(position);
         this.counts = new int[2];
-        this.counts[0] = din.readInt();
-        this.counts[1] = din.readInt();
-        this.map = new Int2IntOpenHashMap(successors);
+        this.counts[0] = file.getInt(position + 4);
+        this.counts[1] = file.getInt(position + 8);
+        this.map = new Int2LongOpenHashMap(successors);
+        map.defaultReturnValue(-1);
+        if (file.getVersion() >= 3) {
+//            Keys and positions are separate arrays
+            long positions = position + 12 + (long) Integer.BYTES * successors;
+            for (int pos = 0; pos < successors; pos++) {
+                map.put(file.getInt(position + 12 + (long) Integer.BYTES * pos), file.getLong(positions + (long) Long.BYTES * pos));
+            }
+            return;
+        }
+        int entrySize = Integer.BYTES + file.positionSize();
         for (int pos = 0; pos < successors; pos++) {
-            int key = din.readInt();
-            int idx = din.readInt();
-            map.put(key, idx);
+            long entry = position + 12 + (long) entrySize * pos;
+            map.put(file.getInt(entry), file.getPosition(entry + Integer.BYTES));
         }
     }
 
     @Override
-    protected Collection<Integer> getSuccessorIdxs() {
+    protected Collection<Long> getSuccessorIdxs() {
         return map.values();
     }
 }
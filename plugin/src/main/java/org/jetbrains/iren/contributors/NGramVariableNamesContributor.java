@@ -27,35 +27,51 @@ public abstract class NGramVariableNamesContributor implements VariableNamesCont
                                           @NotNull List<VarNamePrediction> predictionList) {
         Project project = ReadAction.compute(variable::getProject);
         ModelRunner modelRunner = getModelRunnerToContribute(project, variable);
-        if (modelRunner == null || notSupported(variable)) {
-            return 0;
+        if (modelRunner == null) return 0;
+        try {
+            if (notSupported(variable)) {
+                return 0;
+            }
+            if (forgetFile()) {
+                NGramModelManager.getInstance(project)
+                        .forgetFileIfNeeded(modelRunner, ReadAction.compute(variable::getContainingFile));
+            }
+            predictionList.addAll(modelRunner.suggestNames(variable));
+            return modelRunner.getModelPriority();
+        } finally {
+            releaseModelRunner(project, modelRunner);
         }
-        if (forgetFile()) {
-            NGramModelManager.getInstance(project)
-                    .forgetFileIfNeeded(modelRunner, ReadAction.compute(variable::getContainingFile));
-        }
-        predictionList.addAll(modelRunner.suggestNames(variable));
-        return modelRunner.getModelPriority();
     }
 
     @Override
     public synchronized @NotNull Pair<Double, Double> getProbability(@NotNull PsiNameIdentifierOwner variable) {
         Project project = ReadAction.compute(variable::getProject);
         ModelRunner modelRunner = getModelRunnerToContribute(project, variable);
-        if (modelRunner == null || notSupported(variable)) {
-            return new Pair<>(.0, .0);
-        }
-        if (forgetFile()) {
-            NGramModelManager.getInstance(project)
-                    .forgetFileIfNeeded(modelRunner, ReadAction.compute(variable::getContainingFile));
+        if (modelRunner == null) return new Pair<>(.0, .0);
+        try {
+            if (notSupported(variable)) {
+                return new Pair<>(.0, .0);
+            }
+            if (forgetFile()) {
+                NGramModelManager.getInstance(project)
+                        .forgetFileIfNeeded(modelRunner, ReadAction.compute(variable::getContainingFile));
+            }
+            return modelRunner.getProbability(variable);
+        } finally {
+            releaseModelRunner(project, modelRunner);
         }
-        return modelRunner.getProbability(variable);
     }
 
     protected abstract boolean forgetFile();
 
+    /**
+     * @return model runner for the query, it is passed to {@link #releaseModelRunner} when the query is finished.
+     */
     public abstract @Nullable ModelRunner getModelRunnerToContribute(Project project, @NotNull PsiNameIdentifierOwner variable);
 
+    protected void releaseModelRunner(Project project, @NotNull ModelRunner modelRunner) {
+    }
+
     private static boolean notSupported(@NotNull PsiNameIdentifierOwner identifierOwner) {
         LanguageSupporter supporter = LanguageSupporter.getInstance(identifierOwner.getLanguage());
         return supporter == null || !supporter.isVariableDeclaration(identifierOwner);
@@ -64,12 +80,17 @@ public abstract class NGramVariableNamesContributor implements VariableNamesCont
     public @NotNull Context.Statistics getContextStatistics(@NotNull PsiNameIdentifierOwner variable) {
         Project project = ReadAction.compute(variable::getProject);
         ModelRunner modelRunner = getModelRunnerToContribute(project, variable);
-        if (modelRunner == null || notSupported(variable)) {
-            return Context.Statistics.EMPTY;
-        }
-        if (forgetFile()) {
-            NGramModelManager.getInstance(project).forgetFileIfNeeded(modelRunner, ReadAction.compute(variable::getContainingFile));
+        if (modelRunner == null) return Context.Statistics.EMPTY;
+        try {
+            if (notSupported(variable)) {
+                return Context.Statistics.EMPTY;
+            }
+            if (forgetFile()) {
+                NGramModelManager.getInstance(project).forgetFileIfNeeded(modelRunner, ReadAction.compute(variable::getContainingFile));
+            }
+            return modelRunner.getContextStatistics(variable);
+        } finally {
+            releaseModelRunner(project, modelRunner);
         }
-        return modelRunner.getContextStatistics(variable);
     }
 }
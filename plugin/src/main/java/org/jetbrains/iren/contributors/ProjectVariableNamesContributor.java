@@ -19,8 +19,13 @@ public class ProjectVariableNamesContributor extends NGramVariableNamesContribut
     public @Nullable ModelRunner getModelRunnerToContribute(Project project, @NotNull PsiNameIdentifierOwner variable) {
         String name = new ModelUtils().getName(project, variable.getLanguage());
         if (NGramModelsUsabilityService.getInstance(project).isUsable(name)) {
-            return NGramModelManager.getInstance(project).get(name);
+            return NGramModelManager.getInstance(project).acquire(name);
         }
         return null;
     }
+
+    @Override
+    protected void releaseModelRunner(Project project, @NotNull ModelRunner modelRunner) {
+        NGramModelManager.getInstance(project).release(modelRunner);
+    }
 }
@@ -1,5 +1,6 @@
 package org.jetbrains.iren.ngram;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
@@ -7,7 +8,13 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.stream.JsonReader;
 import com.intellij.completion.ngram.slp.counting.Counter;
+import com.intellij.completion.ngram.slp.counting.trie.my.AbstractTrie;
+import com.intellij.completion.ngram.slp.counting.trie.my.ArrayStorage;
+import com.intellij.completion.ngram.slp.counting.trie.my.ConcurrentTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.FrozenTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.IntMapTrieCounter;
 import com.intellij.completion.ngram.slp.counting.trie.my.MapTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.PrefixCounter;
 import com.intellij.completion.ngram.slp.modeling.Model;
 import com.intellij.completion.ngram.slp.modeling.mix.BiDirectionalModel;
 import com.intellij.completion.ngram.slp.modeling.ngram.JMModel;
@@ -36,8 +43,14 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static java.lang.Math.*;
@@ -48,7 +61,32 @@ public class NGramModelRunner implements ModelRunner {
     protected final static String REVERSE_COUNTER_FILE = "reverseCounter.ser";
     protected final static String REMEMBER_IDENTIFIERS_FILE = "rememberedIdentifiers.json";
     public static long CACHE_SIZE = 1024L;
+    /**
+     * Maximum number of variables whose contexts are kept by {@link #getContext(PsiNameIdentifierOwner)}.
+     */
+    public static long CONTEXT_CACHE_SIZE = 256L;
     public static boolean DEFAULT_BIDIRECTIONAL = true;
+    /**
+     * Load nodes of persistent counters touched by all candidates before ranking them.
+     * Only counters of files which are read through the cache are prefetched, it is off until it proves faster.
+     */
+    public static boolean PREFETCH = false;
+    /**
+     * Score candidates only until the top of predictions is known, see {@link #rankTopCandidates}.
+     * The top is the same, but candidates which aren't scored take part in normalization with their upper bounds,
+     * so probabilities of predictions are lower than the exact ones.
+     */
+    public static boolean TOP_K_RANKING = false;
+    /**
+     * Creates counters for the n-gram models. Use {@link IntMapTrieCounter} to reduce memory footprint of the training.
+     */
+    public static Supplier<Counter> DEFAULT_COUNTER = MapTrieCounter::new;
+    /**
+     * If true, every training thread counts n-grams into its own private shard without any synchronization,
+     * and shards are merged into the counters of the model on {@link #eval()}.
+     */
+    public static boolean SHARDED_TRAINING = false;
+    private static final double JM_LAMBDA = 0.5;
     /**
      * {@link Set} of identifier names.
      */
@@ -59,8 +97,21 @@ public class NGramModelRunner implements ModelRunner {
     protected final int order;
     protected boolean myTraining = false;
     protected LanguageSupporter mySupporter = null;
-    private PsiNameIdentifierOwner lastVariable = null;
-    private Context<Integer> lastContext = null;
+    private volatile @Nullable Map<Thread, Model> myShards = null;
+    /**
+     * Extractions of contexts of variables, they complete with the modification stamps of their files
+     * at the moment of extraction. Variables are weak keys, so removed elements aren't kept in memory.
+     */
+    private final Cache<PsiNameIdentifierOwner, CompletableFuture<CachedContext>> myContexts = CacheBuilder.newBuilder()
+            .maximumSize(CONTEXT_CACHE_SIZE)
+            .weakKeys()
+            .build();
+    /**
+     * Tokens of the last forgotten file. The file is learnt back from them without lexing,
+     * and exactly as it was forgotten, even if it has been edited since then.
+     */
+    private @Nullable PsiFile myForgottenFile = null;
+    private @Nullable List<Integer> myForgottenIndices = null;
 
     public String getVocabularyFile() {
         return "vocabulary.txt";
@@ -71,10 +122,15 @@ public class NGramModelRunner implements ModelRunner {
     }
 
     public NGramModelRunner(boolean biDirectional, int order) {
-        this(biDirectional ?
-                        new BiDirectionalModel(new JMModel(order, 0.5, new MapTrieCounter()),
-                                new JMModel(order, 0.5, new MapTrieCounter())) :
-                        new JMModel(order, 0.5, new MapTrieCounter()),
+        this(biDirectional, order, DEFAULT_COUNTER);
+    }
+
+    public NGramModelRunner(@NotNull Supplier<Counter> counterFactory) {
+        this(DEFAULT_BIDIRECTIONAL, 6, counterFactory);
+    }
+
+    public NGramModelRunner(boolean biDirectional, int order, @NotNull Supplier<Counter> counterFactory) {
+        this(createModel(biDirectional, order, counterFactory),
                 new Vocabulary(),
                 new IntOpenHashSet(),
                 biDirectional,
@@ -89,6 +145,13 @@ public class NGramModelRunner implements ModelRunner {
         this.order = order;
     }
 
+    private static @NotNull Model createModel(boolean biDirectional, int order, @NotNull Supplier<Counter> counterFactory) {
+        return biDirectional ?
+                new BiDirectionalModel(new JMModel(order, JM_LAMBDA, counterFactory.get()),
+                        new JMModel(order, JM_LAMBDA, counterFactory.get())) :
+                new JMModel(order, JM_LAMBDA, counterFactory.get());
+    }
+
     public Set<Integer> getRememberedIdentifiers() {
         return myRememberedIdentifiers;
     }
@@ -103,10 +166,64 @@ public class NGramModelRunner implements ModelRunner {
 
     public void train() {
         myTraining = true;
+        if (SHARDED_TRAINING && !hasConcurrentCounters()) myShards = new ConcurrentHashMap<>();
     }
 
     public void eval() {
         myTraining = false;
+        mergeShards();
+    }
+
+    private void mergeShards() {
+        if (myShards == null) return;
+        final List<Counter> counters = getCounters(myModel);
+        for (Model shard : myShards.values()) {
+            final List<Counter> shardCounters = getCounters(shard);
+            for (int i = 0; i < counters.size(); i++) {
+                final Counter counter = counters.get(i);
+                if (counter instanceof AbstractTrie) {
+                    ((AbstractTrie) counter).merge(shardCounters.get(i));
+                } else if (counter instanceof ConcurrentTrieCounter) {
+                    ((ConcurrentTrieCounter) counter).merge(shardCounters.get(i));
+                }
+            }
+        }
+        myShards = null;
+    }
+
+    /**
+     * Replaces counters of the trained model with {@link FrozenTrieCounter}s, which are faster to query.
+     * Files can still be learnt and forgotten after that.
+     */
+    public void freeze() {
+        for (NGramModel model : getNGramModels(myModel)) {
+            final Counter counter = model.getCounter();
+            if (counter instanceof AbstractTrie || counter instanceof ConcurrentTrieCounter) {
+                model.setCounter(FrozenTrieCounter.freeze(counter));
+            }
+        }
+    }
+
+    /**
+     * @return counters of the n-gram models of the runner: forward and reverse ones for the bidirectional model.
+     */
+    public @NotNull List<Counter> getCounters() {
+        return getCounters(myModel);
+    }
+
+    /**
+     * @return counters of the n-gram models: forward and reverse ones for the bidirectional model.
+     */
+    private static @NotNull List<Counter> getCounters(@NotNull Model model) {
+        return getNGramModels(model).stream().map(NGramModel::getCounter).collect(Collectors.toList());
+    }
+
+    private static @NotNull List<NGramModel> getNGramModels(@NotNull Model model) {
+        if (model instanceof BiDirectionalModel) {
+            return List.of((NGramModel) ((BiDirectionalModel) model).getForward(),
+                    (NGramModel) ((BiDirectionalModel) model).getReverse());
+        }
+        return model instanceof NGramModel ? List.of((NGramModel) model) : List.of();
     }
 
     private final LoadingCache<SmartPsiElementPointer<PsiNameIdentifierOwner>, List<VarNamePrediction>> cache =
@@ -152,27 +269,40 @@ public class NGramModelRunner implements ModelRunner {
     @NotNull
     private Context.Statistics getContextStatistics(@NotNull Context<Integer> intContext) {
         Context<Integer> unknownContext = intContext.with(0);
+        int[] tokens = ArrayStorage.toArray(unknownContext.getTokens());
+        int[] reversedTokens = reversed(tokens);
+        long[] counts = new long[2];
         int usageNumber = intContext.getVarIdxs().size();
         int countsSum = 0;
         for (int idx : intContext.getVarIdxs()) {
-            countsSum += getContextCount(unknownContext.getTokens(), idx);
+            countsSum += getContextCount(tokens, reversedTokens, idx, counts);
         }
         return new Context.Statistics(usageNumber, countsSum);
     }
 
-    private int getContextCount(List<Integer> tokens, int index) {
-        List<Integer> forward = tokens.subList(max(0, index - getOrder() + 1), index + 1);
+    private int getContextCount(int[] tokens, int[] reversedTokens, int index, long[] counts) {
+        int forwardStart = max(0, index - getOrder() + 1);
         if (myModel instanceof BiDirectionalModel) {
-            List<Integer> reverse = tokens.subList(index, min(index + getOrder(), tokens.size()));
-            Collections.reverse(reverse);
             final Counter forwardCounter = ((NGramModel) ((BiDirectionalModel) myModel).getForward()).getCounter();
             final Counter reverseCounter = ((NGramModel) ((BiDirectionalModel) myModel).getReverse()).getCounter();
-            return (int) (forwardCounter.getCounts(forward)[1] + reverseCounter.getCounts(reverse)[1]);
+            PrefixCounter.getCounts(forwardCounter, tokens, forwardStart, index + 1 - forwardStart, counts);
+            long contextCount = counts[1];
+//            Tokens to the right of index in reverse order, the window ends with the token at index
+            int reverseLength = min(getOrder(), tokens.length - index);
+            PrefixCounter.getCounts(reverseCounter, reversedTokens, tokens.length - index - reverseLength, reverseLength, counts);
+            return (int) (contextCount + counts[1]);
         } else {
-            return (int) ((NGramModel) myModel).getCounter().getCounts(forward)[1];
+            PrefixCounter.getCounts(((NGramModel) myModel).getCounter(), tokens, forwardStart, index + 1 - forwardStart, counts);
+            return (int) counts[1];
         }
     }
 
+    private static int[] reversed(int[] tokens) {
+        int[] reversedTokens = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++) reversedTokens[i] = tokens[tokens.length - 1 - i];
+        return reversedTokens;
+    }
+
     @Override
     public @NotNull Pair<Double, Double> getProbability(PsiNameIdentifierOwner variable) {
         @Nullable Context<Integer> intContext = getContext(variable);
@@ -191,6 +321,11 @@ public class NGramModelRunner implements ModelRunner {
 
     @Override
     public void learnPsiFile(@NotNull PsiFile file) {
+        final List<Integer> forgottenIndices = takeForgottenIndices(file);
+        if (forgottenIndices != null) {
+            myModel.learn(forgottenIndices);
+            return;
+        }
         LanguageSupporter supporter = getSupporter(file);
         if (supporter == null) return;
         @NotNull List<String> lexed = supporter.lexPsiFile(file, myTraining ? rememberIdName(supporter) : null);
@@ -207,25 +342,59 @@ public class NGramModelRunner implements ModelRunner {
         };
     }
 
-    protected synchronized void learnLexed(List<String> lexed) {
-        List<Integer> indices = myVocabulary.toIndices(lexed);
-        if (myVocabulary.getWordIndices().size() != myVocabulary.getWords().size()) {
-            throw new AssertionError("Something went wrong with vocabulary!");
+    protected void learnLexed(List<String> lexed) {
+        List<Integer> indices;
+        synchronized (this) {
+            indices = myVocabulary.toIndices(lexed);
+            if (myVocabulary.getWordIndices().size() != myVocabulary.getWords().size()) {
+                throw new AssertionError("Something went wrong with vocabulary!");
+            }
+            if (myShards == null && !hasConcurrentCounters()) {
+                myModel.learn(indices);
+                return;
+            }
+        }
+        final Map<Thread, Model> shards = myShards;
+        if (shards != null) {
+//            Shard of the thread is used only by this thread
+            shards.computeIfAbsent(Thread.currentThread(), thread -> createModel(biDirectional, order, MapTrieCounter::new))
+                    .learn(indices);
+            return;
         }
+//        Concurrent counters synchronize themselves, so files are counted in parallel
         myModel.learn(indices);
     }
 
+    private boolean hasConcurrentCounters() {
+        final List<Counter> counters = getCounters(myModel);
+        return !counters.isEmpty() && counters.stream().allMatch(counter -> counter instanceof ConcurrentTrieCounter);
+    }
+
     @Override
     public void forgetPsiFile(@NotNull PsiFile file) {
         final LanguageSupporter supporter = getSupporter(file);
         if (supporter == null) return;
-        myModel.forget(myVocabulary.toIndices(supporter.lexPsiFile(file)));
+        final List<Integer> indices = myVocabulary.toIndices(supporter.lexPsiFile(file));
+        myModel.forget(indices);
+        synchronized (this) {
+            myForgottenFile = file;
+            myForgottenIndices = indices;
+        }
+    }
+
+    protected synchronized @Nullable List<Integer> takeForgottenIndices(@NotNull PsiFile file) {
+        if (file != myForgottenFile) return null;
+        final List<Integer> indices = myForgottenIndices;
+        myForgottenFile = null;
+        myForgottenIndices = null;
+        return indices;
     }
 
     @Override
     public double save(@NotNull Path modelPath, @Nullable ProgressIndicator progressIndicator) {
         modelPath.toFile().mkdirs();
         long counterSize = saveCounters(modelPath, progressIndicator);
+        if (counterSize < 0) return -1;
         final long rememberedVariablesFileSize = saveRememberedVariable(modelPath, progressIndicator);
         if (rememberedVariablesFileSize < 0) return -1;
         long vocabularySize = saveVocabulary(modelPath, progressIndicator);
@@ -394,13 +563,69 @@ public class NGramModelRunner implements ModelRunner {
         }
     }
 
+    /**
+     * Contexts are cached until the file of the variable is modified. Callers which ask for the same variable at once
+     * wait for one extraction, and contexts of different variables are extracted in parallel.
+     * Waiting callers check their own cancellation, and if the extraction is canceled, one of them extracts it again.
+     */
     @Nullable
-    synchronized public Context<Integer> getContext(@NotNull PsiNameIdentifierOwner variable) {
-        if (lastVariable == null || !lastVariable.equals(variable)) {
-            lastVariable = variable;
-            lastContext = prepareContext(variable);
+    public Context<Integer> getContext(@NotNull PsiNameIdentifierOwner variable) {
+        long modificationStamp = getModificationStamp(variable);
+        while (true) {
+            CompletableFuture<CachedContext> extraction = new CompletableFuture<>();
+            CompletableFuture<CachedContext> cached = myContexts.asMap().putIfAbsent(variable, extraction);
+            if (cached == null) return extractContext(variable, modificationStamp, extraction);
+            CachedContext context = awaitContext(cached);
+            if (context == null) continue;
+            if (context.modificationStamp < modificationStamp) {
+//                Only the first caller which sees the stale context removes it, the rest wait for its extraction
+                myContexts.asMap().remove(variable, cached);
+                continue;
+            }
+            return context.context;
+        }
+    }
+
+    /**
+     * Exceptions, cancellation of the read action included, get to the caller as they are.
+     * The extraction is dropped then, so callers which wait for it don't get an exception which isn't theirs.
+     */
+    private @Nullable Context<Integer> extractContext(@NotNull PsiNameIdentifierOwner variable, long modificationStamp,
+                                                      @NotNull CompletableFuture<CachedContext> extraction) {
+        try {
+            Context<Integer> context = prepareContext(variable);
+            extraction.complete(new CachedContext(modificationStamp, context));
+            return context;
+        } catch (Throwable e) {
+            myContexts.asMap().remove(variable, extraction);
+            extraction.complete(null);
+            throw e;
+        }
+    }
+
+    /**
+     * @return context extracted by another caller, or null if the extraction was dropped.
+     */
+    private static @Nullable CachedContext awaitContext(@NotNull Future<CachedContext> extraction) {
+        while (true) {
+            ProgressManager.checkCanceled();
+            try {
+                return extraction.get(10, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ignore) {
+            } catch (ExecutionException ignore) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessCanceledException(e);
+            }
         }
-        return lastContext;
+    }
+
+    private static long getModificationStamp(@NotNull PsiNameIdentifierOwner variable) {
+        return ReadAction.compute(() -> {
+            PsiFile file = variable.isValid() ? variable.getContainingFile() : null;
+            return file == null ? -1L : file.getModificationStamp();
+        });
     }
 
     private @Nullable Context<Integer> prepareContext(PsiNameIdentifierOwner variable) {
@@ -408,10 +633,23 @@ public class NGramModelRunner implements ModelRunner {
         if (supporter == null) return null;
         final Context<String> context = supporter.getContext(variable, false);
         if (context == null) return null;
-        return Context.fromStringToInt(context, myVocabulary);
+//        The vocabulary grows with unknown tokens, it is changed only under the lock as in learnLexed
+        synchronized (this) {
+            return Context.fromStringToInt(context, myVocabulary);
+        }
     }
 
-    private @Nullable LanguageSupporter getSupporter(PsiElement element) {
+    private static final class CachedContext {
+        private final long modificationStamp;
+        private final @Nullable Context<Integer> context;
+
+        private CachedContext(long modificationStamp, @Nullable Context<Integer> context) {
+            this.modificationStamp = modificationStamp;
+            this.context = context;
+        }
+    }
+
+    protected @Nullable LanguageSupporter getSupporter(PsiElement element) {
 //        TODO: initialize mySupporter with the model itself.
 //         It looks horrible, I will fix it later.
 //         It needs a lot of rewriting.
@@ -428,25 +666,119 @@ public class NGramModelRunner implements ModelRunner {
 
     private @NotNull List<VarNamePrediction> rankCandidates(@NotNull Set<Integer> candidates,
                                                             @NotNull Context<Integer> intContext) {
-        List<Integer> cs = new ArrayList<>();
-        List<Double> logits = new ArrayList<>();
-        for (int candidate : candidates) {
-            cs.add(candidate);
-            logits.add(getProbability(intContext.with(candidate)));
-            if (isCanceled()) break;
-        }
-//        List<Double> logProbs = logits;
-        List<Double> probs = softmax(logits, 6);
+        @Nullable NGramScorer.Candidates candidateScorer = getCandidateScorer(intContext);
+        if (TOP_K_RANKING && candidateScorer != null) return rankTopCandidates(candidates, candidateScorer);
+        int[] cs = new int[candidates.size()];
+        double[] probs = new double[cs.length];
+        int size = 0;
+        try {
+            if (PREFETCH && candidateScorer != null && candidateScorer.isCached()) candidateScorer.prefetch(candidates);
+            for (int candidate : candidates) {
+                cs[size] = candidate;
+                probs[size++] = candidateScorer != null ?
+                        candidateScorer.getLogProbability(candidate) :
+                        getProbability(intContext.with(candidate));
+                if (isCanceled()) break;
+            }
+        } finally {
+            if (candidateScorer != null) candidateScorer.release();
+        }
+        softmax(probs, size, 6);
         List<VarNamePrediction> predictions = new ArrayList<>();
-        for (int i = 0; i < cs.size(); i++) {
-            String name = myVocabulary.toWord(cs.get(i));
+        for (int i = 0; i < size; i++) {
+            String name = myVocabulary.toWord(cs[i]);
             if (mySupporter.isStopName(name)) continue;
-            predictions.add(new VarNamePrediction(name, probs.get(i), ModelType.NGRAM, getModelPriority()));
+            predictions.add(new VarNamePrediction(name, probs[i], ModelType.NGRAM, getModelPriority()));
         }
         predictions.sort((a, b) -> -Double.compare(a.getProbability(), b.getProbability()));
         return predictions.subList(0, getCutOff(predictions));
     }
 
+    /**
+     * Candidates come out of {@link NGramScorer.Candidates#nextRanked()} in the order in which {@link #rankCandidates}
+     * sorts them, and candidates whose bounds show that they can't get to the top aren't scored.
+     */
+    private @NotNull List<VarNamePrediction> rankTopCandidates(@NotNull Set<Integer> candidates,
+                                                               @NotNull NGramScorer.Candidates candidateScorer) {
+        int[] cs = new int[candidates.size()];
+        int size = 0;
+        for (int candidate : candidates) cs[size++] = candidate;
+        double[] probs = new double[size];
+        int[] top = new int[min(size, IRenSuggestingService.PREDICTION_CUTOFF)];
+        int suggestions = 0;
+        try {
+            candidateScorer.rank(cs, probs, size);
+            while (suggestions < top.length && !isCanceled()) {
+                int i = candidateScorer.nextRanked();
+                if (i < 0) break;
+                String name = myVocabulary.toWord(cs[i]);
+                if (mySupporter.isStopName(name)) continue;
+//                Predictions are cut off at the unknown name
+                if (Vocabulary.unknownCharacter.equals(name)) break;
+                top[suggestions++] = i;
+            }
+        } finally {
+            candidateScorer.release();
+        }
+        softmax(probs, size, 6);
+        List<VarNamePrediction> predictions = new ArrayList<>();
+        for (int p = 0; p < suggestions; p++) {
+            predictions.add(new VarNamePrediction(myVocabulary.toWord(cs[top[p]]), probs[top[p]],
+                    ModelType.NGRAM, getModelPriority()));
+        }
+        return predictions;
+    }
+
+    /**
+     * Scores the candidates as {@link #suggestNames(Context)} ranks them, but only with buffers of the current thread,
+     * so no memory is allocated per candidate. Tokens of the variable in the context are ignored.
+     *
+     * @param logProbs receives sums of logarithms of probabilities of tokens around the variable for every candidate.
+     * @return false if the model isn't built of Jelinek-Mercer models, such models are scored only by
+     * {@link #getProbability(PsiNameIdentifierOwner)}.
+     */
+    public boolean scoreCandidates(@NotNull Context<Integer> intContext, int @NotNull [] candidates, double @NotNull [] logProbs) {
+        @Nullable NGramScorer.Candidates candidateScorer = getCandidateScorer(intContext);
+        if (candidateScorer == null) return false;
+        try {
+            for (int i = 0; i < candidates.length; i++) logProbs[i] = candidateScorer.getLogProbability(candidates[i]);
+        } finally {
+            candidateScorer.release();
+        }
+        return true;
+    }
+
+    /**
+     * Candidates change only tokens of the variable, so windows without it are scored once for all candidates.
+     *
+     * @return scorer of candidates which is valid until it is released or the next scoring on the thread,
+     * or null if the model isn't built of Jelinek-Mercer models.
+     */
+    private @Nullable NGramScorer.Candidates getCandidateScorer(@NotNull Context<Integer> intContext) {
+        @Nullable NGramScorer scorer = NGramScorer.create(myModel, getOrder(), JM_LAMBDA);
+        return scorer == null ? null : scorer.candidates(
+                intContext.getTokens(), intContext.getVarIdxs(), getRanges(intContext), myVocabulary.size());
+    }
+
+    /**
+     * @return pairs of bounds {@code [from, to)} of tokens scored around usages of the variable, empty ranges are skipped.
+     */
+    private int @NotNull [] getRanges(@NotNull Context<Integer> intContext) {
+        List<Integer> varIdxs = intContext.getVarIdxs();
+        int[] ranges = new int[2 * varIdxs.size()];
+        int size = 0;
+        int rightIdx = 0;
+        final int maxIdx = intContext.getTokens().size();
+        for (int idx : varIdxs) {
+            int leftIdx = max(biDirectional ? idx - getOrder() + 1 : idx, rightIdx);
+            rightIdx = min(idx + getOrder(), maxIdx);
+            if (leftIdx >= rightIdx) continue;
+            ranges[size++] = leftIdx;
+            ranges[size++] = rightIdx;
+        }
+        return Arrays.copyOf(ranges, size);
+    }
+
     private boolean isCanceled() {
         try {
             ProgressManager.checkCanceled();
@@ -465,14 +797,14 @@ public class NGramModelRunner implements ModelRunner {
     }
 
     private double getProbability(@NotNull Context<Integer> intContext) {
-        double logProb = 0.;
-        int leftIdx;
-        int rightIdx = 0;
         List<Integer> tokens = intContext.getTokens();
-        final int maxIdx = tokens.size();
-        for (int idx : intContext.getVarIdxs()) {
-            leftIdx = max(biDirectional ? idx - getOrder() + 1 : idx, rightIdx);
-            rightIdx = min(idx + getOrder(), maxIdx);
+        @Nullable NGramScorer scorer = NGramScorer.create(myModel, getOrder(), JM_LAMBDA);
+        int[] ranges = getRanges(intContext);
+        if (scorer != null) return scorer.getLogProbability(tokens, ranges, myVocabulary.size());
+        double logProb = 0.;
+        for (int r = 0; r < ranges.length; r += 2) {
+            int leftIdx = ranges[r];
+            int rightIdx = ranges[r + 1];
             for (int i = leftIdx; i < rightIdx; i++) {
                 logProb += log(toProb(myModel.modelToken(tokens, i)));
             }
@@ -486,12 +818,17 @@ public class NGramModelRunner implements ModelRunner {
         return prob * conf + (1 - conf) / myVocabulary.size();
     }
 
-    private static @NotNull List<Double> softmax(@NotNull List<Double> logits, double temperature) {
-        if (logits.isEmpty()) return logits;
-        List<Double> logits_t = logits.stream().map(l -> l / temperature).toList();
-        Double maxLogit = Collections.max(logits_t);
-        List<Double> probs = logits_t.stream().map(logit -> exp(logit - maxLogit)).toList();
-        double sumProbs = probs.stream().mapToDouble(Double::doubleValue).sum();
-        return probs.stream().map(p -> p / sumProbs).collect(Collectors.toList());
+    /**
+     * Replaces the first {@code size} logits by their probabilities.
+     */
+    private static void softmax(double @NotNull [] logits, int size, double temperature) {
+        double maxLogit = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) maxLogit = max(maxLogit, logits[i] / temperature);
+        double sumProbs = 0.;
+        for (int i = 0; i < size; i++) {
+            logits[i] = exp(logits[i] / temperature - maxLogit);
+            sumProbs += logits[i];
+        }
+        for (int i = 0; i < size; i++) logits[i] /= sumProbs;
     }
 }
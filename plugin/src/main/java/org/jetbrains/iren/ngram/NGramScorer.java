@@ -0,0 +1,879 @@
+package org.jetbrains.iren.ngram;
+
+import com.intellij.completion.ngram.slp.counting.Counter;
+import com.intellij.completion.ngram.slp.counting.trie.my.PrefixCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.persistent.PersistentCounter;
+import com.intellij.completion.ngram.slp.modeling.Model;
+import com.intellij.completion.ngram.slp.modeling.mix.BiDirectionalModel;
+import com.intellij.completion.ngram.slp.modeling.ngram.JMModel;
+import com.intellij.completion.ngram.slp.modeling.ngram.NGramModel;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static java.lang.Math.*;
+
+/**
+ * Scores ranges of tokens with Jelinek-Mercer models the same way as {@link Model#modelToken(List, int)} does,
+ * but counts of all orders are taken from one walk down the trie per window instead of one walk per order and token.
+ * Windows starting at neighbouring tokens overlap, so the walk for window {@code [s, s + order)}
+ * gives the n-gram of order {@code i + 1} ending at {@code s + i} for every {@code i}.
+ */
+final class NGramScorer {
+    /**
+     * Scoring takes arrays from buffers of the thread, so it doesn't allocate once the buffers fit the context.
+     */
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+    /**
+     * Buffers which grew over this number of tokens are dropped after scoring, so a rare long context
+     * isn't kept by the thread.
+     */
+    private static final int KEPT_SIZE = 4096;
+
+    private final Counter forward;
+    private final @Nullable Counter reverse;
+    private final int order;
+    private final double lambda;
+
+    private NGramScorer(@NotNull Counter forward, @Nullable Counter reverse, int order, double lambda) {
+        this.forward = forward;
+        this.reverse = reverse;
+        this.order = order;
+        this.lambda = lambda;
+    }
+
+    /**
+     * @return scorer for the model, or null if the model isn't built of {@link JMModel}s.
+     */
+    static @Nullable NGramScorer create(@NotNull Model model, int order, double lambda) {
+        if (model instanceof JMModel) {
+            return new NGramScorer(((NGramModel) model).getCounter(), null, order, lambda);
+        }
+        if (model instanceof BiDirectionalModel biDirectionalModel
+                && biDirectionalModel.getForward() instanceof JMModel
+                && biDirectionalModel.getReverse() instanceof JMModel) {
+            return new NGramScorer(((NGramModel) biDirectionalModel.getForward()).getCounter(),
+                    ((NGramModel) biDirectionalModel.getReverse()).getCounter(),
+                    order,
+                    lambda);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if counts are read through caches of files, so windows are worth being prefetched.
+     */
+    boolean isCached() {
+        return forward instanceof PersistentCounter counter && counter.isCached();
+    }
+
+    /**
+     * Loads nodes of the windows of persistent counters, so the following scoring doesn't wait for the disk.
+     *
+     * @param forwardWindows pairs of the offset and the length of windows in the tokens, see
+     *                       {@link PersistentCounter#prefetch(int[], int[], int)}.
+     */
+    void prefetch(int @NotNull [] tokens, int @NotNull [] forwardWindows, int forwardCount,
+                  int @NotNull [] reverseWindows, int reverseCount) {
+        if (forward instanceof PersistentCounter counter) counter.prefetch(tokens, forwardWindows, forwardCount);
+        if (reverse instanceof PersistentCounter counter) counter.prefetch(tokens, reverseWindows, reverseCount);
+    }
+
+    /**
+     * @param tokens         tokens of the context.
+     * @param reversedTokens the same tokens in reverse order, they are used only by bidirectional models.
+     * @return sum of logarithms of probabilities of tokens in {@code [from, to)}.
+     */
+    double getLogProbability(int @NotNull [] tokens, int @NotNull [] reversedTokens, int from, int to, int vocabularySize) {
+        Buffers buffers = BUFFERS.get();
+        double logProb = getLogProbability(buffers, tokens, reversedTokens, tokens.length, from, to, vocabularySize);
+        buffers.release();
+        return logProb;
+    }
+
+    /**
+     * Tokens are copied to buffers of the thread, so the context is scored without allocations.
+     *
+     * @param ranges pairs of bounds {@code [from, to)} of scored tokens.
+     * @return sum of logarithms of probabilities of tokens in the ranges.
+     */
+    double getLogProbability(@NotNull List<Integer> tokens, int @NotNull [] ranges, int vocabularySize) {
+        Buffers buffers = BUFFERS.get();
+        int n = tokens.size();
+        buffers.setTokens(tokens);
+        double logProb = 0.;
+        for (int r = 0; r < ranges.length; r += 2) {
+            logProb += getLogProbability(buffers, buffers.tokens, buffers.reversedTokens, n, ranges[r], ranges[r + 1],
+                    vocabularySize);
+        }
+        buffers.release();
+        return logProb;
+    }
+
+    private double getLogProbability(@NotNull Buffers buffers, int @NotNull [] tokens, int @NotNull [] reversedTokens,
+                                     int n, int from, int to, int vocabularySize) {
+        long[] counts = buffers.getCounts(order);
+        Interpolation forwardInterpolation = buffers.forwardInterpolation;
+        forwardInterpolation.init(lambda, n);
+        forwardInterpolation.clear(from, to);
+//        Going from the rightmost window to the left gives orders of every token in ascending order
+        for (int start = to - 1; start >= max(0, from - order + 1); start--) {
+            int length = min(order, to - start);
+            PrefixCounter.getPrefixCounts(forward, tokens, start, length, counts);
+            for (int i = max(0, from - start); i < length; i++) {
+                forwardInterpolation.add(start + i, counts[2 * i], counts[2 * i + 1]);
+            }
+        }
+        Interpolation reverseInterpolation = null;
+        if (reverse != null) {
+            reverseInterpolation = buffers.reverseInterpolation;
+            reverseInterpolation.init(lambda, n);
+            reverseInterpolation.clear(from, to);
+            for (int end = from; end < min(to + order - 1, n); end++) {
+//                Window goes from the token at end to the left, it starts at n - 1 - end in the reversed tokens
+                int length = min(order, end - from + 1);
+                PrefixCounter.getPrefixCounts(reverse, reversedTokens, n - 1 - end, length, counts);
+                for (int i = max(0, end - to + 1); i < length; i++) {
+                    reverseInterpolation.add(end - i, counts[2 * i], counts[2 * i + 1]);
+                }
+            }
+        }
+        return getLogProbability(forwardInterpolation, reverseInterpolation, from, to, vocabularySize);
+    }
+
+    private static double getLogProbability(@NotNull Interpolation forwardInterpolation,
+                                            @Nullable Interpolation reverseInterpolation,
+                                            int from, int to, int vocabularySize) {
+        double logProb = 0.;
+        for (int i = from; i < to; i++) {
+            double prob = forwardInterpolation.getProbability(i);
+            double conf = forwardInterpolation.getConfidence(i);
+            double reverseProb = reverseInterpolation == null ? 0. : reverseInterpolation.getProbability(i);
+            double reverseConf = reverseInterpolation == null ? 0. : reverseInterpolation.getConfidence(i);
+            logProb += log(getProbability(prob, conf, reverseProb, reverseConf, vocabularySize));
+        }
+        return logProb;
+    }
+
+    /**
+     * @return probability of a token mixed from both directions and smoothed by its confidence,
+     * the reverse confidence is 0 for forward models.
+     */
+    private static double getProbability(double prob, double conf, double reverseProb, double reverseConf, int vocabularySize) {
+        if (conf == 0) {
+            prob = reverseProb;
+            conf = reverseConf;
+        } else if (reverseConf != 0) {
+            double norm = 1 / (1 - min(conf, 0.999));
+            double reverseNorm = 1 / (1 - min(reverseConf, 0.999));
+            prob = (prob * norm + reverseProb * reverseNorm) / (norm + reverseNorm);
+            conf = max(conf, reverseConf);
+        }
+        return prob * conf + (1 - conf) / vocabularySize;
+    }
+
+    /**
+     * @param tokens tokens of the context, tokens at {@code varIdxs} are replaced by candidates.
+     * @param ranges pairs of bounds {@code [from, to)} of scored tokens.
+     * @return scorer of candidates of the variable. It is kept by the current thread and is reused by the next call
+     * on the thread, so it mustn't be used after that or by other threads. Call {@link Candidates#release()}
+     * once the candidates are scored.
+     */
+    @NotNull Candidates candidates(@NotNull List<Integer> tokens, @NotNull List<Integer> varIdxs, int @NotNull [] ranges,
+                                   int vocabularySize) {
+        Candidates candidates = BUFFERS.get().candidates;
+        candidates.init(this, tokens, varIdxs, ranges, vocabularySize);
+        return candidates;
+    }
+
+    /**
+     * Scores candidates of a variable by {@link #getLogProbability}, but walks only windows which contain the variable
+     * for every candidate. N-grams without the variable are the same for all candidates, they are interpolated once
+     * and every candidate continues the interpolation with its own n-grams. N-grams of a token which don't reach the
+     * variable are its lower orders, so orders are still added in ascending order.
+     * <p>
+     * Arrays are reused by the following contexts scored on the thread, so nothing is allocated per candidate,
+     * unless they grow over {@link #KEPT_SIZE}.
+     */
+    static final class Candidates {
+        /**
+         * Orders of n-grams with the variable which {@link #getUpperBound} counts, higher orders are only bounded.
+         */
+        private static final int BOUND_ORDER = 3;
+        private NGramScorer scorer;
+        private int n;
+        private int[] tokens = new int[0];
+        private int[] reversedTokens = new int[0];
+        private int[] varIdxs = new int[0];
+        private int varCount;
+        private int[] ranges;
+        private boolean[] isVar = new boolean[0];
+        private int vocabularySize;
+        /**
+         * Windows which contain the variable: the start of the window in the tokens (reversed tokens for
+         * the reverse model), followed by the first prefix which reaches the variable.
+         * Windows of range {@code r} are at {@code [windowOffsets[2r], windowOffsets[2r + 1])} for the forward model
+         * and at {@code [windowOffsets[2r + 1], windowOffsets[2r + 2])} for the reverse one.
+         */
+        private int[] windows = new int[0];
+        private int[] windowOffsets = new int[0];
+        private boolean interpolated;
+        private final Interpolation forwardShared = new Interpolation();
+        private final Interpolation reverseShared = new Interpolation();
+        private final Interpolation forwardInterpolation = new Interpolation();
+        private final Interpolation reverseInterpolation = new Interpolation();
+        private long[] counts = new long[0];
+        /**
+         * Shortest length of n-grams ending at the token which aren't counted, or {@link Integer#MAX_VALUE} if such
+         * n-grams aren't known. Shared arrays know n-grams without the variable, the others also know n-grams
+         * with the candidate up to {@link #BOUND_ORDER}. Tokens of the reverse model are indexed as reversed tokens.
+         */
+        private int[] forwardSharedUnseen = new int[0];
+        private int[] reverseSharedUnseen = new int[0];
+        private int[] forwardUnseen = new int[0];
+        private int[] reverseUnseen = new int[0];
+        private double[] forwardProbs = new double[0];
+        private double[] forwardConfs = new double[0];
+        private double[] reverseProbs = new double[0];
+        private double[] reverseConfs = new double[0];
+        private int[] rankedCandidates;
+        private double[] rankedLogProbs;
+        private int[] heap = new int[0];
+        private int heapSize;
+        private boolean[] scored = new boolean[0];
+        private int scoredCount;
+        /**
+         * Windows walked for all candidates, they are copied one after another and are referred to by pairs
+         * of the offset and the length of every window.
+         */
+        private int[] prefetchTokens = new int[0];
+        private int prefetchSize;
+        private int[] forwardPrefetch = new int[0];
+        private int forwardPrefetchSize;
+        private int[] reversePrefetch = new int[0];
+        private int reversePrefetchSize;
+
+        private void init(@NotNull NGramScorer scorer, @NotNull List<Integer> tokens, @NotNull List<Integer> varIdxs,
+                          int @NotNull [] ranges, int vocabularySize) {
+            this.scorer = scorer;
+            this.n = tokens.size();
+            this.tokens = grow(this.tokens, n);
+            this.reversedTokens = grow(reversedTokens, n);
+            for (int i = 0; i < n; i++) {
+                int token = tokens.get(i);
+                this.tokens[i] = token;
+                reversedTokens[n - 1 - i] = token;
+            }
+            this.varCount = varIdxs.size();
+            this.varIdxs = grow(this.varIdxs, varCount);
+            this.isVar = grow(isVar, n);
+            Arrays.fill(isVar, 0, n, false);
+            for (int v = 0; v < varCount; v++) {
+                int idx = varIdxs.get(v);
+                this.varIdxs[v] = idx;
+                isVar[idx] = true;
+            }
+            this.ranges = ranges;
+            this.vocabularySize = vocabularySize;
+            int order = scorer.order;
+            counts = grow(counts, 2 * order);
+            forwardSharedUnseen = grow(forwardSharedUnseen, n);
+            reverseSharedUnseen = grow(reverseSharedUnseen, n);
+            forwardUnseen = grow(forwardUnseen, n);
+            reverseUnseen = grow(reverseUnseen, n);
+            forwardProbs = grow(forwardProbs, order + 1);
+            forwardConfs = grow(forwardConfs, order + 1);
+            reverseProbs = grow(reverseProbs, order + 1);
+            reverseConfs = grow(reverseConfs, order + 1);
+            forwardShared.init(scorer.lambda, n);
+            reverseShared.init(scorer.lambda, n);
+            forwardInterpolation.init(scorer.lambda, n);
+            reverseInterpolation.init(scorer.lambda, n);
+            interpolated = false;
+//            Every range has fewer than to - from + order windows in each direction
+            int capacity = 0;
+            for (int r = 0; r < ranges.length; r += 2) capacity += 4 * (ranges[r + 1] - ranges[r] + order - 1);
+            windows = grow(windows, capacity);
+            windowOffsets = grow(windowOffsets, ranges.length + 1);
+            int size = 0;
+            for (int r = 0; r < ranges.length; r += 2) {
+                windowOffsets[r] = size;
+                size = addForwardWindows(ranges[r], ranges[r + 1], size);
+                windowOffsets[r + 1] = size;
+                if (scorer.reverse != null) size = addReverseWindows(ranges[r], ranges[r + 1], size);
+            }
+            windowOffsets[ranges.length] = size;
+        }
+
+        private int addForwardWindows(int from, int to, int size) {
+            int order = scorer.order;
+            for (int start = to - 1; start >= max(0, from - order + 1); start--) {
+                int length = min(order, to - start);
+                int variable = getForwardVariable(start, length);
+                if (variable == length) continue;
+                windows[size++] = start;
+                windows[size++] = max(variable, from - start);
+            }
+            return size;
+        }
+
+        private int addReverseWindows(int from, int to, int size) {
+            int order = scorer.order;
+            for (int end = from; end < min(to + order - 1, n); end++) {
+                int length = min(order, end - from + 1);
+                int variable = getReverseVariable(end, length);
+                if (variable == length) continue;
+                windows[size++] = n - 1 - end;
+                windows[size++] = max(variable, end - to + 1);
+            }
+            return size;
+        }
+
+        /**
+         * @return length of the longest prefix of the forward window without the variable.
+         */
+        private int getForwardVariable(int start, int length) {
+            int i = 0;
+            while (i < length && !isVar[start + i]) i++;
+            return i;
+        }
+
+        /**
+         * @return length of the longest prefix of the reverse window, which goes to the left from the end, without the variable.
+         */
+        private int getReverseVariable(int end, int length) {
+            int i = 0;
+            while (i < length && !isVar[end - i]) i++;
+            return i;
+        }
+
+        /**
+         * @return length of the longest prefix of the window without the variable, the window starts at {@code start}
+         * of the tokens or of the reversed tokens.
+         */
+        private int getVariable(boolean reversed, int start, int length) {
+            return reversed ? getReverseVariable(n - 1 - start, length) : getForwardVariable(start, length);
+        }
+
+        /**
+         * @return index in the tokens of the token at {@code i} of the tokens or of the reversed tokens.
+         */
+        private int toTokenIdx(boolean reversed, int i) {
+            return reversed ? n - 1 - i : i;
+        }
+
+        boolean isCached() {
+            return scorer.isCached();
+        }
+
+        /**
+         * Loads nodes of all windows walked for the candidates.
+         */
+        void prefetch(@NotNull Collection<Integer> candidates) {
+            int order = scorer.order;
+//            Windows without the variable are walked once, and the ones with it are walked for every candidate
+            int forwardWindows = 0;
+            int reverseWindows = 0;
+            for (int r = 0; r < ranges.length; r += 2) {
+                int from = ranges[r];
+                int to = ranges[r + 1];
+                int forwardVariable = (windowOffsets[r + 1] - windowOffsets[r]) / 2;
+                forwardWindows += to - max(0, from - order + 1) + candidates.size() * forwardVariable - forwardVariable;
+                if (scorer.reverse == null) continue;
+                int reverseVariable = (windowOffsets[r + 2] - windowOffsets[r + 1]) / 2;
+                reverseWindows += min(to + order - 1, n) - from + candidates.size() * reverseVariable - reverseVariable;
+            }
+            prefetchTokens = grow(prefetchTokens, order * (forwardWindows + reverseWindows));
+            forwardPrefetch = grow(forwardPrefetch, 2 * forwardWindows);
+            reversePrefetch = grow(reversePrefetch, 2 * reverseWindows);
+            prefetchSize = 0;
+            forwardPrefetchSize = 0;
+            reversePrefetchSize = 0;
+            addWindows(false);
+            for (int candidate : candidates) {
+                setCandidate(candidate);
+                addWindows(true);
+            }
+            scorer.prefetch(prefetchTokens, forwardPrefetch, forwardPrefetchSize / 2,
+                    reversePrefetch, reversePrefetchSize / 2);
+        }
+
+        private void addWindows(boolean withVariable) {
+            int order = scorer.order;
+            for (int r = 0; r < ranges.length; r += 2) {
+                int from = ranges[r];
+                int to = ranges[r + 1];
+                int w = windowOffsets[r];
+                for (int start = to - 1; start >= max(0, from - order + 1); start--) {
+                    boolean hasVariable = w < windowOffsets[r + 1] && windows[w] == start;
+                    if (hasVariable) w += 2;
+                    if (hasVariable != withVariable) continue;
+                    forwardPrefetchSize = addWindow(tokens, start, min(order, to - start), forwardPrefetch,
+                            forwardPrefetchSize);
+                }
+                if (scorer.reverse == null) continue;
+                w = windowOffsets[r + 1];
+                for (int end = from; end < min(to + order - 1, n); end++) {
+                    int start = n - 1 - end;
+                    boolean hasVariable = w < windowOffsets[r + 2] && windows[w] == start;
+                    if (hasVariable) w += 2;
+                    if (hasVariable != withVariable) continue;
+                    reversePrefetchSize = addWindow(reversedTokens, start, min(order, end - from + 1), reversePrefetch,
+                            reversePrefetchSize);
+                }
+            }
+        }
+
+        private int addWindow(int @NotNull [] windowTokens, int start, int length, int @NotNull [] prefetch, int size) {
+            System.arraycopy(windowTokens, start, prefetchTokens, prefetchSize, length);
+            prefetch[size++] = prefetchSize;
+            prefetch[size++] = length;
+            prefetchSize += length;
+            return size;
+        }
+
+        private void setCandidate(int candidate) {
+            for (int v = 0; v < varCount; v++) {
+                tokens[varIdxs[v]] = candidate;
+                reversedTokens[n - 1 - varIdxs[v]] = candidate;
+            }
+        }
+
+        /**
+         * Interpolates n-grams which don't contain the variable, the same way as {@link #getLogProbability} does.
+         */
+        private void interpolateShared() {
+            int order = scorer.order;
+            Arrays.fill(forwardSharedUnseen, 0, n, Integer.MAX_VALUE);
+            Arrays.fill(reverseSharedUnseen, 0, n, Integer.MAX_VALUE);
+            for (int r = 0; r < ranges.length; r += 2) {
+                int from = ranges[r];
+                int to = ranges[r + 1];
+                forwardShared.clear(from, to);
+                for (int start = to - 1; start >= max(0, from - order + 1); start--) {
+                    int length = min(order, to - start);
+                    int first = max(0, from - start);
+                    int last = getForwardVariable(start, length);
+                    if (last <= first) continue;
+                    PrefixCounter.getPrefixCounts(scorer.forward, tokens, start, last, counts);
+                    for (int i = first; i < last; i++) {
+                        forwardShared.add(start + i, counts[2 * i], counts[2 * i + 1]);
+                    }
+                    markUnseen(forwardSharedUnseen, start, 0, last);
+                }
+                if (scorer.reverse == null) continue;
+                reverseShared.clear(from, to);
+                for (int end = from; end < min(to + order - 1, n); end++) {
+                    int length = min(order, end - from + 1);
+                    int first = max(0, end - to + 1);
+                    int last = getReverseVariable(end, length);
+                    if (last <= first) continue;
+                    PrefixCounter.getPrefixCounts(scorer.reverse, reversedTokens, n - 1 - end, last, counts);
+                    for (int i = first; i < last; i++) {
+                        reverseShared.add(end - i, counts[2 * i], counts[2 * i + 1]);
+                    }
+                    markUnseen(reverseSharedUnseen, n - 1 - end, 0, last);
+                }
+            }
+            interpolated = true;
+        }
+
+        /**
+         * Marks the shortest prefix of the window in {@code [from, length)} which isn't counted, by counts of the walk.
+         * Longer prefixes aren't counted either.
+         */
+        private void markUnseen(int @NotNull [] unseen, int start, int from, int length) {
+            for (int i = from; i < length; i++) {
+                if (counts[2 * i] == 0) {
+                    unseen[start + i] = min(unseen[start + i], i + 1);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Counts of an n-gram and of its context are bounded by counts of their parts: an n-gram isn't counted
+         * if a part of it isn't counted, and it is counted at most as its context. N-grams with the candidate are
+         * counted up to {@link #BOUND_ORDER}, so for most candidates, which aren't seen next to the variable,
+         * the bound is close to the score. It takes a few short walks per usage, while scoring takes a full walk
+         * per window.
+         *
+         * @return upper bound of {@link #getLogProbability(int)} of the candidate. It is summed in the same order,
+         * so it isn't below the score even after rounding.
+         */
+        double getUpperBound(int candidate) {
+            if (!interpolated) interpolateShared();
+            setCandidate(candidate);
+            double bound = 0.;
+            for (int r = 0; r < ranges.length; r += 2) {
+                int from = ranges[r];
+                int to = ranges[r + 1];
+                forwardInterpolation.copy(forwardShared, from, to);
+                addBoundOrders(false, from, to);
+                if (scorer.reverse != null) {
+                    reverseInterpolation.copy(reverseShared, from, to);
+                    addBoundOrders(true, n - to, n - from);
+                }
+                double rangeBound = 0.;
+                for (int i = from; i < to; i++) {
+                    int forwardSize = getBounds(false, i, forwardProbs, forwardConfs);
+                    int reverseSize = 1;
+                    if (scorer.reverse != null) {
+                        reverseSize = getBounds(true, n - 1 - i, reverseProbs, reverseConfs);
+                    } else {
+                        reverseProbs[0] = 0.;
+                        reverseConfs[0] = 0.;
+                    }
+                    double maxProb = 0.;
+                    for (int f = 0; f < forwardSize; f++) {
+                        for (int b = 0; b < reverseSize; b++) {
+                            maxProb = max(maxProb, getProbability(forwardProbs[f], forwardConfs[f], reverseProbs[b],
+                                    reverseConfs[b], vocabularySize));
+                        }
+                    }
+                    rangeBound += log(maxProb);
+                }
+                bound += rangeBound;
+            }
+            return bound;
+        }
+
+        /**
+         * Adds orders up to {@link #BOUND_ORDER} with the variable to the interpolation and marks the ones which
+         * aren't counted. The range {@code [from, to)} is in the tokens or in the reversed tokens.
+         */
+        private void addBoundOrders(boolean reversed, int from, int to) {
+            Counter counter = reversed ? scorer.reverse : scorer.forward;
+            int[] windowTokens = reversed ? reversedTokens : tokens;
+            Interpolation interpolation = reversed ? reverseInterpolation : forwardInterpolation;
+            int[] unseen = reversed ? reverseUnseen : forwardUnseen;
+            int low = max(0, from - scorer.order + 1);
+            System.arraycopy(reversed ? reverseSharedUnseen : forwardSharedUnseen, low, unseen, low, to - low);
+            for (int start = to - 1; start >= low; start--) {
+                int length = min(min(scorer.order, BOUND_ORDER), to - start);
+                int variable = getVariable(reversed, start, length);
+                if (variable == length) continue;
+                PrefixCounter.getPrefixCounts(counter, windowTokens, start, length, counts);
+                for (int i = max(variable, from - start); i < length; i++) {
+                    interpolation.add(toTokenIdx(reversed, start + i), counts[2 * i], counts[2 * i + 1]);
+                }
+                markUnseen(unseen, start, variable, length);
+            }
+        }
+
+        /**
+         * Orders of the token above {@link #BOUND_ORDER} with the variable are added to the interpolation until
+         * the first context which isn't counted, and the token follows them at most always, or never once
+         * a shorter n-gram of the token isn't counted.
+         *
+         * @param i index of the token in the tokens or in the reversed tokens.
+         * @return number of probabilities and confidences the token can get.
+         */
+        private int getBounds(boolean reversed, int i, double @NotNull [] boundProbs, double @NotNull [] boundConfs) {
+            Interpolation interpolation = reversed ? reverseInterpolation : forwardInterpolation;
+            int[] unseen = reversed ? reverseUnseen : forwardUnseen;
+            int orders = min(scorer.order, i + 1);
+//            N-grams of the token go to the left of it, as windows of the other direction go from it
+            int variable = getVariable(!reversed, n - 1 - i, orders);
+            int first = max(variable + 1, min(scorer.order, BOUND_ORDER) + 1);
+//            Context of the order j is [i - j + 1, i), it isn't counted if it contains an n-gram which isn't counted
+            int last = orders;
+            for (int k = i - 1; k > i - orders; k--) {
+                if (unseen[k] <= k - (i - orders)) last = min(last, i - k + unseen[k] - 1);
+            }
+            int added = max(0, last - first + 1);
+            int followed = min(added, max(0, unseen[i] - first));
+            return interpolation.getBounds(toTokenIdx(reversed, i), added, followed, boundProbs, boundConfs);
+        }
+
+        /**
+         * @return sum of logarithms of probabilities of tokens in the ranges with the candidate as the variable.
+         */
+        double getLogProbability(int candidate) {
+            if (!interpolated) interpolateShared();
+            setCandidate(candidate);
+            int order = scorer.order;
+            double logProb = 0.;
+            for (int r = 0; r < ranges.length; r += 2) {
+                int from = ranges[r];
+                int to = ranges[r + 1];
+                forwardInterpolation.copy(forwardShared, from, to);
+                for (int w = windowOffsets[r]; w < windowOffsets[r + 1]; w += 2) {
+                    int start = windows[w];
+                    int length = min(order, to - start);
+                    PrefixCounter.getPrefixCounts(scorer.forward, tokens, start, length, counts);
+                    for (int i = windows[w + 1]; i < length; i++) {
+                        forwardInterpolation.add(start + i, counts[2 * i], counts[2 * i + 1]);
+                    }
+                }
+                Interpolation reverse = null;
+                if (scorer.reverse != null) {
+                    reverse = reverseInterpolation;
+                    reverse.copy(reverseShared, from, to);
+                    for (int w = windowOffsets[r + 1]; w < windowOffsets[r + 2]; w += 2) {
+                        int start = windows[w];
+                        int end = n - 1 - start;
+                        int length = min(order, end - from + 1);
+                        PrefixCounter.getPrefixCounts(scorer.reverse, reversedTokens, start, length, counts);
+                        for (int i = windows[w + 1]; i < length; i++) {
+                            reverse.add(end - i, counts[2 * i], counts[2 * i + 1]);
+                        }
+                    }
+                }
+                logProb += NGramScorer.getLogProbability(forwardInterpolation, reverse, from, to, vocabularySize);
+            }
+            return logProb;
+        }
+
+        /**
+         * Starts branch and bound ranking of the candidates: all of them are bounded by {@link #getUpperBound},
+         * and {@link #nextRanked()} scores the candidate with the highest bound until the highest one is a score.
+         * Candidates which don't get to the top of the ranking aren't scored.
+         *
+         * @param logProbs receives upper bounds of the candidates, which are replaced by log-probabilities once
+         *                 the candidates are scored. Both arrays are used until the candidates are released.
+         */
+        void rank(int @NotNull [] candidates, double @NotNull [] logProbs, int size) {
+            rankedCandidates = candidates;
+            rankedLogProbs = logProbs;
+            heap = grow(heap, size);
+            scored = grow(scored, size);
+            for (int i = 0; i < size; i++) {
+                logProbs[i] = getUpperBound(candidates[i]);
+                scored[i] = false;
+                heap[i] = i;
+            }
+            heapSize = size;
+            scoredCount = 0;
+            for (int i = size / 2 - 1; i >= 0; i--) siftDown(i);
+        }
+
+        /**
+         * @return index of the candidate with the highest log-probability among the ones which aren't returned yet,
+         * candidates with equal log-probabilities go in their order, or -1 if all candidates are returned.
+         */
+        int nextRanked() {
+            while (heapSize > 0) {
+                int i = heap[0];
+                if (scored[i]) {
+                    heap[0] = heap[--heapSize];
+                    siftDown(0);
+                    return i;
+                }
+//                The score isn't above the bound, so the candidate only goes down
+                rankedLogProbs[i] = getLogProbability(rankedCandidates[i]);
+                scored[i] = true;
+                scoredCount++;
+                siftDown(0);
+            }
+            return -1;
+        }
+
+        /**
+         * @return number of candidates scored by the ranking so far.
+         */
+        int getScoredCount() {
+            return scoredCount;
+        }
+
+        private void siftDown(int k) {
+            int i = heap[k];
+            while (2 * k + 1 < heapSize) {
+                int child = 2 * k + 1;
+                if (child + 1 < heapSize && isRankedBefore(heap[child + 1], heap[child])) child++;
+                if (!isRankedBefore(heap[child], i)) break;
+                heap[k] = heap[child];
+                k = child;
+            }
+            heap[k] = i;
+        }
+
+        private boolean isRankedBefore(int i, int j) {
+            double logProb = rankedLogProbs[i];
+            double otherLogProb = rankedLogProbs[j];
+            return logProb != otherLogProb ? logProb > otherLogProb : i < j;
+        }
+
+        /**
+         * Drops the scorer, so the thread doesn't keep the model reachable, and arrays of long contexts.
+         * Candidates mustn't be scored after that.
+         */
+        void release() {
+            scorer = null;
+            ranges = null;
+            tokens = shrink(tokens);
+            reversedTokens = shrink(reversedTokens);
+            varIdxs = shrink(varIdxs);
+            isVar = shrink(isVar);
+            windows = shrink(windows);
+            windowOffsets = shrink(windowOffsets);
+            forwardSharedUnseen = shrink(forwardSharedUnseen);
+            reverseSharedUnseen = shrink(reverseSharedUnseen);
+            forwardUnseen = shrink(forwardUnseen);
+            reverseUnseen = shrink(reverseUnseen);
+            rankedCandidates = null;
+            rankedLogProbs = null;
+            heap = shrink(heap);
+            scored = shrink(scored);
+            prefetchTokens = shrink(prefetchTokens);
+            forwardPrefetch = shrink(forwardPrefetch);
+            reversePrefetch = shrink(reversePrefetch);
+            forwardShared.release();
+            reverseShared.release();
+            forwardInterpolation.release();
+            reverseInterpolation.release();
+        }
+    }
+
+    /**
+     * Jelinek-Mercer interpolation of orders of every token of a context. Orders must be added in ascending order.
+     */
+    private static final class Interpolation {
+        private double lambda;
+        private double[] probs = new double[0];
+        private double[] masses = new double[0];
+        private int[] hits = new int[0];
+        private boolean[] stopped = new boolean[0];
+
+        /**
+         * Makes room for {@code size} tokens, tokens must be cleared before their orders are added.
+         */
+        void init(double lambda, int size) {
+            this.lambda = lambda;
+            probs = grow(probs, size);
+            masses = grow(masses, size);
+            hits = grow(hits, size);
+            stopped = grow(stopped, size);
+        }
+
+        void clear(int from, int to) {
+            Arrays.fill(probs, from, to, 0.);
+            Arrays.fill(masses, from, to, 0.);
+            Arrays.fill(hits, from, to, 0);
+            Arrays.fill(stopped, from, to, false);
+        }
+
+        /**
+         * Takes orders of tokens in {@code [from, to)} from the other interpolation.
+         */
+        void copy(@NotNull Interpolation other, int from, int to) {
+            System.arraycopy(other.probs, from, probs, from, to - from);
+            System.arraycopy(other.masses, from, masses, from, to - from);
+            System.arraycopy(other.hits, from, hits, from, to - from);
+            System.arraycopy(other.stopped, from, stopped, from, to - from);
+        }
+
+        void add(int i, long count, long contextCount) {
+            if (stopped[i]) return;
+            if (contextCount == 0) {
+                stopped[i] = true;
+                return;
+            }
+            probs[i] = (1 - lambda) * probs[i] + lambda * count / contextCount;
+            masses[i] = (1 - lambda) * masses[i] + lambda;
+            hits[i]++;
+        }
+
+        double getProbability(int i) {
+            return hits[i] == 0 ? 0. : probs[i] / masses[i];
+        }
+
+        /**
+         * Puts probabilities and confidences which the token gets if from 0 to {@code added} orders are added,
+         * and the token always follows contexts of the first {@code followed} of them and never follows the rest.
+         *
+         * @return number of the probabilities.
+         */
+        int getBounds(int i, int added, int followed, double @NotNull [] boundProbs, double @NotNull [] boundConfs) {
+            double prob = probs[i];
+            double mass = masses[i];
+            int size = stopped[i] ? 1 : added + 1;
+            for (int a = 0; a < size; a++) {
+                if (a > 0) {
+                    prob = (1 - lambda) * prob + (a <= followed ? lambda : 0.);
+                    mass = (1 - lambda) * mass + lambda;
+                }
+                boundProbs[a] = hits[i] + a == 0 ? 0. : prob / mass;
+                boundConfs[a] = 1 - pow(2, -(hits[i] + a));
+            }
+            return size;
+        }
+
+        double getConfidence(int i) {
+            return 1 - pow(2, -hits[i]);
+        }
+
+        void release() {
+            probs = shrink(probs);
+            masses = shrink(masses);
+            hits = shrink(hits);
+            stopped = shrink(stopped);
+        }
+    }
+
+    /**
+     * Buffers of a thread, they grow to the longest context scored on the thread.
+     */
+    private static final class Buffers {
+        private final Candidates candidates = new Candidates();
+        private final Interpolation forwardInterpolation = new Interpolation();
+        private final Interpolation reverseInterpolation = new Interpolation();
+        private int[] tokens = new int[0];
+        private int[] reversedTokens = new int[0];
+        private long[] counts = new long[0];
+
+        void setTokens(@NotNull List<Integer> tokens) {
+            int n = tokens.size();
+            this.tokens = grow(this.tokens, n);
+            this.reversedTokens = grow(reversedTokens, n);
+            for (int i = 0; i < n; i++) {
+                int token = tokens.get(i);
+                this.tokens[i] = token;
+                reversedTokens[n - 1 - i] = token;
+            }
+        }
+
+        long @NotNull [] getCounts(int order) {
+            counts = grow(counts, 2 * order);
+            return counts;
+        }
+
+        void release() {
+            forwardInterpolation.release();
+            reverseInterpolation.release();
+            tokens = shrink(tokens);
+            reversedTokens = shrink(reversedTokens);
+        }
+    }
+
+    private static int @NotNull [] grow(int @NotNull [] array, int size) {
+        return array.length >= size ? array : new int[size];
+    }
+
+    private static long @NotNull [] grow(long @NotNull [] array, int size) {
+        return array.length >= size ? array : new long[size];
+    }
+
+    private static double @NotNull [] grow(double @NotNull [] array, int size) {
+        return array.length >= size ? array : new double[size];
+    }
+
+    private static boolean @NotNull [] grow(boolean @NotNull [] array, int size) {
+        return array.length >= size ? array : new boolean[size];
+    }
+
+    private static int @NotNull [] shrink(int @NotNull [] array) {
+        return array.length > KEPT_SIZE ? new int[0] : array;
+    }
+
+    private static double @NotNull [] shrink(double @NotNull [] array) {
+        return array.length > KEPT_SIZE ? new double[0] : array;
+    }
+
+    private static boolean @NotNull [] shrink(boolean @NotNull [] array) {
+        return array.length > KEPT_SIZE ? new boolean[0] : array;
+    }
+}
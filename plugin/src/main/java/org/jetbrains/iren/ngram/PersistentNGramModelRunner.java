@@ -1,27 +1,56 @@
 package org.jetbrains.iren.ngram;
 
+import com.google.common.collect.Lists;
 import com.intellij.completion.ngram.slp.counting.Counter;
 import com.intellij.completion.ngram.slp.counting.trie.my.MapTrieCounter;
 import com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager;
+import com.intellij.completion.ngram.slp.counting.trie.my.persistent.CounterWithDelta;
+import com.intellij.completion.ngram.slp.counting.trie.my.persistent.CounterWithForgetting;
 import com.intellij.completion.ngram.slp.counting.trie.my.persistent.PersistentCounter;
 import com.intellij.completion.ngram.slp.modeling.Model;
 import com.intellij.completion.ngram.slp.modeling.mix.BiDirectionalModel;
 import com.intellij.completion.ngram.slp.modeling.ngram.NGramModel;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.psi.PsiFile;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.iren.IRenBundle;
+import org.jetbrains.iren.LanguageSupporter;
 import org.jetbrains.iren.storages.PersistentVocabulary;
 import org.jetbrains.iren.storages.Vocabulary;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PersistentNGramModelRunner extends NGramModelRunner {
+    /**
+     * Number of n-grams changed by edits after which they are folded into the counter files in background.
+     */
+    public static int COMPACTION_THRESHOLD = 1_000_000;
+    /**
+     * Registry key which makes counters be saved in the compact format of {@link PersistentCounterManager}:
+     * smaller files, that are read a bit slower. Files of both formats are read regardless of the key.
+     */
+    public static final String COMPACT_COUNTERS_KEY = "iren.compact.counters";
+    private volatile @Nullable Path myModelPath = null;
+    private final AtomicBoolean myCompacting = new AtomicBoolean();
+    /**
+     * Guards files of the model: compaction replaces them, and {@link #retire} moves them aside.
+     */
+    private final Object myFilesLock = new Object();
+    private @Nullable Path myRetiredPath = null;
+
     @Override
     public String getVocabularyFile() {
         return "vocabulary";
@@ -80,7 +109,12 @@ public class PersistentNGramModelRunner extends NGramModelRunner {
         }
         try {
             file.createNewFile();
-            PersistentCounterManager.serialize(file.getAbsolutePath(), counter);
+            if (!PersistentCounterManager.serialize(file.getAbsolutePath(), counter, Registry.is(COMPACT_COUNTERS_KEY))) {
+                return -1;
+            }
+//            Changes of the previous counter are already in the new one
+            Files.deleteIfExists(Path.of(file.getAbsolutePath() + CounterWithDelta.DELTA_SUFFIX));
+            Files.deleteIfExists(Path.of(file.getAbsolutePath() + CounterWithDelta.COMPACTING_SUFFIX));
             return file.length();
         } catch (IOException e) {
             e.printStackTrace();
@@ -95,6 +129,7 @@ public class PersistentNGramModelRunner extends NGramModelRunner {
 
     @Override
     public boolean loadCounters(@NotNull Path modelPath, @Nullable ProgressIndicator progressIndicator) {
+        myModelPath = modelPath;
         if (biDirectional) {
             File forwardCounterFile = modelPath.resolve(FORWARD_COUNTER_FILE).toFile();
             File reverseCounterFile = modelPath.resolve(REVERSE_COUNTER_FILE).toFile();
@@ -134,11 +169,187 @@ public class PersistentNGramModelRunner extends NGramModelRunner {
     }
 
     /**
-     * Its counters cannot learn anything.
-     * Just clear counterToForget of {@link com.intellij.completion.ngram.slp.counting.trie.my.persistent.CounterWithForgetting}
+     * Its counters cannot learn files, they only take back the forgotten one.
+     * Just clear counterToForget of {@link CounterWithForgetting}.
+     * The file was forgotten when it was opened, so edits made since then are learnt by {@link CounterWithDelta}.
      */
     @Override
     public void learnPsiFile(@NotNull PsiFile file) {
+        final List<Integer> forgottenIndices = takeForgottenIndices(file);
         learnLexed(List.of());
+        if (forgottenIndices != null) learnEdits(file, forgottenIndices);
+    }
+
+    private void learnEdits(@NotNull PsiFile file, @NotNull List<Integer> before) {
+        final LanguageSupporter supporter = getSupporter(file);
+        if (supporter == null) return;
+        final List<Integer> after;
+        synchronized (this) {
+            after = myVocabulary.toIndices(supporter.lexPsiFile(file));
+        }
+        if (after.equals(before)) return;
+        if (myModel instanceof BiDirectionalModel) {
+            learnEdits(((BiDirectionalModel) myModel).getForward(), before, after);
+            learnEdits(((BiDirectionalModel) myModel).getReverse(), Lists.reverse(before), Lists.reverse(after));
+        } else {
+            learnEdits(myModel, before, after);
+        }
+    }
+
+    /**
+     * Only n-grams which cover the changed tokens are updated: tokens before and after the change are the same
+     * in both versions of the file, and so are n-grams made of them.
+     */
+    private void learnEdits(@NotNull Model model, @NotNull List<Integer> before, @NotNull List<Integer> after) {
+        final @Nullable CounterWithDelta delta = getDelta(model);
+        if (delta == null) return;
+        final int common = Math.min(before.size(), after.size());
+        int prefix = 0;
+        while (prefix < common && before.get(prefix).equals(after.get(prefix))) prefix++;
+        int suffix = 0;
+        while (suffix < common - prefix &&
+                before.get(before.size() - 1 - suffix).equals(after.get(after.size() - 1 - suffix))) suffix++;
+        delta.update(toNGrams(after, prefix, after.size() - suffix), 1);
+        delta.update(toNGrams(before, prefix, before.size() - suffix), -1);
+        if (delta.getSize() >= COMPACTION_THRESHOLD) compactInBackground();
+    }
+
+    /**
+     * @return n-grams which the model counts when it learns the tokens and which contain tokens {@code [from..to)}.
+     */
+    private @NotNull List<List<Integer>> toNGrams(@NotNull List<Integer> tokens, int from, int to) {
+        final int end = Math.min(tokens.size(), to + order - 1);
+        final List<List<Integer>> ngrams = new ArrayList<>(Math.max(0, end - from));
+        for (int i = from; i < end; i++) ngrams.add(tokens.subList(Math.max(0, i - order + 1), i + 1));
+        return ngrams;
+    }
+
+    private @NotNull List<Model> getModels() {
+        return myModel instanceof BiDirectionalModel biDirectionalModel ?
+                List.of(biDirectionalModel.getForward(), biDirectionalModel.getReverse()) :
+                List.of(myModel);
+    }
+
+    private static @Nullable CounterWithDelta getDelta(@NotNull Model model) {
+        if (model instanceof NGramModel && ((NGramModel) model).getCounter() instanceof CounterWithForgetting counter &&
+                counter.getPersistentCounter() instanceof CounterWithDelta delta) {
+            return delta;
+        }
+        return null;
+    }
+
+    private void compactInBackground() {
+        final Path modelPath = myModelPath;
+        if (modelPath == null || !myCompacting.compareAndSet(false, true)) return;
+        ProgressManager.getInstance().run(new Task.Backgroundable(null, IRenBundle.message("compacting.task.title")) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                try {
+//                    Retiring doesn't wait for compaction, the counters refuse to replace files which were moved
+                    compact(modelPath, indicator);
+                } finally {
+                    myCompacting.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Folds edits into the counter files, so they don't take memory and aren't replayed on every loading.
+     */
+    public boolean compact(@NotNull Path modelPath, @Nullable ProgressIndicator progressIndicator) {
+        if (biDirectional) {
+            return compactModelCounter((NGramModel) ((BiDirectionalModel) myModel).getForward(),
+                    modelPath.resolve(FORWARD_COUNTER_FILE).toFile(),
+                    progressIndicator) &&
+                    compactModelCounter((NGramModel) ((BiDirectionalModel) myModel).getReverse(),
+                            modelPath.resolve(REVERSE_COUNTER_FILE).toFile(),
+                            progressIndicator);
+        } else {
+            return compactModelCounter((NGramModel) myModel, modelPath.resolve(COUNTER_FILE).toFile(), progressIndicator);
+        }
+    }
+
+    private boolean compactModelCounter(@NotNull NGramModel model, File counterFile, @Nullable ProgressIndicator progressIndicator) {
+        final @Nullable CounterWithDelta delta = getDelta(model);
+//        Files of a retired model are moved aside and aren't written anymore
+        if (delta == null || myModelPath == null) return false;
+        if (progressIndicator != null) {
+            if (progressIndicator.isCanceled()) return false;
+            progressIndicator.setText2(IRenBundle.message("compacting.file", counterFile.getName()));
+        }
+//        The counter replaces its file and keeps working, so the state of the model and edits made meanwhile are kept
+        return PersistentCounterManager.compact(counterFile.getAbsolutePath(), delta);
+    }
+
+    /**
+     * Moves files of the model to the path, so they can be replaced by files of a new model. Edits aren't written
+     * while files are moved, and afterwards the runner stops writing edits and compacting files, a compaction
+     * in progress isn't waited for and is abandoned when it finishes. It keeps serving
+     * queries from the moved files until it is closed, then the path is deleted.
+     * If the files can't be moved, nothing changes.
+     */
+    public void retire(@NotNull Path modelPath, @NotNull Path retiredPath) throws IOException {
+        synchronized (myFilesLock) {
+            final List<CounterWithDelta> deltas = getDeltas();
+            runLocked(deltas, 0, () -> {
+                Files.move(modelPath, retiredPath, StandardCopyOption.ATOMIC_MOVE);
+                for (CounterWithDelta delta : deltas) delta.detach();
+            });
+            myModelPath = null;
+            myRetiredPath = retiredPath;
+        }
+    }
+
+    /**
+     * Takes back files of the model which were moved back from the path of {@link #retire},
+     * the runner writes edits and compacts them again.
+     */
+    public void restore(@NotNull Path modelPath) {
+        synchronized (myFilesLock) {
+            myModelPath = modelPath;
+            myRetiredPath = null;
+            for (CounterWithDelta delta : getDeltas()) delta.attach();
+        }
+    }
+
+    private @NotNull List<CounterWithDelta> getDeltas() {
+        final List<CounterWithDelta> deltas = new ArrayList<>();
+        for (Model model : getModels()) {
+            final @Nullable CounterWithDelta delta = getDelta(model);
+            if (delta != null) deltas.add(delta);
+        }
+        return deltas;
+    }
+
+    /**
+     * Runs the action while none of the counters is updated or read.
+     */
+    private static void runLocked(@NotNull List<CounterWithDelta> deltas, int from, @NotNull CounterWithDelta.IORunnable action)
+            throws IOException {
+        if (from == deltas.size()) action.run();
+        else deltas.get(from).runLocked(() -> runLocked(deltas, from + 1, action));
+    }
+
+    /**
+     * Saves edits which aren't flushed yet, unmaps counter files and releases the vocabulary.
+     * The runner mustn't be queried after that.
+     */
+    @Override
+    public void close() {
+        final @Nullable Path retiredPath;
+        synchronized (myFilesLock) {
+            myModelPath = null;
+            for (Model model : getModels()) {
+                final @Nullable CounterWithDelta delta = getDelta(model);
+                if (delta != null) delta.flush();
+                if (model instanceof NGramModel && ((NGramModel) model).getCounter() instanceof PersistentCounter counter) {
+                    counter.close();
+                }
+            }
+            retiredPath = myRetiredPath;
+        }
+        if (myVocabulary instanceof PersistentVocabulary vocabulary) vocabulary.release();
+        if (retiredPath != null) FileUtil.delete(retiredPath.toFile());
     }
 }
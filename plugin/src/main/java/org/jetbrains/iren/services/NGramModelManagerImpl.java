@@ -1,5 +1,6 @@
 package org.jetbrains.iren.services;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.PsiFile;
 import org.jetbrains.annotations.NotNull;
@@ -7,47 +8,110 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.iren.ModelRunner;
 import org.jetbrains.iren.utils.ModelUtils;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Model runners are replaced while they are queried: a query acquires a runner, so a runner which was replaced
+ * or removed is closed only after the last query which acquired it releases it.
+ * Runners are acquired and released without locks, and files are forgotten and learnt back under locks of runners,
+ * so queries of different runners don't wait for each other.
+ */
 public class NGramModelManagerImpl implements NGramModelManager {
-    private final Map<String, ModelRunner> myModelRunners = new HashMap<>();
+    private final Map<String, ModelRunner> myModelRunners = new ConcurrentHashMap<>();
+    /**
+     * References to model runners: one of the manager while a runner is registered, and one of every query
+     * which acquired it and hasn't released it yet. A runner is closed when its last reference is released.
+     */
+    private final Map<ModelRunner, AtomicInteger> myReferences = new ConcurrentHashMap<>();
 
     @Override
     public @Nullable ModelRunner get(@NotNull String name) {
         return myModelRunners.get(name);
     }
 
+    @Override
+    public @Nullable ModelRunner acquire(@NotNull String name) {
+        while (true) {
+            ModelRunner modelRunner = myModelRunners.get(name);
+            if (modelRunner == null) return null;
+            AtomicInteger references = myReferences.get(modelRunner);
+            if (references != null && tryAcquire(references)) return modelRunner;
+//            The runner was replaced and released meanwhile, the new one is registered already
+        }
+    }
+
+    /**
+     * @return false if the runner was released by all references, then it can't be acquired anymore.
+     */
+    private static boolean tryAcquire(@NotNull AtomicInteger references) {
+        for (int count = references.get(); count > 0; count = references.get()) {
+            if (references.compareAndSet(count, count + 1)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void release(@NotNull ModelRunner modelRunner) {
+        AtomicInteger references = myReferences.get(modelRunner);
+        if (references == null || references.decrementAndGet() > 0) return;
+        myReferences.remove(modelRunner);
+        myForgottenFiles.remove(modelRunner.toString());
+        close(modelRunner);
+    }
+
     @Override
     public void put(@NotNull String name, @NotNull ModelRunner modelRunner) {
-        myModelRunners.put(name, modelRunner);
+        myReferences.computeIfAbsent(modelRunner, runner -> new AtomicInteger()).incrementAndGet();
+        ModelRunner oldModelRunner = myModelRunners.put(name, modelRunner);
+        if (oldModelRunner != null) release(oldModelRunner);
     }
 
     @Override
     public void remove(@NotNull String name) {
-        myModelRunners.remove(name);
+        ModelRunner oldModelRunner = myModelRunners.remove(name);
+        if (oldModelRunner != null) release(oldModelRunner);
     }
 
     @Override
     public void removeProjectModelRunners(@NotNull Project project) {
         String name = project.getName() + "_" + project.getLocationHash();
-        myModelRunners.entrySet().removeIf(entry -> entry.getKey().contains(name));
+        List<String> names = new ArrayList<>(myModelRunners.keySet());
+        names.stream().filter(key -> key.contains(name)).forEach(this::remove);
     }
 
     @Override
     public void dispose() {
-        myModelRunners.clear();
+        new ArrayList<>(myModelRunners.keySet()).forEach(this::remove);
+    }
+
+    /**
+     * Files are released in background, so the query which released the runner isn't delayed.
+     */
+    private static void close(@NotNull ModelRunner modelRunner) {
+        ApplicationManager.getApplication().executeOnPooledThread(modelRunner::close);
+    }
+
+    /**
+     * File which is forgotten by a model runner, the holder is locked while the runner forgets and learns files.
+     */
+    private static final class ForgottenFile {
+        @Nullable PsiFile file;
     }
 
-    private final Map<String, PsiFile> fileMap = new HashMap<>();
+    private final Map<String, ForgottenFile> myForgottenFiles = new ConcurrentHashMap<>();
 
-    public synchronized void forgetFileIfNeeded(@NotNull ModelRunner modelRunner, @NotNull PsiFile newFile) {
-        String modelKey = modelRunner.toString();
-        PsiFile oldFile = fileMap.get(modelKey);
-        if (newFile != oldFile) {
+    public void forgetFileIfNeeded(@NotNull ModelRunner modelRunner, @NotNull PsiFile newFile) {
+        ForgottenFile forgotten = myForgottenFiles.computeIfAbsent(modelRunner.toString(), key -> new ForgottenFile());
+        synchronized (forgotten) {
+            PsiFile oldFile = forgotten.file;
+            if (newFile == oldFile) return;
             if (oldFile != null) modelRunner.learnPsiFile(oldFile);
             modelRunner.forgetPsiFile(newFile);
-            fileMap.put(modelKey, newFile);
+            forgotten.file = newFile;
         }
     }
 
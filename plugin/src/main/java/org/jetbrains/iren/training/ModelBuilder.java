@@ -1,5 +1,6 @@
 package org.jetbrains.iren.training;
 
+import com.intellij.completion.ngram.slp.counting.trie.my.ConcurrentTrieCounter;
 import com.intellij.history.core.Paths;
 import com.intellij.lang.Language;
 import com.intellij.openapi.application.ApplicationManager;
@@ -13,6 +14,7 @@ import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectManager;
 import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiManager;
@@ -36,7 +38,10 @@ import org.jetbrains.iren.utils.DOBFModelUtils;
 import org.jetbrains.iren.utils.ModelUtils;
 import org.jetbrains.iren.utils.NotificationsUtil;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Collection;
@@ -50,6 +55,8 @@ import static org.jetbrains.iren.utils.ModelUtils.INTELLIJ_NAME;
 
 public class ModelBuilder {
     private static final Logger LOG = Logger.getInstance(ModelBuilder.class);
+    private static final String STAGING_PREFIX = "staging_";
+    private static final String RETIRED_PREFIX = "retired_";
     private final Project myProject;
     private final LanguageSupporter mySupporter;
     private final ProgressIndicator myProgressIndicator;
@@ -108,14 +115,16 @@ public class ModelBuilder {
     private void train(boolean save) {
         ModelUtils modelUtils = new ModelUtils();
         String name = modelUtils.getName(myProject, mySupporter.getLanguage());
-        NGramModelsUsabilityService.getInstance(myProject).setUsable(name, false);
-        NGramModelManager.getInstance(myProject).remove(name);
+//        The current model keeps serving queries while the new one is trained, and they are swapped at once afterwards
         if (myProgressIndicator != null)
             myProgressIndicator.setText(IRenBundle.message("training.progress.indicator.text",
                     myProject.getName(), mySupporter.getLanguage().getDisplayName()));
         System.out.printf("Project: %s\nLanguage: %s\n", myProject.getName(), mySupporter.getLanguage().getDisplayName());
         Instant start = Instant.now();
-        NGramModelRunner modelRunner = new NGramModelRunner();
+//        Both concurrent counters and private shards let files be counted in parallel
+        NGramModelRunner modelRunner = NGramModelRunner.SHARDED_TRAINING ?
+                new NGramModelRunner() :
+                new NGramModelRunner(ConcurrentTrieCounter::new);
         TrainingStatus status = trainModelRunner(modelRunner);
         if (status == CANCELED_OR_FAILED) return;
         double modelSize = 0;
@@ -123,10 +132,20 @@ public class ModelBuilder {
             if (myProgressIndicator != null)
                 myProgressIndicator.setText(IRenBundle.message("saving.text", myProject.getName(), mySupporter.getLanguage().getDisplayName()));
             final Path modelPath = modelUtils.getPath(name);
-            modelRunner = new PersistentNGramModelRunner(modelRunner);
-            modelSize = modelRunner.save(modelPath, myProgressIndicator);
-            if (modelSize <= 0 || !modelRunner.load(modelPath, myProgressIndicator)) return;
+            final PersistentNGramModelRunner persistentRunner = new PersistentNGramModelRunner(modelRunner);
+            modelRunner = persistentRunner;
+            modelSize = saveInPlaceOf(name, modelPath, modelRunner);
+            if (modelSize <= 0) return;
+            if (!modelRunner.load(modelPath, myProgressIndicator)) {
+                LOG.warn("Failed to load the saved model " + name);
+                persistentRunner.close();
+                FileUtil.delete(modelPath.toFile());
+                restoreCurrent(name, modelPath);
+                return;
+            }
             System.out.println(IRenBundle.message("model.size", modelSize));
+        } else {
+            modelRunner.freeze();
         }
         NotificationsUtil.modelTrained(myProject,
                 mySupporter,
@@ -138,6 +157,55 @@ public class ModelBuilder {
         NGramModelsUsabilityService.getInstance(myProject).setUsable(name, true);
     }
 
+    /**
+     * Saves the model instead of the current one, which keeps serving queries meanwhile.
+     * Files of the current model are mapped, so they aren't overwritten: the model is saved to a staging directory,
+     * the current files are moved aside and deleted when the current model is closed, and the staging directory
+     * takes their place. The current model is retired only once its files are moved, and it takes them back
+     * if the new files can't take their place, or if they can't be loaded, see {@link #restoreCurrent}.
+     *
+     * @return size of the model, or a non-positive number if it wasn't saved.
+     */
+    private double saveInPlaceOf(@NotNull String name, @NotNull Path modelPath, @NotNull ModelRunner modelRunner) {
+        final Path stagingPath = modelPath.resolveSibling(STAGING_PREFIX + name);
+        final Path retiredPath = modelPath.resolveSibling(RETIRED_PREFIX + name);
+        FileUtil.delete(stagingPath.toFile());
+        final double modelSize = modelRunner.save(stagingPath, myProgressIndicator);
+        if (modelSize <= 0) return modelSize;
+        final ModelRunner current = NGramModelManager.getInstance(myProject).get(name);
+        try {
+            if (Files.exists(modelPath)) {
+                FileUtil.delete(retiredPath.toFile());
+                if (current instanceof PersistentNGramModelRunner) ((PersistentNGramModelRunner) current).retire(modelPath, retiredPath);
+                else Files.move(modelPath, retiredPath, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(stagingPath, modelPath, StandardCopyOption.ATOMIC_MOVE);
+            return modelSize;
+        } catch (IOException e) {
+//            Mapped files can't be moved on some systems, then the current model stays until the next training
+            LOG.warn("Failed to replace the model " + name, e);
+            if (!Files.exists(modelPath)) restoreCurrent(name, modelPath);
+            FileUtil.delete(stagingPath.toFile());
+            return -1;
+        }
+    }
+
+    /**
+     * Moves files of the current model back from the retired directory, and the current model takes them back.
+     * Nothing must be at the model path.
+     */
+    private void restoreCurrent(@NotNull String name, @NotNull Path modelPath) {
+        final Path retiredPath = modelPath.resolveSibling(RETIRED_PREFIX + name);
+        if (!Files.exists(retiredPath)) return;
+        try {
+            Files.move(retiredPath, modelPath, StandardCopyOption.ATOMIC_MOVE);
+            final ModelRunner current = NGramModelManager.getInstance(myProject).get(name);
+            if (current instanceof PersistentNGramModelRunner) ((PersistentNGramModelRunner) current).restore(modelPath);
+        } catch (IOException e) {
+            LOG.warn(e);
+        }
+    }
+
     public TrainingStatus trainModelRunner(@NotNull ModelRunner modelRunner) {
         modelRunner.train();
         if (myProgressIndicator != null) {
@@ -0,0 +1,51 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static com.intellij.completion.ngram.slp.counting.trie.my.CounterTestUtil.*;
+
+public class ConcurrentTrieCounterTest {
+    private static final int VOCABULARY = 500;
+    private static final int FILES = 40;
+    private final List<List<Integer>> ngrams = ngrams(1, 40000, VOCABULARY);
+    private final List<List<Integer>> queries = queries(ngrams, VOCABULARY);
+
+    private List<List<Integer>> file(int i) {
+        int size = ngrams.size() / FILES;
+        return ngrams.subList(i * size, (i + 1) * size);
+    }
+
+    @Test
+    public void countInParallel() {
+        ConcurrentTrieCounter counter = new ConcurrentTrieCounter();
+        IntStream.range(0, FILES).parallel().forEach(i -> file(i).forEach(counter::count));
+        assertSameCounter(count(ngrams), counter, queries);
+    }
+
+    @Test
+    public void countBatchesInParallel() {
+        ConcurrentTrieCounter counter = new ConcurrentTrieCounter(IntMapTrieCounter::new);
+        IntStream.range(0, FILES).parallel().forEach(i -> counter.countBatch(file(i)));
+        assertSameCounter(count(ngrams), counter, queries);
+    }
+
+    @Test
+    public void unCountInParallel() {
+        ConcurrentTrieCounter counter = new ConcurrentTrieCounter();
+        counter.countBatch(ngrams);
+        IntStream.range(0, FILES / 2).parallel().forEach(i -> counter.unCountBatch(file(i)));
+        MapTrieCounter expected = count(ngrams);
+        IntStream.range(0, FILES / 2).forEach(i -> file(i).forEach(expected::unCount));
+        assertSameCounter(expected, counter, queries);
+    }
+
+    @Test
+    public void readExternal() throws Exception {
+        ConcurrentTrieCounter counter = new ConcurrentTrieCounter();
+        counter.countBatch(ngrams);
+        assertSameCounter(count(ngrams), copy(counter, new ConcurrentTrieCounter()), queries);
+    }
+}
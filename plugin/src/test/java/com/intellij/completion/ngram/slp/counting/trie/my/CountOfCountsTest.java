@@ -0,0 +1,45 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.intellij.completion.ngram.slp.counting.trie.my.CounterTestUtil.*;
+
+public class CountOfCountsTest {
+    private final List<List<Integer>> ngrams = ngrams(1, 20000, 300);
+
+    @Test
+    public void readMapTrieCounter() throws Exception {
+        MapTrieCounter counter = count(ngrams);
+        assertSameCountOfCounts(counter, copy(counter, new MapTrieCounter()));
+    }
+
+    @Test
+    public void readIntMapTrieCounter() throws Exception {
+        IntMapTrieCounter counter = new IntMapTrieCounter();
+        ngrams.forEach(counter::count);
+        assertSameCountOfCounts(count(ngrams), copy(counter, new IntMapTrieCounter()));
+    }
+
+    @Test
+    public void readArrayTrieCounter() throws Exception {
+        ArrayTrieCounter counter = new ArrayTrieCounter();
+        ngrams.forEach(counter::count);
+        assertSameCountOfCounts(count(ngrams), copy(counter, new ArrayTrieCounter()));
+    }
+
+    @Test
+    public void readFrozenTrieCounter() throws Exception {
+        MapTrieCounter counter = count(ngrams);
+        FrozenTrieCounter frozen = FrozenTrieCounter.freeze(counter);
+        assertSameCountOfCounts(counter, copy(frozen, new FrozenTrieCounter()));
+    }
+
+    @Test
+    public void readAfterForgetting() throws Exception {
+        MapTrieCounter counter = count(ngrams);
+        ngrams.subList(1000, 6000).forEach(counter::unCount);
+        assertSameCountOfCounts(counter, copy(counter, new MapTrieCounter()));
+    }
+}
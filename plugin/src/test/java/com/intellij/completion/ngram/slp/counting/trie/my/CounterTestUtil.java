@@ -0,0 +1,150 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import com.intellij.completion.ngram.slp.counting.Counter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Sequences and assertions shared by tests of counters, every counter is compared with {@link MapTrieCounter}.
+ */
+public final class CounterTestUtil {
+    public static final int ORDER = 6;
+
+    private CounterTestUtil() {
+    }
+
+    /**
+     * @return windows of length up to {@link #ORDER} ending at every token of a random sequence,
+     * tokens are skewed to small indices, so n-grams repeat like in code.
+     */
+    public static List<List<Integer>> ngrams(long seed, int tokens, int vocabulary) {
+        Random random = new Random(seed);
+        List<Integer> sequence = new ArrayList<>();
+        for (int i = 0; i < tokens; i++) {
+            sequence.add((int) Math.min(vocabulary - 1, Math.abs(random.nextGaussian() * vocabulary / 6)));
+        }
+        List<List<Integer>> ngrams = new ArrayList<>();
+        for (int i = 0; i < sequence.size(); i++) {
+            ngrams.add(new ArrayList<>(sequence.subList(Math.max(0, i - ORDER + 1), i + 1)));
+        }
+        return ngrams;
+    }
+
+    public static MapTrieCounter count(List<List<Integer>> ngrams) {
+        MapTrieCounter counter = new MapTrieCounter();
+        ngrams.forEach(counter::count);
+        return counter;
+    }
+
+    public static void assertSameCountOfCounts(Counter expected, Counter actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        for (int n = 1; n <= ORDER; n++) {
+            for (int count = 1; count <= 4; count++) {
+                assertEquals("Count of counts " + n + ", " + count,
+                        expected.getCountOfCount(n, count), actual.getCountOfCount(n, count));
+            }
+        }
+    }
+
+    /**
+     * Compares counts of all subsequences of the queries.
+     */
+    public static void assertSameCounts(Counter expected, Counter actual, List<List<Integer>> queries) {
+        assertEquals(expected.getCount(), actual.getCount());
+        for (List<Integer> query : queries) {
+            for (int i = 0; i < query.size(); i++) {
+                for (int j = i; j <= query.size(); j++) {
+                    List<Integer> sequence = query.subList(i, j);
+                    assertArrayEquals("Counts of " + sequence, expected.getCounts(sequence), actual.getCounts(sequence));
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares numbers of successors and their distinct counts of all subsequences of the queries.
+     */
+    public static void assertSameSuccessorCounts(Counter expected, Counter actual, List<List<Integer>> queries) {
+        for (List<Integer> query : queries) {
+            for (int i = 0; i < query.size(); i++) {
+                for (int j = i; j <= query.size(); j++) {
+                    List<Integer> sequence = query.subList(i, j);
+                    assertEquals("Successors of " + sequence,
+                            expected.getSuccessorCount(sequence), actual.getSuccessorCount(sequence));
+                    assertArrayEquals("Distinct counts of " + sequence,
+                            expected.getDistinctCounts(3, sequence), actual.getDistinctCounts(3, sequence));
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares top successors, ties are broken by smaller token in all counters.
+     */
+    public static void assertSameTopSuccessors(Counter expected, Counter actual, List<List<Integer>> queries) {
+        for (List<Integer> query : queries) {
+            for (int i = 0; i < query.size(); i++) {
+                for (int j = i; j < query.size(); j++) {
+                    List<Integer> sequence = query.subList(i, j);
+                    assertEquals("Top successors of " + sequence,
+                            expected.getTopSuccessors(sequence, 5), actual.getTopSuccessors(sequence, 5));
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares counts of prefixes of all suffixes of the queries.
+     */
+    public static void assertSamePrefixCounts(PrefixCounter expected, PrefixCounter actual, List<List<Integer>> queries) {
+        for (List<Integer> query : queries) {
+            for (int i = 0; i < query.size(); i++) {
+                List<Integer> sequence = query.subList(i, query.size());
+                assertArrayEquals("Prefix counts of " + sequence,
+                        expected.getPrefixCounts(sequence), actual.getPrefixCounts(sequence));
+            }
+        }
+    }
+
+    public static void assertSameCounter(Counter expected, Counter actual, List<List<Integer>> queries) {
+        assertSameCountOfCounts(expected, actual);
+        assertSameCounts(expected, actual, queries);
+        assertSameSuccessorCounts(expected, actual, queries);
+        assertSameTopSuccessors(expected, actual, queries);
+    }
+
+    /**
+     * @return queries that are partly seen and partly unseen by a counter of {@code ngrams}.
+     */
+    public static List<List<Integer>> queries(List<List<Integer>> ngrams, int vocabulary) {
+        List<List<Integer>> queries = new ArrayList<>(ngrams(-1, 300, vocabulary));
+        queries.addAll(ngrams.subList(0, Math.min(300, ngrams.size())));
+        return queries;
+    }
+
+    public static <T extends Counter> T copy(Counter counter, T target) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            counter.writeExternal(out);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            target.readExternal(in);
+        }
+        return target;
+    }
+
+    public static List<Integer> list(int... tokens) {
+        return new ArrayList<>(Arrays.stream(tokens).boxed().toList());
+    }
+}
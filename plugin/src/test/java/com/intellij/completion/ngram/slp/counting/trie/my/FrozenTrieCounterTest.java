@@ -0,0 +1,70 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.intellij.completion.ngram.slp.counting.trie.my.CounterTestUtil.*;
+import static org.junit.Assert.assertArrayEquals;
+
+public class FrozenTrieCounterTest {
+    private static final int VOCABULARY = 300;
+    private final List<List<Integer>> ngrams = ngrams(1, 20000, VOCABULARY);
+    private final List<List<Integer>> queries = queries(ngrams, VOCABULARY);
+
+    private void assertSamePrefixCounts(PrefixCounter expected, PrefixCounter actual, List<List<Integer>> queries) {
+        for (List<Integer> query : queries) {
+            for (int i = 0; i < query.size(); i++) {
+                List<Integer> sequence = query.subList(i, query.size());
+                assertArrayEquals("Prefix counts of " + sequence,
+                        expected.getPrefixCounts(sequence), actual.getPrefixCounts(sequence));
+            }
+        }
+    }
+
+    @Test
+    public void freezeMapTrieCounter() {
+        MapTrieCounter counter = count(ngrams);
+        FrozenTrieCounter frozen = FrozenTrieCounter.freeze(counter);
+        assertSameCounter(counter, frozen, queries);
+        assertSamePrefixCounts(counter, frozen, queries);
+    }
+
+    @Test
+    public void freezeConcurrentTrieCounter() {
+        ConcurrentTrieCounter counter = new ConcurrentTrieCounter();
+        counter.countBatch(ngrams);
+        FrozenTrieCounter frozen = FrozenTrieCounter.freeze(counter);
+        assertSameCounter(count(ngrams), frozen, queries);
+        assertSamePrefixCounts(count(ngrams), frozen, queries);
+    }
+
+    @Test
+    public void learnAndForgetAfterFreezing() {
+        MapTrieCounter counter = count(ngrams);
+        FrozenTrieCounter frozen = FrozenTrieCounter.freeze(counter);
+        List<List<Integer>> forgotten = ngrams.subList(1000, 3000);
+        List<List<Integer>> learnt = ngrams(5, 2000, VOCABULARY + 50);
+        counter.unCountBatch(forgotten);
+        frozen.unCountBatch(forgotten);
+        counter.countBatch(learnt);
+        frozen.countBatch(learnt);
+        assertSameCounts(counter, frozen, queries);
+        assertSameCounts(counter, frozen, learnt.subList(0, 300));
+        assertSameTopSuccessors(counter, frozen, queries);
+        assertSamePrefixCounts(counter, frozen, queries);
+        counter.unCountBatch(learnt);
+        frozen.unCountBatch(learnt);
+        counter.countBatch(forgotten);
+        frozen.countBatch(forgotten);
+        assertSameCounter(counter, frozen, queries);
+    }
+
+    @Test
+    public void readExternal() throws Exception {
+        MapTrieCounter counter = count(ngrams);
+        FrozenTrieCounter copy = copy(FrozenTrieCounter.freeze(counter), new FrozenTrieCounter());
+        assertSameCounter(counter, copy, queries);
+        assertSamePrefixCounts(counter, copy, queries);
+    }
+}
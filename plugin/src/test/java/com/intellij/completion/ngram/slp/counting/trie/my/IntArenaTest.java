@@ -0,0 +1,92 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.intellij.completion.ngram.slp.counting.trie.my.CounterTestUtil.*;
+import static org.junit.Assert.*;
+
+public class IntArenaTest {
+    private final List<List<Integer>> ngrams = ngrams(5, 20000, 300);
+
+    @Test
+    public void suffixes() {
+        IntArena arena = new IntArena(5);
+        List<Integer> suffixes = new ArrayList<>();
+//        Enough suffixes to fill several pages
+        for (int i = 0; i < 50000; i++) {
+            suffixes.add(arena.allocateSuffix(i, new int[]{i + 1, i + 2, i + 3}, 0, i % 4));
+        }
+        for (int i = 0; i < suffixes.size(); i++) {
+            int[] expected = new int[1 + i % 4];
+            for (int j = 0; j < expected.length; j++) expected[j] = i + j;
+            assertArrayEquals(expected, arena.copySuffix(suffixes.get(i)));
+        }
+        int tail = arena.allocateSuffix(3, suffixes.get(7), 2);
+        assertArrayEquals(new int[]{3, 9, 10}, arena.copySuffix(tail));
+        arena.addSuffixCount(tail, 2);
+        assertEquals(5, arena.suffixCount(tail));
+    }
+
+    @Test
+    public void releasedSuffixesAreReused() {
+        IntArena arena = new IntArena(5);
+        int first = arena.allocateSuffix(1, new int[]{1, 2, 3}, 0, 3);
+        int second = arena.allocateSuffix(1, new int[]{4}, 0, 1);
+        arena.releaseSuffix(first);
+        assertEquals(first, arena.allocateSuffix(2, new int[]{5, 6, 7}, 0, 3));
+        assertArrayEquals(new int[]{2, 5, 6, 7}, arena.copySuffix(first));
+        assertArrayEquals(new int[]{1, 4}, arena.copySuffix(second));
+        arena.releaseSuffix(second);
+        assertNotEquals(second, arena.allocateSuffix(1, new int[]{8, 9}, 0, 2));
+    }
+
+    @Test
+    public void countAndForget() {
+        for (AbstractTrie counter : List.of(new IntMapTrieCounter(), new ArrayTrieCounter())) {
+            ngrams.forEach(counter::count);
+            ngrams.subList(2000, 12000).forEach(counter::unCount);
+            ngrams.subList(5000, 8000).forEach(counter::count);
+            MapTrieCounter expected = count(ngrams);
+            ngrams.subList(2000, 12000).forEach(expected::unCount);
+            ngrams.subList(5000, 8000).forEach(expected::count);
+            assertSameCounter(expected, counter, queries(ngrams, 300));
+        }
+    }
+
+    /**
+     * Old files kept children of array tries as serialized objects, they must be read into the arena of the root.
+     */
+    @Test
+    public void readOldFormat() throws Exception {
+        ArrayTrieCounter counter = new ArrayTrieCounter();
+        List<List<Integer>> prefixed = new ArrayList<>();
+        for (List<Integer> ngram : ngrams) {
+            List<Integer> sequence = new ArrayList<>(ngram);
+            sequence.add(0, 7);
+            prefixed.add(sequence);
+            counter.count(sequence);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeInt(counter.getCount());
+            out.writeInt(counter.getContextCount());
+            out.writeInt(1);
+            out.writeInt(7);
+            out.writeInt(-1);
+            out.writeObject(counter.getChild(7));
+        }
+        ArrayTrieCounter read = new ArrayTrieCounter();
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            read.readExternal(in);
+        }
+        assertSame(read.arena, read.getChild(7).arena);
+        assertSameCounter(count(prefixed), read, queries(prefixed, 300));
+    }
+}
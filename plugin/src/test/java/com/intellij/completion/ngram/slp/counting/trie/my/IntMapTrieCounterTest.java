@@ -0,0 +1,46 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.intellij.completion.ngram.slp.counting.trie.my.CounterTestUtil.*;
+
+public class IntMapTrieCounterTest {
+    private static final int VOCABULARY = 300;
+    private final List<List<Integer>> ngrams = ngrams(1, 20000, VOCABULARY);
+    private final List<List<Integer>> queries = queries(ngrams, VOCABULARY);
+
+    private IntMapTrieCounter countIntMap() {
+        IntMapTrieCounter counter = new IntMapTrieCounter();
+        ngrams.forEach(counter::count);
+        return counter;
+    }
+
+    @Test
+    public void countSequences() {
+        assertSameCounter(count(ngrams), countIntMap(), queries);
+    }
+
+    @Test
+    public void unCount() {
+        MapTrieCounter expected = count(ngrams);
+        IntMapTrieCounter counter = countIntMap();
+        List<List<Integer>> forgotten = ngrams.subList(1000, 6000);
+        forgotten.forEach(expected::unCount);
+        forgotten.forEach(counter::unCount);
+        assertSameCounter(expected, counter, queries);
+    }
+
+    @Test
+    public void unCountEverything() {
+        IntMapTrieCounter counter = countIntMap();
+        ngrams.forEach(counter::unCount);
+        assertSameCounter(new MapTrieCounter(), counter, queries);
+    }
+
+    @Test
+    public void readExternal() throws Exception {
+        assertSameCounter(count(ngrams), copy(countIntMap(), new IntMapTrieCounter()), queries);
+    }
+}
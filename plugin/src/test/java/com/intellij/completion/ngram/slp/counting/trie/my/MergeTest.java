@@ -0,0 +1,57 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.intellij.completion.ngram.slp.counting.trie.my.CounterTestUtil.*;
+
+public class MergeTest {
+    private static final int VOCABULARY = 400;
+    private static final int SHARDS = 3;
+    private final List<List<Integer>> ngrams = ngrams(1, 30000, VOCABULARY);
+    private final List<List<Integer>> queries = queries(ngrams, VOCABULARY);
+
+    private <T extends AbstractTrie> T mergeShards(T counter) {
+        int size = ngrams.size() / SHARDS;
+        for (int i = 0; i < SHARDS; i++) counter.merge(count(ngrams.subList(i * size, (i + 1) * size)));
+        return counter;
+    }
+
+    @Test
+    public void mergeMapTrieCounters() {
+        assertSameCounter(count(ngrams), mergeShards(new MapTrieCounter()), queries);
+    }
+
+    @Test
+    public void mergeIntoIntMapTrieCounter() {
+        assertSameCounter(count(ngrams), mergeShards(new IntMapTrieCounter()), queries);
+    }
+
+    @Test
+    public void mergeIntoConcurrentTrieCounter() {
+        ConcurrentTrieCounter counter = new ConcurrentTrieCounter();
+        int size = ngrams.size() / SHARDS;
+        for (int i = 0; i < SHARDS; i++) counter.merge(count(ngrams.subList(i * size, (i + 1) * size)));
+        assertSameCounter(count(ngrams), counter, queries);
+    }
+
+    @Test
+    public void mergeConcurrentTrieCounter() {
+        ConcurrentTrieCounter counter = new ConcurrentTrieCounter();
+        counter.countBatch(ngrams);
+        MapTrieCounter merged = new MapTrieCounter();
+        merged.merge(counter);
+        assertSameCounter(count(ngrams), merged, queries);
+    }
+
+    @Test
+    public void mergeForgotten() {
+        MapTrieCounter expected = count(ngrams);
+        MapTrieCounter forgotten = count(ngrams.subList(0, 5000));
+        ngrams.subList(0, 5000).forEach(expected::unCount);
+        MapTrieCounter counter = count(ngrams);
+        AbstractTrie.forEachSequence(forgotten, (sequence, count) -> counter.update(sequence, -count));
+        assertSameCounter(expected, counter, queries);
+    }
+}
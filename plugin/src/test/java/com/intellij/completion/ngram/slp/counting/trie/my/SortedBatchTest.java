@@ -0,0 +1,66 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import com.intellij.completion.ngram.slp.counting.Counter;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+import static com.intellij.completion.ngram.slp.counting.trie.my.CounterTestUtil.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SortedBatchTest {
+    private static final int VOCABULARY = 300;
+    private static final int FILE_SIZE = 1000;
+    private final List<List<Integer>> ngrams = ngrams(9, 30000, VOCABULARY);
+    private final List<List<Integer>> queries = queries(ngrams, VOCABULARY);
+
+    @Test
+    public void sortedOrder() {
+        SortedBatch batch = new SortedBatch(ngrams.subList(0, FILE_SIZE));
+        assertEquals(FILE_SIZE, batch.size());
+        for (int i = 1; i < batch.size(); i++) {
+            int previous = batch.offset(i - 1);
+            int current = batch.offset(i);
+            int common = Math.min(batch.length(i - 1), batch.length(i));
+            int cmp = 0;
+            for (int j = 0; j < common && cmp == 0; j++) {
+                cmp = Integer.compare(batch.tokens[previous + j], batch.tokens[current + j]);
+            }
+            if (cmp == 0) cmp = Integer.compare(batch.length(i - 1), batch.length(i));
+            assertTrue("N-grams " + (i - 1) + " and " + i, cmp <= 0);
+        }
+    }
+
+    @Test
+    public void mapTrieCounter() {
+        checkBatches(MapTrieCounter::new);
+    }
+
+    @Test
+    public void intMapTrieCounter() {
+        checkBatches(IntMapTrieCounter::new);
+    }
+
+    @Test
+    public void concurrentTrieCounter() {
+        checkBatches(ConcurrentTrieCounter::new);
+    }
+
+    private void checkBatches(Supplier<Counter> factory) {
+        MapTrieCounter expected = count(ngrams);
+        Counter counter = factory.get();
+        for (int i = 0; i < ngrams.size(); i += FILE_SIZE) {
+            counter.countBatch(ngrams.subList(i, Math.min(ngrams.size(), i + FILE_SIZE)));
+        }
+        assertSameCounter(expected, counter, queries);
+        List<List<Integer>> forgotten = ngrams.subList(5000, 9000);
+        forgotten.forEach(expected::unCount);
+        counter.unCountBatch(forgotten);
+        assertSameCounter(expected, counter, queries);
+        counter.countBatch(forgotten);
+        counter.unCountBatch(forgotten);
+        assertSameCounter(expected, counter, queries);
+    }
+}
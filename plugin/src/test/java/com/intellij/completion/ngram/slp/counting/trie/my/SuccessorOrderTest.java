@@ -0,0 +1,105 @@
+package com.intellij.completion.ngram.slp.counting.trie.my;
+
+import com.intellij.completion.ngram.slp.counting.Counter;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.intellij.completion.ngram.slp.counting.trie.my.CounterTestUtil.*;
+import static org.junit.Assert.assertEquals;
+
+public class SuccessorOrderTest {
+    private static final int VOCABULARY = 60;
+
+    /**
+     * @return successors with positive counts, bigger count first, then smaller key.
+     */
+    private static List<Integer> expectedTop(Map<Integer, Integer> counts, int limit) {
+        List<Integer> keys = new ArrayList<>();
+        counts.forEach((key, count) -> {
+            if (count > 0) keys.add(key);
+        });
+        keys.sort((a, b) -> counts.get(a).equals(counts.get(b)) ? a - b : counts.get(b) - counts.get(a));
+        return keys.subList(0, Math.min(limit, keys.size()));
+    }
+
+    private static void assertSameOrder(Map<Integer, Integer> counts, SuccessorOrder order) {
+        for (int limit : new int[]{1, 3, 10, 1000}) {
+            assertEquals(expectedTop(counts, limit), order.getTop(limit));
+        }
+    }
+
+    @Test
+    public void incrementAndDecrement() {
+        Random random = new Random(1);
+        SuccessorOrder order = new SuccessorOrder(1);
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int step = 0; step < 20000; step++) {
+            int key = random.nextInt(100);
+            int count = counts.getOrDefault(key, 0);
+//            Mostly steps by one, like counting a sequence, sometimes bigger steps, like merging counters
+            int adj = random.nextInt(10) == 0 ? random.nextInt(20) - 10 : (random.nextInt(3) == 0 ? -1 : 1);
+            int newCount = Math.max(0, count + adj);
+            order.update(key, count, newCount);
+            counts.put(key, newCount);
+            if (step % 100 == 0) assertSameOrder(counts, order);
+        }
+        assertSameOrder(counts, order);
+    }
+
+    @Test
+    public void removeEverything() {
+        SuccessorOrder order = new SuccessorOrder(1);
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int key = 0; key < 50; key++) {
+            for (int count = 1; count <= key % 7 + 1; count++) order.update(key, count - 1, count);
+            counts.put(key, key % 7 + 1);
+        }
+        assertSameOrder(counts, order);
+        for (int key = 0; key < 50; key++) {
+            for (int count = key % 7 + 1; count > 0; count--) order.update(key, count, count - 1);
+            counts.remove(key);
+            assertSameOrder(counts, order);
+        }
+    }
+
+    /**
+     * Top successors of tries are compared with the order of counts of all sequences one token longer.
+     */
+    @Test
+    public void topSuccessorsOfCounters() throws Exception {
+        Random random = new Random(5);
+        List<List<Integer>> ngrams = ngrams(5, 40000, VOCABULARY);
+        List<List<Integer>> prefixes = new ArrayList<>();
+        prefixes.add(new ArrayList<>());
+        for (int i = 0; i < 200; i++) {
+            prefixes.add(ngrams.get(i).subList(0, 1 + random.nextInt(Math.min(3, ngrams.get(i).size()))));
+        }
+        for (AbstractTrie counter : List.of(new MapTrieCounter(), new IntMapTrieCounter(), new ArrayTrieCounter())) {
+            ngrams.forEach(counter::count);
+            ngrams.subList(0, 15000).forEach(counter::unCount);
+            for (int i = 0; i < 5000; i++) counter.count(ngrams.get(random.nextInt(ngrams.size())));
+            assertTopSuccessors(counter, prefixes);
+            AbstractTrie copy = copy(counter, counter.getClass().getDeclaredConstructor().newInstance());
+            assertTopSuccessors(copy, prefixes);
+        }
+    }
+
+    private static void assertTopSuccessors(Counter counter, List<List<Integer>> prefixes) {
+        for (List<Integer> prefix : prefixes) {
+            Map<Integer, Integer> counts = new HashMap<>();
+            for (int token = 0; token < VOCABULARY; token++) {
+                List<Integer> sequence = new ArrayList<>(prefix);
+                sequence.add(token);
+                counts.put(token, (int) counter.getCounts(sequence)[0]);
+            }
+            for (int limit : new int[]{3, 1000}) {
+                assertEquals(prefix.toString(), expectedTop(counts, limit), counter.getTopSuccessors(prefix, limit));
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.intellij.completion.ngram.slp.counting.trie.my.persistent;
+
+import com.intellij.completion.ngram.slp.counting.Counter;
+import com.intellij.completion.ngram.slp.counting.trie.my.ConcurrentTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.MapTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.intellij.completion.ngram.slp.counting.trie.my.CounterTestUtil.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompactTrieCounterTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    private final List<List<Integer>> ngrams = ngrams(11, 20000, 300);
+    private final List<List<Integer>> queries = queries(ngrams, 300);
+
+    @Test
+    public void mapTrieCounter() throws IOException {
+        MapTrieCounter counter = count(ngrams);
+        assertSameAsWritten(counter, counter, queries);
+    }
+
+    @Test
+    public void concurrentTrieCounter() throws IOException {
+        ConcurrentTrieCounter counter = new ConcurrentTrieCounter();
+        counter.countBatch(ngrams);
+        assertSameAsWritten(count(ngrams), counter, queries);
+    }
+
+    /**
+     * Keys, counts and distances that take from one to five bytes, and nodes with many blocks of successors.
+     */
+    @Test
+    public void wideValues() throws IOException {
+        MapTrieCounter counter = new MapTrieCounter();
+        List<List<Integer>> sequences = new ArrayList<>();
+        int[] values = {0, 1, 127, 128, 16_383, 16_384, 2_097_151, 2_097_152, 268_435_455, 268_435_456, Integer.MAX_VALUE - 1};
+        for (int key : values) {
+            for (int count : values) {
+                if (count == 0) continue;
+                List<Integer> sequence = list(key, count % 1000, key);
+                counter.update(sequence, count % 5_000_000);
+                sequences.add(sequence);
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            List<Integer> sequence = list(7, i * 37, i);
+            counter.count(sequence);
+            sequences.add(sequence);
+        }
+        assertSameAsWritten(counter, counter, sequences);
+    }
+
+    @Test
+    public void smallerThanDefault() throws IOException {
+        MapTrieCounter counter = count(ngrams);
+        File compact = folder.newFile();
+        File plain = folder.newFile();
+        PersistentCounterManager.serialize(compact.getPath(), counter, true);
+        PersistentCounterManager.serialize(plain.getPath(), counter, false);
+        assertTrue(compact.length() < plain.length());
+    }
+
+    private void assertSameAsWritten(MapTrieCounter expected, Counter counter, List<List<Integer>> queries) throws IOException {
+        String path = folder.newFile().getPath();
+        PersistentCounterManager.serialize(path, counter, true);
+        CompactTrieCounter written = (CompactTrieCounter) new CountersCache(path).readRoot();
+        assertEquals(expected.getCount(), written.getCount());
+        assertSameCounts(expected, written, queries);
+        assertSamePrefixCounts(expected, written, queries);
+        assertSameTopSuccessors(expected, written, queries);
+    }
+}
@@ -0,0 +1,148 @@
+package com.intellij.completion.ngram.slp.counting.trie.my.persistent;
+
+import com.intellij.completion.ngram.slp.counting.trie.my.MapTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.intellij.completion.ngram.slp.counting.trie.my.CounterTestUtil.*;
+import static org.junit.Assert.*;
+
+public class CounterWithDeltaTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    private final List<List<Integer>> ngrams = ngrams(13, 20000, 300);
+    private final List<List<Integer>> written = ngrams.subList(0, 12000);
+    private final List<List<Integer>> added = ngrams.subList(12000, ngrams.size());
+    private final List<List<Integer>> removed = ngrams.subList(3000, 8000);
+    private final List<List<Integer>> queries = queries(ngrams, 300);
+    private String path;
+
+    @Before
+    public void writeCounter() throws IOException {
+        path = folder.newFile().getPath();
+        PersistentCounterManager.serialize(path, count(written), false);
+    }
+
+    @Test
+    public void changes() {
+        CounterWithDelta counter = load();
+        edit(counter);
+        assertSameAsExpected(counter);
+    }
+
+    @Test
+    public void replay() {
+        CounterWithDelta counter = load();
+        edit(counter);
+        counter.flush();
+        counter.close();
+        assertSameAsExpected(load());
+    }
+
+    /**
+     * N-grams which aren't counted aren't removed, so they don't take counts from prefixes shared with counted ones.
+     */
+    @Test
+    public void unknownRemovals() {
+        CounterWithDelta counter = load();
+        List<List<Integer>> unknown = new ArrayList<>();
+        for (List<Integer> ngram : written.subList(0, 1000)) {
+            List<Integer> longer = new ArrayList<>(ngram.subList(1, ngram.size()));
+            longer.add(100_000);
+            unknown.add(longer);
+        }
+        counter.update(unknown, -1);
+        assertEquals(0, counter.getSize());
+        assertSame(count(written), counter);
+    }
+
+    @Test
+    public void compaction() {
+        CounterWithDelta counter = load();
+        edit(counter);
+        assertTrue(PersistentCounterManager.compact(path, counter));
+        assertEquals(0, counter.getSize());
+        assertFalse(Files.exists(Path.of(path + CounterWithDelta.DELTA_SUFFIX)));
+        assertFalse(Files.exists(Path.of(path + CounterWithDelta.COMPACTING_SUFFIX)));
+        assertSameAsExpected(counter);
+        counter.close();
+        assertSameAsExpected(load());
+    }
+
+    /**
+     * The counter continues with the new file and keeps changes which aren't compacted.
+     */
+    @Test
+    public void changesAfterCompaction() {
+        CounterWithDelta counter = load();
+        counter.update(added, 1);
+        assertTrue(PersistentCounterManager.compact(path, counter));
+        counter.update(removed, -1);
+        assertSameAsExpected(counter);
+        counter.flush();
+        counter.close();
+        assertSameAsExpected(load());
+    }
+
+    /**
+     * A counter whose files were moved aside while it was compacted doesn't replace files which took their place.
+     */
+    @Test
+    public void compactionOfDetachedCounter() throws IOException {
+        CounterWithDelta counter = load();
+        edit(counter);
+        counter.startCompaction();
+        String compacted = path + ".compacted";
+        PersistentCounterManager.serialize(compacted, count(added), false);
+//        Files of the counter are moved aside like those of a retired model
+        for (String suffix : List.of("", CounterWithDelta.COMPACTING_SUFFIX)) {
+            Files.move(Path.of(path + suffix), Path.of(path + ".retired" + suffix));
+        }
+        counter.detach();
+        PersistentCounterManager.serialize(path, count(removed), false);
+        assertThrows(IOException.class, () -> counter.finishCompaction(Path.of(compacted)));
+        assertSame(count(removed), load());
+    }
+
+    @Test
+    public void compactFormatIsKept() throws IOException {
+        PersistentCounterManager.serialize(path, count(written), true);
+        CounterWithDelta counter = load();
+        edit(counter);
+        assertTrue(PersistentCounterManager.compact(path, counter));
+        assertTrue(counter.getBase() instanceof CompactTrieCounter);
+        assertSameAsExpected(counter);
+    }
+
+    private CounterWithDelta load() {
+        return (CounterWithDelta) ((CounterWithForgetting) PersistentCounterManager.deserialize(path)).getPersistentCounter();
+    }
+
+    private void edit(CounterWithDelta counter) {
+        counter.update(added, 1);
+        counter.update(removed, -1);
+    }
+
+    private void assertSameAsExpected(CounterWithDelta counter) {
+        MapTrieCounter expected = count(written);
+        added.forEach(expected::count);
+        removed.forEach(expected::unCount);
+        assertSame(expected, counter);
+    }
+
+    private void assertSame(MapTrieCounter expected, CounterWithDelta counter) {
+        assertEquals(expected.getCount(), counter.getCount());
+        assertSameCounts(expected, counter, queries);
+        assertSamePrefixCounts(expected, counter, queries);
+        assertSameTopSuccessors(expected, counter, queries);
+    }
+}
@@ -0,0 +1,106 @@
+package com.intellij.completion.ngram.slp.counting.trie.my.persistent;
+
+import com.intellij.completion.ngram.slp.counting.Counter;
+import com.intellij.completion.ngram.slp.counting.trie.my.ConcurrentTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.IntMapTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.MapTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.List;
+
+import static com.intellij.completion.ngram.slp.counting.trie.my.CounterTestUtil.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MappedTrieCounterTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    private final int upperLevels = PersistentCounterManager.UPPER_LEVELS;
+    private final List<List<Integer>> ngrams = ngrams(7, 20000, 300);
+    private final List<List<Integer>> queries = queries(ngrams, 300);
+
+    @After
+    public void restoreLayout() {
+        PersistentCounterManager.UPPER_LEVELS = upperLevels;
+    }
+
+    @Test
+    public void mapTrieCounter() throws IOException {
+        MapTrieCounter counter = count(ngrams);
+        assertSameAsWritten(counter, counter);
+    }
+
+    @Test
+    public void intMapTrieCounter() throws IOException {
+        IntMapTrieCounter counter = new IntMapTrieCounter();
+        ngrams.forEach(counter::count);
+        assertSameAsWritten(count(ngrams), counter);
+    }
+
+    @Test
+    public void concurrentTrieCounter() throws IOException {
+        ConcurrentTrieCounter counter = new ConcurrentTrieCounter();
+        counter.countBatch(ngrams);
+        assertSameAsWritten(count(ngrams), counter);
+    }
+
+    @Test
+    public void plainPostOrder() throws IOException {
+        PersistentCounterManager.UPPER_LEVELS = 0;
+        assertSameAsWritten(count(ngrams), count(ngrams));
+    }
+
+    @Test
+    public void forEachSequence() throws IOException {
+        MapTrieCounter counter = count(ngrams);
+        MapTrieCounter copy = new MapTrieCounter();
+        copy.merge(write(counter));
+        assertSameCounter(counter, copy, queries);
+    }
+
+    /**
+     * The file is a snapshot of the counter at some moment, even if it is counted while it is written.
+     */
+    @Test
+    public void writeWhileCounting() throws Exception {
+        ConcurrentTrieCounter counter = new ConcurrentTrieCounter();
+        int half = ngrams.size() / 2;
+        ngrams.subList(0, half).forEach(counter::count);
+        Thread trainer = new Thread(() -> ngrams.subList(half, ngrams.size()).forEach(counter::count));
+        trainer.start();
+        MappedTrieCounter written = write(counter);
+        trainer.join();
+        int counted = written.getCount();
+        assertTrue(counted >= half);
+        assertSameCounts(count(ngrams.subList(0, counted)), written, queries);
+    }
+
+    /**
+     * A counter which isn't written is reported, so the previous file isn't replaced by an incomplete one.
+     */
+    @Test
+    public void failedWrite() throws IOException {
+        String path = folder.newFolder().getPath();
+        assertFalse(PersistentCounterManager.serialize(path, count(ngrams)));
+    }
+
+    private void assertSameAsWritten(MapTrieCounter expected, Counter counter) throws IOException {
+        MappedTrieCounter written = write(counter);
+        assertEquals(expected.getCount(), written.getCount());
+        assertSameCounts(expected, written, queries);
+        assertSamePrefixCounts(expected, written, queries);
+        assertSameTopSuccessors(expected, written, queries);
+    }
+
+    private MappedTrieCounter write(Counter counter) throws IOException {
+        String path = folder.newFile().getPath();
+        PersistentCounterManager.serialize(path, counter);
+        return (MappedTrieCounter) new CountersCache(path).readRoot();
+    }
+}
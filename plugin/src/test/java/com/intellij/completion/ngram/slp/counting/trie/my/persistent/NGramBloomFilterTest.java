@@ -0,0 +1,104 @@
+package com.intellij.completion.ngram.slp.counting.trie.my.persistent;
+
+import com.intellij.completion.ngram.slp.counting.trie.my.MapTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static com.intellij.completion.ngram.slp.counting.trie.my.CounterTestUtil.*;
+import static org.junit.Assert.*;
+
+public class NGramBloomFilterTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    private final boolean bloomFilter = PersistentCounterManager.BLOOM_FILTER;
+    private final List<List<Integer>> ngrams = ngrams(17, 20000, 300);
+    private final List<List<Integer>> queries = queries(ngrams, 300);
+
+    @After
+    public void restoreFilter() {
+        PersistentCounterManager.BLOOM_FILTER = bloomFilter;
+    }
+
+    @Test
+    public void storedSequences() throws IOException {
+        NGramBloomFilter filter = NGramBloomFilter.read(write(count(ngrams), false));
+        assertNotNull(filter);
+        for (List<Integer> ngram : ngrams) {
+            long hash = NGramBloomFilter.extend(NGramBloomFilter.EMPTY, ngram.get(0));
+            for (int i = 1; i < ngram.size(); i++) {
+                hash = NGramBloomFilter.extend(hash, ngram.get(i));
+                assertTrue("Missing " + ngram.subList(0, i + 1), filter.mightContain(hash));
+            }
+        }
+    }
+
+    @Test
+    public void absentSequences() throws IOException {
+        NGramBloomFilter filter = NGramBloomFilter.read(write(count(ngrams), false));
+        assertNotNull(filter);
+        int positives = 0;
+        int absent = 10000;
+        for (int i = 0; i < absent; i++) {
+            long hash = NGramBloomFilter.extend(NGramBloomFilter.EMPTY, i % 300);
+            if (filter.mightContain(NGramBloomFilter.extend(hash, 1000 + i))) positives++;
+        }
+        assertTrue("False positives: " + positives, positives < absent / 20);
+    }
+
+    @Test
+    public void mappedTrieCounter() throws IOException {
+        assertSameWithFilter(false);
+    }
+
+    @Test
+    public void compactTrieCounter() throws IOException {
+        assertSameWithFilter(true);
+    }
+
+    /**
+     * A file written without the filter mustn't be read with the filter of the previous file.
+     */
+    /**
+     * A closed counter unmaps its filter, so the filter can be deleted while the counter object is still referenced.
+     */
+    @Test
+    public void filterIsClosedWithCounter() throws IOException {
+        String path = write(count(ngrams), false);
+        PersistentCounter counter = PersistentCounterManager.read(path);
+        counter.close();
+        counter.close();
+        NGramBloomFilter.delete(path);
+        assertFalse(Files.exists(Path.of(path + NGramBloomFilter.SUFFIX)));
+    }
+
+    @Test
+    public void previousFilterIsDeleted() throws IOException {
+        String path = write(count(ngrams.subList(0, 1000)), false);
+        PersistentCounterManager.BLOOM_FILTER = false;
+        PersistentCounterManager.serialize(path, count(ngrams), false);
+        assertFalse(Files.exists(Path.of(path + NGramBloomFilter.SUFFIX)));
+        assertSameCounts(count(ngrams), PersistentCounterManager.read(path), queries);
+    }
+
+    private void assertSameWithFilter(boolean compact) throws IOException {
+        MapTrieCounter expected = count(ngrams);
+        PersistentCounter counter = PersistentCounterManager.read(write(expected, compact));
+        assertSameCounts(expected, counter, queries);
+        assertSamePrefixCounts(expected, counter, queries);
+    }
+
+    private String write(MapTrieCounter counter, boolean compact) throws IOException {
+        String path = folder.newFile().getPath();
+        PersistentCounterManager.serialize(path, counter, compact);
+        assertTrue(Files.exists(Path.of(path + NGramBloomFilter.SUFFIX)));
+        return path;
+    }
+}
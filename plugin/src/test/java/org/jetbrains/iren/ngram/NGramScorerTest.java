@@ -0,0 +1,250 @@
+package org.jetbrains.iren.ngram;
+
+import com.intellij.completion.ngram.slp.counting.Counter;
+import com.intellij.completion.ngram.slp.counting.trie.my.ArrayStorage;
+import com.intellij.completion.ngram.slp.counting.trie.my.IntMapTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.MapTrieCounter;
+import com.intellij.completion.ngram.slp.counting.trie.my.PersistentCounterManager;
+import com.intellij.completion.ngram.slp.modeling.Model;
+import com.intellij.completion.ngram.slp.modeling.mix.BiDirectionalModel;
+import com.intellij.completion.ngram.slp.modeling.ngram.JMModel;
+import kotlin.Pair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Log-probabilities of {@link NGramScorer} are compared with the ones computed token by token
+ * through {@link Model#modelToken(List, int)}, as {@link NGramModelRunner} did before the scorer.
+ * Scores of {@link NGramScorer.Candidates} are compared with the ones of the context with the candidate substituted.
+ */
+public class NGramScorerTest {
+    private static final int ORDER = 6;
+    private static final double LAMBDA = 0.5;
+    private static final int VOCABULARY = 60;
+    private static final double EPSILON = 1e-9;
+    private static final int TOP = 5;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(3);
+    private final JMModel forward = new JMModel(ORDER, LAMBDA, new IntMapTrieCounter());
+    private final JMModel reverse = new JMModel(ORDER, LAMBDA, new MapTrieCounter());
+
+    public NGramScorerTest() {
+        for (int file = 0; file < 300; file++) {
+            List<Integer> tokens = randomTokens(20 + random.nextInt(80), VOCABULARY);
+            List<Integer> reversed = new ArrayList<>(tokens);
+            Collections.reverse(reversed);
+            for (int i = 0; i < tokens.size(); i++) {
+                forward.getCounter().count(tokens.subList(i, Math.min(tokens.size(), i + ORDER)));
+                reverse.getCounter().count(reversed.subList(i, Math.min(tokens.size(), i + ORDER)));
+            }
+        }
+    }
+
+    private List<Integer> randomTokens(int length, int vocabulary) {
+        List<Integer> tokens = new ArrayList<>();
+        for (int i = 0; i < length; i++) tokens.add(random.nextInt(vocabulary / (1 + random.nextInt(4))));
+        return tokens;
+    }
+
+    @Test
+    public void forwardModel() {
+        checkModel(forward);
+    }
+
+    @Test
+    public void bidirectionalModel() {
+        checkModel(new BiDirectionalModel(forward, reverse));
+    }
+
+    private void checkModel(Model model) {
+        NGramScorer scorer = NGramScorer.create(model, ORDER, LAMBDA);
+        assertNotNull(scorer);
+        for (int test = 0; test < 500; test++) {
+//            Unseen tokens are scored too
+            List<Integer> tokens = randomTokens(1 + random.nextInt(40), VOCABULARY + 10);
+            int from = random.nextInt(tokens.size());
+            int to = from + 1 + random.nextInt(tokens.size() - from);
+            double expected = 0.;
+            for (int i = from; i < to; i++) expected += Math.log(toProb(model.modelToken(tokens, i)));
+            List<Integer> reversed = new ArrayList<>(tokens);
+            Collections.reverse(reversed);
+            double logProb = scorer.getLogProbability(ArrayStorage.toArray(tokens), ArrayStorage.toArray(reversed),
+                    from, to, VOCABULARY);
+            assertEquals(tokens + " [" + from + ", " + to + ")", expected, logProb, EPSILON);
+            assertEquals(expected, scorer.getLogProbability(tokens, new int[]{from, to}, VOCABULARY), EPSILON);
+        }
+    }
+
+    @Test
+    public void forwardCandidates() {
+        checkCandidates(forward, forward);
+    }
+
+    @Test
+    public void bidirectionalCandidates() {
+        checkCandidates(new BiDirectionalModel(forward, reverse), new BiDirectionalModel(forward, reverse));
+    }
+
+    @Test
+    public void persistentCandidates() {
+        JMModel persistentForward = new JMModel(ORDER, LAMBDA, write(forward));
+        JMModel persistentReverse = new JMModel(ORDER, LAMBDA, write(reverse));
+        checkCandidates(new BiDirectionalModel(forward, reverse),
+                new BiDirectionalModel(persistentForward, persistentReverse));
+    }
+
+    /**
+     * Released candidates of a long context are initialized again by the next context on the thread.
+     */
+    @Test
+    public void releasedCandidates() {
+        NGramScorer scorer = NGramScorer.create(forward, ORDER, LAMBDA);
+        assertNotNull(scorer);
+        List<Integer> tokens = randomTokens(10_000, VOCABULARY);
+        List<Integer> varIdxs = List.of(10, 5_000, 9_990);
+        int[] ranges = getRanges(new TreeSet<>(varIdxs), tokens.size(), false);
+        NGramScorer.Candidates candidates = scorer.candidates(tokens, varIdxs, ranges, VOCABULARY);
+        candidates.getLogProbability(1);
+        candidates.release();
+        checkCandidates(forward, forward);
+    }
+
+    @Test
+    public void forwardUpperBounds() {
+        checkUpperBounds(forward);
+    }
+
+    @Test
+    public void bidirectionalUpperBounds() {
+        checkUpperBounds(new BiDirectionalModel(forward, reverse));
+    }
+
+    /**
+     * Ranking returns candidates in the order of their scores, as the stable sort of all scores does,
+     * but scores only a part of them.
+     */
+    @Test
+    public void topCandidates() {
+        NGramScorer scorer = NGramScorer.create(new BiDirectionalModel(forward, reverse), ORDER, LAMBDA);
+        assertNotNull(scorer);
+        int scored = 0;
+        int ranked = 0;
+        for (int test = 0; test < 200; test++) {
+            List<Integer> tokens = randomTokens(10 + random.nextInt(100), VOCABULARY + 10);
+            TreeSet<Integer> varIdxs = randomVarIdxs(tokens.size(), 1 + random.nextInt(6));
+            int[] ranges = getRanges(varIdxs, tokens.size(), true);
+            int[] cs = new int[VOCABULARY + 10];
+            for (int i = 0; i < cs.length; i++) cs[i] = (i * 7 + test) % cs.length;
+            NGramScorer.Candidates candidates = scorer.candidates(tokens, new ArrayList<>(varIdxs), ranges, VOCABULARY);
+            List<Integer> expected = new ArrayList<>();
+            double[] expectedLogProbs = new double[cs.length];
+            for (int i = 0; i < cs.length; i++) {
+                expected.add(i);
+                expectedLogProbs[i] = candidates.getLogProbability(cs[i]);
+            }
+            expected.sort((i, j) -> -Double.compare(expectedLogProbs[i], expectedLogProbs[j]));
+            double[] logProbs = new double[cs.length];
+            candidates.rank(cs, logProbs, cs.length);
+            for (int k = 0; k < TOP; k++) {
+                int i = candidates.nextRanked();
+                assertEquals(tokens + " at " + varIdxs, (int) expected.get(k), i);
+                assertEquals(expectedLogProbs[i], logProbs[i], 0.);
+            }
+            scored += candidates.getScoredCount();
+            ranked += cs.length;
+            candidates.release();
+        }
+        assertTrue(scored + " of " + ranked + " candidates are scored", scored < ranked / 2);
+    }
+
+    private void checkUpperBounds(Model model) {
+        NGramScorer scorer = NGramScorer.create(model, ORDER, LAMBDA);
+        assertNotNull(scorer);
+        for (int test = 0; test < 200; test++) {
+            List<Integer> tokens = randomTokens(1 + random.nextInt(40), VOCABULARY + 10);
+            TreeSet<Integer> varIdxs = randomVarIdxs(tokens.size(), 1 + random.nextInt(3));
+            int[] ranges = getRanges(varIdxs, tokens.size(), model instanceof BiDirectionalModel);
+            NGramScorer.Candidates candidates = scorer.candidates(tokens, new ArrayList<>(varIdxs), ranges, VOCABULARY);
+            for (int candidate = 0; candidate < VOCABULARY + 10; candidate++) {
+//                Bounds and scores are taken in turns, so they don't depend on each other
+                double bound = candidates.getUpperBound(candidate);
+                double logProb = candidates.getLogProbability(candidate);
+                assertTrue(tokens + " at " + varIdxs + ": " + logProb + " > " + bound, logProb <= bound);
+            }
+        }
+    }
+
+    private TreeSet<Integer> randomVarIdxs(int size, int usages) {
+        TreeSet<Integer> varIdxs = new TreeSet<>();
+        for (int i = 0; i < usages; i++) varIdxs.add(random.nextInt(size));
+        return varIdxs;
+    }
+
+    private Counter write(JMModel model) {
+        String path = folder.getRoot().toPath().resolve("counter" + random.nextInt()).toString();
+        PersistentCounterManager.serialize(path, model.getCounter());
+        return PersistentCounterManager.deserialize(path);
+    }
+
+    /**
+     * @param expectedModel model which scores contexts with the candidate substituted.
+     * @param model         model whose candidates are scored.
+     */
+    private void checkCandidates(Model expectedModel, Model model) {
+        NGramScorer expectedScorer = NGramScorer.create(expectedModel, ORDER, LAMBDA);
+        NGramScorer scorer = NGramScorer.create(model, ORDER, LAMBDA);
+        assertNotNull(expectedScorer);
+        assertNotNull(scorer);
+        for (int test = 0; test < 200; test++) {
+            List<Integer> tokens = randomTokens(1 + random.nextInt(40), VOCABULARY + 10);
+            TreeSet<Integer> varIdxs = new TreeSet<>();
+            int usages = 1 + random.nextInt(3);
+            for (int i = 0; i < usages; i++) varIdxs.add(random.nextInt(tokens.size()));
+            int[] ranges = getRanges(varIdxs, tokens.size(), model instanceof BiDirectionalModel);
+            NGramScorer.Candidates candidates = scorer.candidates(tokens, new ArrayList<>(varIdxs), ranges, VOCABULARY);
+//            Candidates are scored in turns, so they reuse the shared interpolation, unseen candidates are scored too
+            for (int candidate = 0; candidate < VOCABULARY + 10; candidate += 1 + random.nextInt(5)) {
+                List<Integer> substituted = new ArrayList<>(tokens);
+                for (int idx : varIdxs) substituted.set(idx, candidate);
+                double expected = expectedScorer.getLogProbability(substituted, ranges, VOCABULARY);
+                assertEquals(substituted + " at " + varIdxs, expected, candidates.getLogProbability(candidate), EPSILON);
+            }
+        }
+    }
+
+    /**
+     * @return ranges of tokens around usages of the variable, the same as {@link NGramModelRunner} scores.
+     */
+    private static int[] getRanges(TreeSet<Integer> varIdxs, int size, boolean biDirectional) {
+        List<Integer> ranges = new ArrayList<>();
+        int rightIdx = 0;
+        for (int idx : varIdxs) {
+            int leftIdx = Math.max(biDirectional ? idx - ORDER + 1 : idx, rightIdx);
+            rightIdx = Math.min(idx + ORDER, size);
+            if (leftIdx >= rightIdx) continue;
+            ranges.add(leftIdx);
+            ranges.add(rightIdx);
+        }
+        return ArrayStorage.toArray(ranges);
+    }
+
+    private static double toProb(Pair<Double, Double> probConf) {
+        double prob = probConf.getFirst();
+        double conf = probConf.getSecond();
+        return prob * conf + (1 - conf) / VOCABULARY;
+    }
+}